@@ -0,0 +1,361 @@
+/**
+An instance of BTreeNode represents a node in the B+ Tree. The entries are
+kept in primitive arrays rather than in lists of boxed values: the keys are
+packed one after the other into fixed width slots of keyLength bytes (zero
+padded, as in the pages of the index file), and the arrays have room for
+more entries than keyCount so that an insert only shifts the entries after
+it with System.arraycopy.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+class BTreeNode {
+	public final int keyLength; // Width of a key slot in bytes.
+	public int keyCount; // No. of keys in the node.
+	public byte[] keys; // Keys packed into slots of keyLength bytes.
+	public long[] byteOffset; // Byte offset of the data in data file. In
+								// other
+	// words this is the data pointer. Applicable to only leaf nodes.
+	public int[] dataLength; // Length of the data in bytes for each
+								// key. Applicable to only leaf nodes.
+	public int childCount; // No. of children of an internal node.
+	public BTreeNode[] ptr; // Pointers to the children nodes if any, or null
+							// if only the child pages are known.
+	public int[] childPage; // Page numbers of the children nodes.
+	public BTreeNode immediateParent; // Pointer to the immediate parent.
+	public BTreeNode nextLeafPointer; // Applicable to only leaf nodes.
+	public BTreeNode prevLeafPointer; // Applicable to only leaf nodes.
+	public boolean isLeaf; // Checks if the node is a leaf node or intermediate
+							// node. If set to true, then the corresponding node
+							// is true.
+	public int pageId; // Page of the index file where the node is stored.
+	public int rightPage; // Right-link: page number of the next node on the
+							// same level, i.e. the next leaf for a leaf.
+	public int prevLeafPage; // Page number of the previous leaf.
+	public byte[] highKey; // Upper bound of the keys of the sub tree, the
+							// separator of the right-link; null if the node
+							// is the last of its level.
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param keyLength
+	 *            is the width of a key slot in bytes.
+	 * @param capacity
+	 *            is the no. of keys the node has room for initially; it grows
+	 *            as needed.
+	 */
+	public BTreeNode(int keyLength, int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.keyLength = keyLength;
+		this.keys = new byte[capacity * keyLength];
+		this.immediateParent = null;
+		this.nextLeafPointer = null;
+		this.prevLeafPointer = null;
+		this.isLeaf = false;
+		this.pageId = IndexFile.NO_PAGE;
+		this.rightPage = IndexFile.NO_PAGE;
+		this.prevLeafPage = IndexFile.NO_PAGE;
+	}
+
+	/**
+	 * Returns a copy of the key at the given slot, padded to keyLength bytes.
+	 */
+	public byte[] getKey(int slot) {
+		byte[] key = new byte[keyLength];
+		System.arraycopy(keys, slot * keyLength, key, 0, keyLength);
+		return key;
+	}
+
+	/**
+	 * Compares the key at the given slot with a search key in place. The
+	 * padding of the stored key compares like the end of the key, the same
+	 * way as MappedIndexReader.compareKey.
+	 * 
+	 * @return a negative number, zero or a positive number if the stored key
+	 *         is less than, equal to or greater than the search key.
+	 */
+	public int compareKey(int slot, byte[] pKey) {
+		int keyPos = slot * keyLength;
+		int common = Math.min(keyLength, pKey.length);
+		for (int count = 0; count < common; count++) {
+			int diff = (keys[keyPos + count] & 0xff) - (pKey[count] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		for (int count = common; count < pKey.length; count++) {
+			if (pKey[count] != 0)
+				return -1; // The stored key is a prefix of the search key.
+		}
+		for (int count = common; count < keyLength; count++) {
+			if (keys[keyPos + count] != 0)
+				return 1; // The search key is a prefix of the stored key.
+		}
+		return 0;
+	}
+
+	/**
+	 * Binary search for a key among the keys of the node. Every traversal of
+	 * the tree goes through this method (or through MappedIndexReader.search,
+	 * which does the same on a mapped page).
+	 * 
+	 * @param pKey
+	 *            is the key being searched.
+	 * @return the slot of the key if it is present, otherwise (-(insertion
+	 *         point) - 1) like Collections.binarySearch.
+	 */
+	public int search(byte[] pKey) {
+		int low = 0, high = keyCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int diff = compareKey(middle, pKey);
+			if (diff < 0)
+				low = middle + 1;
+			else if (diff > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Binary search for a key given as a String of ISO-8859-1 characters,
+	 * i.e. one character per key byte.
+	 */
+	public int search(String pKey) {
+		return search(pKey.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Returns the slot of the child of an internal node which covers the key:
+	 * the child left of the first key greater than pKey.
+	 * 
+	 * @param pKey
+	 *            is the key being searched.
+	 */
+	public int childSlot(String pKey) {
+		return childSlot(search(pKey));
+	}
+
+	/**
+	 * Converts the result of a search into the slot of the child covering the
+	 * key. A separator is the first key of the subtree right of it, so an
+	 * equal key goes right.
+	 */
+	static int childSlot(int searchResult) {
+		return searchResult >= 0 ? searchResult + 1 : -searchResult - 1;
+	}
+
+	/**
+	 * Inserts an entry into a leaf, shifting the entries from slot on.
+	 * 
+	 * @param slot
+	 *            is the slot the entry gets.
+	 * @param pKey
+	 *            is the key, at most keyLength bytes.
+	 * @param pByteOffset
+	 *            is the byte offset of the record.
+	 * @param pDataLength
+	 *            is the length of the record.
+	 */
+	public void insertEntry(int slot, byte[] pKey, long pByteOffset,
+			int pDataLength) {
+		ensureCapacity(keyCount + 1);
+		int moved = keyCount - slot;
+		System.arraycopy(byteOffset, slot, byteOffset, slot + 1, moved);
+		System.arraycopy(dataLength, slot, dataLength, slot + 1, moved);
+		byteOffset[slot] = pByteOffset;
+		dataLength[slot] = pDataLength;
+		insertKey(slot, pKey);
+	}
+
+	/**
+	 * Appends an entry to a leaf.
+	 */
+	public void addEntry(byte[] pKey, long pByteOffset, int pDataLength) {
+		insertEntry(keyCount, pKey, pByteOffset, pDataLength);
+	}
+
+	/**
+	 * Inserts a key, shifting the keys from slot on. The children are left
+	 * as they are.
+	 * 
+	 * @param slot
+	 *            is the slot the key gets.
+	 * @param pKey
+	 *            is the key, at most keyLength bytes.
+	 */
+	public void insertKey(int slot, byte[] pKey) {
+		ensureCapacity(keyCount + 1);
+		int keyPos = slot * keyLength;
+		System.arraycopy(keys, keyPos, keys, keyPos + keyLength,
+				(keyCount - slot) * keyLength);
+		int length = Math.min(pKey.length, keyLength);
+		System.arraycopy(pKey, 0, keys, keyPos, length);
+		Arrays.fill(keys, keyPos + length, keyPos + keyLength,
+				(byte) 0);
+		keyCount++;
+	}
+
+	/**
+	 * Inserts a child of an internal node, shifting the children from slot
+	 * on, and makes this node its parent.
+	 */
+	public void insertChild(int slot, BTreeNode child) {
+		ensureChildCapacity(childCount + 1);
+		if (ptr == null)
+			ptr = new BTreeNode[childPage.length];
+		System.arraycopy(ptr, slot, ptr, slot + 1, childCount - slot);
+		System.arraycopy(childPage, slot, childPage, slot + 1, childCount
+				- slot);
+		ptr[slot] = child;
+		childPage[slot] = child.pageId;
+		child.immediateParent = this;
+		childCount++;
+	}
+
+	/**
+	 * Appends a child of an internal node which is only known by its page.
+	 */
+	public void addChildPage(int page) {
+		insertChildPage(childCount, page);
+	}
+
+	/**
+	 * Inserts a child of an internal node which is only known by its page,
+	 * shifting the children from slot on.
+	 */
+	public void insertChildPage(int slot, int page) {
+		ensureChildCapacity(childCount + 1);
+		System.arraycopy(childPage, slot, childPage, slot + 1, childCount
+				- slot);
+		childPage[slot] = page;
+		childCount++;
+	}
+
+	/**
+	 * Removes the entry at a slot of a leaf, shifting the entries after it.
+	 */
+	public void removeEntry(int slot) {
+		int moved = keyCount - slot - 1;
+		System.arraycopy(byteOffset, slot + 1, byteOffset, slot, moved);
+		System.arraycopy(dataLength, slot + 1, dataLength, slot, moved);
+		removeKey(slot);
+	}
+
+	/**
+	 * Removes the key at a slot, shifting the keys after it. The children
+	 * are left as they are.
+	 */
+	public void removeKey(int slot) {
+		int keyPos = slot * keyLength;
+		System.arraycopy(keys, keyPos + keyLength, keys, keyPos,
+				(keyCount - slot - 1) * keyLength);
+		keyCount--;
+	}
+
+	/**
+	 * Removes the child of an internal node at a slot, which is only known by
+	 * its page, shifting the children after it.
+	 */
+	public void removeChildPage(int slot) {
+		System.arraycopy(childPage, slot + 1, childPage, slot, childCount
+				- slot - 1);
+		childCount--;
+	}
+
+	/**
+	 * Moves the keys from slot from on, and the entries or children with the
+	 * same slots, to the front of dest. Splitting a node moves its upper half
+	 * into an empty dest; the children moved from an internal node are
+	 * re-parented to dest.
+	 * 
+	 * @param from
+	 *            is the first slot to be moved.
+	 * @param dest
+	 *            is the node receiving the keys.
+	 */
+	public void moveTail(int from, BTreeNode dest) {
+		int moved = keyCount - from;
+		dest.ensureCapacity(dest.keyCount + moved);
+		System.arraycopy(dest.keys, 0, dest.keys, moved * keyLength,
+				dest.keyCount * keyLength);
+		System.arraycopy(keys, from * keyLength, dest.keys, 0, moved
+				* keyLength);
+		if (isLeaf) {
+			System.arraycopy(dest.byteOffset, 0, dest.byteOffset, moved,
+					dest.keyCount);
+			System.arraycopy(byteOffset, from, dest.byteOffset, 0, moved);
+			System.arraycopy(dest.dataLength, 0, dest.dataLength, moved,
+					dest.keyCount);
+			System.arraycopy(dataLength, from, dest.dataLength, 0, moved);
+		} else {
+			int movedChildren = childCount - from;
+			dest.ensureChildCapacity(dest.childCount + movedChildren);
+			System.arraycopy(dest.childPage, 0, dest.childPage,
+					movedChildren, dest.childCount);
+			System.arraycopy(childPage, from, dest.childPage, 0,
+					movedChildren);
+			if (ptr != null) {
+				if (dest.ptr == null)
+					dest.ptr = new BTreeNode[dest.childPage.length];
+				System.arraycopy(dest.ptr, 0, dest.ptr, movedChildren,
+						dest.childCount);
+				System.arraycopy(ptr, from, dest.ptr, 0, movedChildren);
+				for (int count = 0; count < movedChildren; count++) {
+					dest.ptr[count].immediateParent = dest;
+					ptr[from + count] = null;
+				}
+			}
+			dest.childCount += movedChildren;
+			childCount = from;
+		}
+		dest.keyCount += moved;
+		keyCount = from;
+	}
+
+	// Makes room for the given no. of keys, and their entries in a leaf.
+	private void ensureCapacity(int capacity) {
+		if (keys.length < capacity * keyLength)
+			keys = Arrays.copyOf(keys,
+					Math.max(capacity, keys.length / keyLength * 2)
+							* keyLength);
+		if (isLeaf) {
+			int length = keys.length / keyLength;
+			if (byteOffset == null || byteOffset.length < length) {
+				byteOffset = byteOffset == null ? new long[length]
+						: Arrays.copyOf(byteOffset, length);
+				dataLength = dataLength == null ? new int[length]
+						: Arrays.copyOf(dataLength, length);
+			}
+		}
+	}
+
+	// Makes room for the given no. of children.
+	private void ensureChildCapacity(int capacity) {
+		if (childPage == null || childPage.length < capacity) {
+			int length = Math.max(capacity, keys.length / keyLength + 1);
+			if (childPage != null)
+				length = Math.max(length, childPage.length * 2);
+			childPage = childPage == null ? new int[length] : Arrays
+					.copyOf(childPage, length);
+			if (ptr != null)
+				ptr = Arrays.copyOf(ptr, length);
+		}
+	}
+
+	// Lists the keys, offsets and lengths of the node, for debugging.
+	public String toString() {
+		StringBuilder text = new StringBuilder("[");
+		for (int count = 0; count < keyCount; count++) {
+			text.append(count == 0 ? "" : ", ").append(
+					IndexFile.toKey(getKey(count)));
+			if (isLeaf)
+				text.append(" : ").append(byteOffset[count]).append(" : ")
+						.append(dataLength[count]);
+		}
+		return text.append("]").toString();
+	}
+}
@@ -0,0 +1,601 @@
+/**
+Fixed size cache of index pages. The pool owns a single off-heap block of
+capacity * PAGE_SIZE bytes which is divided into frames, so its memory use
+doesn't grow with the size of the index.
+
+A page must be pinned while it is being used and unpinned afterwards. Pinned
+pages are never evicted. When a page which isn't cached is requested and no
+frame is free, a victim is chosen with the CLOCK algorithm: every frame has a
+usage count which is bumped on each hit (up to MAX_USAGE) and decremented as
+the clock hand passes over it, and the first unpinned frame with a count of
+zero is evicted. Frequently visited pages such as the root and the upper
+internal levels therefore stay cached. Dirty victims are written back before
+their frame is reused.
+
+While the pool keeps dirty pages (see keepDirtyPages), a dirty victim is not
+written back but copied to the heap until the next flush, so the index file
+keeps the pages as of the last flush. The copy goes back into a frame when the
+page is needed again.
+
+A page can also be loaded without blocking on the file (see loadAsync): a page
+which isn't cached is read through an AsynchronousFileChannel outside of the
+pool's lock, and only goes into a frame if the file hasn't been written to
+while it was read. Otherwise the read may have seen a page half written, or one
+which has changed since, and it is started again.
+
+The pool's lock is a ReentrantLock, and it is never held during file I/O, so
+that a virtual thread waiting for the disk doesn't pin its carrier and other
+pages can be pinned meanwhile. A page which isn't cached is read into its frame
+with the lock released, and others pinning the page wait until it is read.
+Dirty pages are copied, and the copies are written back with the lock released.
+Until a copy is on the disk it stands in for the page: the page is taken from
+the copy if it is pinned again, and it isn't written again meanwhile.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+class BufferPool {
+
+	static final int MAX_USAGE = 5; // Upper bound of the CLOCK usage count.
+
+	private final FileChannel channel;
+	private final int capacity;
+	private final ByteBuffer[] frames; // One PAGE_SIZE slice per frame.
+	private final int[] framePage; // Page held by each frame.
+	private final int[] pinCount; // No. of users of each frame.
+	private final int[] usage; // CLOCK usage count of each frame.
+	private final boolean[] dirty; // True if the frame differs from disk.
+	private final boolean[] loading; // True while the page is being read.
+	private final Map<Integer, Integer> pageTable; // Page to frame.
+	// Dirty pages evicted while dirty pages are kept, by page.
+	private final Map<Integer, ByteBuffer> keptPages = new HashMap<Integer, ByteBuffer>();
+	// Copies of pages being written back, by page.
+	private final Map<Integer, ByteBuffer> writing = new HashMap<Integer, ByteBuffer>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition ready = lock.newCondition(); // I/O has finished.
+	private boolean keepDirty;
+	private int clockHand;
+	private long fileVersion; // Changes whenever pages of the file do.
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long writes;
+
+	/**
+	 * Creates a pool over an open index file.
+	 *
+	 * @param channel
+	 *            is the channel of the index file.
+	 * @param capacity
+	 *            is the no. of pages the pool can hold.
+	 */
+	BufferPool(FileChannel channel, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException(
+					"Buffer pool needs at least one frame");
+		this.channel = channel;
+		this.capacity = capacity;
+		this.frames = new ByteBuffer[capacity];
+		this.framePage = new int[capacity];
+		this.pinCount = new int[capacity];
+		this.usage = new int[capacity];
+		this.dirty = new boolean[capacity];
+		this.loading = new boolean[capacity];
+		this.pageTable = new HashMap<Integer, Integer>(capacity * 2);
+
+		ByteBuffer memory = ByteBuffer.allocateDirect(capacity
+				* IndexFile.PAGE_SIZE);
+		for (int count = 0; count < capacity; count++) {
+			memory.limit((count + 1) * IndexFile.PAGE_SIZE);
+			memory.position(count * IndexFile.PAGE_SIZE);
+			frames[count] = memory.slice();
+			framePage[count] = IndexFile.NO_PAGE;
+		}
+	}
+
+	/**
+	 * Pins a page, reading it from the file if it isn't cached. The returned
+	 * buffer is only valid until the page is unpinned.
+	 *
+	 * @param pageId
+	 *            is the page to be pinned.
+	 * @return the frame holding the page.
+	 */
+	ByteBuffer pin(int pageId) throws IOException {
+		lock.lock();
+		try {
+			return frames[pinFrame(pageId, true)];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Pins a page which is going to be overwritten completely. The page isn't
+	 * read from the file if it isn't cached, and the frame is cleared.
+	 *
+	 * @param pageId
+	 *            is the page to be pinned.
+	 * @return the frame for the page.
+	 */
+	ByteBuffer pinForOverwrite(int pageId) throws IOException {
+		lock.lock();
+		try {
+			int frame = pinFrame(pageId, false);
+			ByteBuffer buffer = frames[frame];
+			for (int count = 0; count < IndexFile.PAGE_SIZE; count += 8)
+				buffer.putLong(count, 0l);
+			return buffer;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases a page pinned by pin or pinForOverwrite.
+	 *
+	 * @param pageId
+	 *            is the page to be released.
+	 * @param isDirty
+	 *            is true if the page was modified.
+	 */
+	void unpin(int pageId, boolean isDirty) {
+		lock.lock();
+		try {
+			Integer frame = pageTable.get(pageId);
+			if (frame == null || pinCount[frame] == 0)
+				throw new IllegalStateException("Page " + pageId
+						+ " is not pinned");
+			pinCount[frame]--;
+			if (isDirty)
+				dirty[frame] = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Finds or loads the frame of a page and pins it. Called with the lock
+	// held, which is released while the page is read or a victim written.
+	private int pinFrame(int pageId, boolean read) throws IOException {
+		int frame = -1; // Free frame, as long as the lock wasn't released.
+		while (true) {
+			Integer cached = pageTable.get(pageId);
+			if (cached == null && frame >= 0)
+				break;
+			if (cached == null) {
+				// The page may be cached once evict returns.
+				frame = evict();
+			} else if (loading[cached]) {
+				frame = -1;
+				ready.awaitUninterruptibly();
+			} else {
+				hits++;
+				pinCount[cached]++;
+				if (usage[cached] < MAX_USAGE)
+					usage[cached]++;
+				return cached;
+			}
+		}
+
+		misses++;
+		ByteBuffer kept = keptPages.remove(pageId);
+		ByteBuffer copy = kept != null ? kept : writing.get(pageId);
+		if (copy != null)
+			frames[frame].duplicate().put(copy.duplicate());
+		assign(frame, pageId, kept != null);
+		if (copy == null && read)
+			load(frame, pageId);
+		return frame;
+	}
+
+	// Reads a page into the frame assigned to it with the lock released.
+	// Others pinning the page wait until it is read.
+	private void load(int frame, int pageId) throws IOException {
+		loading[frame] = true;
+		boolean read = false;
+		lock.unlock();
+		try {
+			readPage(pageId, frames[frame]);
+			read = true;
+		} finally {
+			lock.lock();
+			loading[frame] = false;
+			if (!read) {
+				pageTable.remove(pageId);
+				framePage[frame] = IndexFile.NO_PAGE;
+				pinCount[frame] = 0;
+				usage[frame] = 0;
+			}
+			ready.signalAll();
+		}
+	}
+
+	// Checks if a page is in a frame or stands in by a copy.
+	private boolean isCached(int pageId) {
+		return pageTable.containsKey(pageId) || keptPages.containsKey(pageId)
+				|| writing.containsKey(pageId);
+	}
+
+	// Puts a page into a free frame, pinned once.
+	private void assign(int frame, int pageId, boolean isDirty) {
+		framePage[frame] = pageId;
+		pinCount[frame] = 1;
+		usage[frame] = 1;
+		dirty[frame] = isDirty;
+		pageTable.put(pageId, frame);
+	}
+
+	/**
+	 * Pins a page if it is cached, or kept outside of the frames.
+	 *
+	 * @param pageId
+	 *            is the page to be pinned.
+	 * @return the frame holding the page, or null if the page would have to
+	 *         be read from the file.
+	 */
+	ByteBuffer pinCached(int pageId) throws IOException {
+		lock.lock();
+		try {
+			if (!isCached(pageId))
+				return null;
+			return frames[pinFrame(pageId, true)];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads a page which isn't cached through an asynchronous channel and
+	 * puts it into a frame, unpinned. The future completes in the thread
+	 * which completes the read, with a copy of the page which the caller may
+	 * keep. It completes with null if the page wasn't put into a frame: it
+	 * was cached when it was asked for or has been cached since, or the file
+	 * was written to while the page was read, so the read may have seen it
+	 * half written. The caller then starts over with pinCached.
+	 *
+	 * @param pageId
+	 *            is the page to be read.
+	 * @param asyncChannel
+	 *            is a channel of the index file open for reading.
+	 * @return the future of the page, or of null.
+	 */
+	CompletableFuture<ByteBuffer> loadAsync(final int pageId,
+			final AsynchronousFileChannel asyncChannel) {
+		final long version;
+		lock.lock();
+		try {
+			if (isCached(pageId))
+				return CompletableFuture.completedFuture(null);
+			version = fileVersion;
+		} finally {
+			lock.unlock();
+		}
+		ByteBuffer page = ByteBuffer.allocate(IndexFile.PAGE_SIZE);
+		return IndexFile.readAsync(asyncChannel, page,
+				(long) pageId * IndexFile.PAGE_SIZE).thenApply(
+				new Function<ByteBuffer, ByteBuffer>() {
+					public ByteBuffer apply(ByteBuffer page) {
+						if (page.hasRemaining())
+							throw new CompletionException(new IOException(
+									"Page " + pageId
+											+ " is past the end of the index file"));
+						page.flip();
+						try {
+							return install(pageId, page, version) ? page : null;
+						} catch (IOException ex) {
+							throw new CompletionException(ex);
+						}
+					}
+				});
+	}
+
+	// Puts a page read from the file at a version of it into a frame, unless
+	// it has been cached since or the file has been written to.
+	private boolean install(int pageId, ByteBuffer page, long version)
+			throws IOException {
+		lock.lock();
+		try {
+			if (isCached(pageId) || version != fileVersion)
+				return false;
+			int frame = evict();
+			// Writing a victim back changes the version.
+			if (isCached(pageId) || version != fileVersion)
+				return false;
+			misses++;
+			frames[frame].duplicate().put(page.duplicate());
+			assign(frame, pageId, false);
+			pinCount[frame] = 0;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Runs the clock hand until an unpinned frame with no recent use is found
+	// and frees it. A dirty victim is written back with the lock released,
+	// while the frame stays taken.
+	private int evict() throws IOException {
+		// Every unpinned frame reaches a usage count of zero after at most
+		// MAX_USAGE + 1 turns of the clock.
+		for (int step = 0; step < capacity * (MAX_USAGE + 2); step++) {
+			int frame = clockHand;
+			clockHand = (clockHand + 1) % capacity;
+			if (pinCount[frame] > 0)
+				continue;
+			if (framePage[frame] != IndexFile.NO_PAGE && usage[frame] > 0) {
+				usage[frame]--;
+				continue;
+			}
+
+			if (framePage[frame] != IndexFile.NO_PAGE) {
+				int pageId = framePage[frame];
+				ByteBuffer victim = null;
+				// A page still being written is kept, as two writes of it
+				// could reach the disk in either order.
+				if (dirty[frame] && (keepDirty || writing.containsKey(pageId)))
+					keptPages.put(pageId, copy(frames[frame]));
+				else if (dirty[frame])
+					victim = copy(frames[frame]);
+				pageTable.remove(pageId);
+				framePage[frame] = IndexFile.NO_PAGE;
+				dirty[frame] = false;
+				evictions++;
+				if (victim != null) {
+					pinCount[frame] = 1;
+					try {
+						writeBack(Collections.singletonMap(pageId, victim));
+					} finally {
+						pinCount[frame] = 0;
+					}
+				}
+			}
+			return frame;
+		}
+		throw new IllegalStateException("All " + capacity
+				+ " buffer pool frames are pinned");
+	}
+
+	/**
+	 * Writes every dirty page back to the file.
+	 */
+	void flush() throws IOException {
+		lock.lock();
+		try {
+			// Earlier copies of the pages go to the disk first.
+			while (!writing.isEmpty())
+				ready.awaitUninterruptibly();
+			Map<Integer, ByteBuffer> pages = new TreeMap<Integer, ByteBuffer>(
+					keptPages);
+			keptPages.clear();
+			for (int frame = 0; frame < capacity; frame++) {
+				if (dirty[frame]) {
+					pages.put(framePage[frame], copy(frames[frame]));
+					dirty[frame] = false;
+				}
+			}
+			if (!pages.isEmpty())
+				writeBack(pages);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Writes copies of pages back in the order of the map with the lock
+	// released. Meanwhile the copies stand in for the pages. A page which
+	// couldn't be written is dirty again.
+	private void writeBack(Map<Integer, ByteBuffer> pages) throws IOException {
+		writing.putAll(pages);
+		fileVersion++;
+		Map<Integer, ByteBuffer> unwritten = new HashMap<Integer, ByteBuffer>(
+				pages);
+		lock.unlock();
+		try {
+			for (Map.Entry<Integer, ByteBuffer> page : pages.entrySet()) {
+				writePage(page.getKey(), page.getValue());
+				unwritten.remove(page.getKey());
+			}
+		} finally {
+			lock.lock();
+			fileVersion++;
+			writes += pages.size() - unwritten.size();
+			for (Integer pageId : pages.keySet())
+				writing.remove(pageId);
+			for (Map.Entry<Integer, ByteBuffer> page : unwritten.entrySet()) {
+				Integer frame = pageTable.get(page.getKey());
+				if (frame != null)
+					dirty[frame] = true;
+				else if (!keptPages.containsKey(page.getKey()))
+					keptPages.put(page.getKey(), page.getValue());
+			}
+			ready.signalAll();
+		}
+	}
+
+	/**
+	 * Sets if dirty pages are kept until the next flush instead of being
+	 * written back when they are evicted.
+	 *
+	 * @param keepDirty
+	 *            is true to keep the dirty pages.
+	 */
+	void keepDirtyPages(boolean keepDirty) {
+		lock.lock();
+		try {
+			this.keepDirty = keepDirty;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns copies of the dirty pages, the cached ones, the ones kept
+	 * outside of the frames and the ones being written back.
+	 *
+	 * @return the pages by page number.
+	 */
+	Map<Integer, ByteBuffer> dirtyPages() {
+		lock.lock();
+		try {
+			// The frames and the kept pages are newer than the copies being
+			// written.
+			Map<Integer, ByteBuffer> pages = new TreeMap<Integer, ByteBuffer>();
+			for (Map.Entry<Integer, ByteBuffer> page : writing.entrySet())
+				pages.put(page.getKey(), page.getValue().duplicate());
+			for (int frame = 0; frame < capacity; frame++) {
+				if (dirty[frame])
+					pages.put(framePage[frame], copy(frames[frame]));
+			}
+			for (Map.Entry<Integer, ByteBuffer> page : keptPages.entrySet())
+				pages.put(page.getKey(), page.getValue().duplicate());
+			return pages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the no. of dirty pages kept outside of the frames.
+	 */
+	int keptPageCount() {
+		lock.lock();
+		try {
+			return keptPages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the cached copies of every page from pageId onwards, used when the
+	 * file is truncated. Dropped pages must not be pinned.
+	 *
+	 * @param pageId
+	 *            is the first page to be dropped.
+	 */
+	void discardFrom(int pageId) {
+		lock.lock();
+		try {
+			// A write back would grow the file again.
+			while (!writing.isEmpty())
+				ready.awaitUninterruptibly();
+			for (int frame = 0; frame < capacity; frame++) {
+				if (framePage[frame] != IndexFile.NO_PAGE
+						&& framePage[frame] >= pageId) {
+					pageTable.remove(framePage[frame]);
+					framePage[frame] = IndexFile.NO_PAGE;
+					dirty[frame] = false;
+					usage[frame] = 0;
+				}
+			}
+			Iterator<Integer> pages = keptPages.keySet().iterator();
+			while (pages.hasNext()) {
+				if (pages.next() >= pageId)
+					pages.remove();
+			}
+			fileVersion++; // The file is cut off, or left as it was.
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void readPage(int pageId, ByteBuffer frame) throws IOException {
+		ByteBuffer buffer = frame.duplicate();
+		buffer.clear();
+		long position = (long) pageId * IndexFile.PAGE_SIZE;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0)
+				throw new IOException("Page " + pageId
+						+ " is past the end of the index file");
+		}
+	}
+
+	private static ByteBuffer copy(ByteBuffer frame) {
+		ByteBuffer source = frame.duplicate();
+		source.clear();
+		ByteBuffer page = ByteBuffer.allocate(IndexFile.PAGE_SIZE);
+		page.put(source);
+		page.clear();
+		return page;
+	}
+
+	private void writePage(int pageId, ByteBuffer frame) throws IOException {
+		ByteBuffer buffer = frame.duplicate();
+		buffer.clear();
+		long position = (long) pageId * IndexFile.PAGE_SIZE;
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	long getHits() {
+		lock.lock();
+		try {
+			return hits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getMisses() {
+		lock.lock();
+		try {
+			return misses;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getEvictions() {
+		lock.lock();
+		try {
+			return evictions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getWrites() {
+		lock.lock();
+		try {
+			return writes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a one line summary of the pool counters.
+	 */
+	String statistics() {
+		lock.lock();
+		try {
+			long requests = hits + misses;
+			return "Buffer pool: " + capacity + " frames, " + hits
+					+ " hits, " + misses + " misses ("
+					+ (requests == 0 ? 0 : (100 * hits / requests))
+					+ "% hit rate), " + evictions + " evictions, " + writes
+					+ " page writes";
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/**
+Builds a B+ tree bottom up from entries which arrive in ascending key order.
+Leaves are packed left to right up to the fill factor and every time a node is
+complete its first key and page number are handed to the level above, so the
+internal levels are built in the same single pass. Only the node being filled
+and one completed node per level are kept in memory, and pages are allocated
+and written in the order they are completed.
+
+The completed node is held back until the next one at its level is complete,
+so that the last two nodes of a level can share their entries when the last
+one would otherwise be left nearly empty.
+
+The key handed up for a leaf is the shortest separator between the last key of
+the leaf before it and its first key, and internal nodes are filled up to the
+fill factor of a page in bytes (see IndexFile.prefixedPageSize) rather than up
+to a number of children, so short separators give a larger fan-out. When the
+index has compressed leaves, leaves are filled by their encoded size too.
+
+Every node is linked to the next one on its level when that is started, and
+gets the low of the next one as its high key when it is completed.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+class BulkLoader {
+
+	// State of one level of the tree while it is being built.
+	private static class Level {
+		BTreeNode pending; // Completed node which hasn't been written yet.
+		byte[] pendingLow; // First key of the sub tree of pending.
+		BTreeNode current; // Node being filled.
+		byte[] currentLow; // First key of the sub tree of current.
+		int nodeCount; // No. of nodes created at this level.
+	}
+
+	private final IndexFile index;
+	private final int leafFill; // Keys per leaf, or bytes per compressed leaf.
+	private final int internalFill; // Bytes per internal node page.
+	private final List<Level> levels = new ArrayList<Level>();
+	private byte[] lastKey; // Last key added, to check the order.
+	private long entryCount; // No. of entries added to the tree.
+	private int leafBytes; // Encoded size of the current compressed leaf.
+
+	/**
+	 * @param index
+	 *            is the newly created index file the tree is written to.
+	 * @param fillFactor
+	 *            is the fraction of each node to be filled, between 0 and 1.
+	 */
+	BulkLoader(IndexFile index, double fillFactor) {
+		if (fillFactor <= 0 || fillFactor > 1)
+			throw new IllegalArgumentException("Fill factor " + fillFactor
+					+ " is not between 0 and 1");
+		if (index.degree < 3)
+			throw new IllegalArgumentException("Degree " + index.degree
+					+ " is too small for a B+ tree");
+		this.index = index;
+		// A leaf may hold at most degree - 1 keys, unless it is compressed.
+		// Internal nodes get at least three children (see complete) so that
+		// the last two of a level can always be evened out to two children
+		// each.
+		if (index.compressedLeaves)
+			this.leafFill = (int) (fillFactor * (IndexFile.PAGE_SIZE
+					- IndexFile.NODE_HEADER_SIZE - index.keyLength));
+		else
+			this.leafFill = Math.max(1, (int) (fillFactor * (index.degree - 1)));
+		this.internalFill = (int) (fillFactor * IndexFile.PAGE_SIZE);
+	}
+
+	/**
+	 * Adds the next entry to the tree. A key equal to the previous one is
+	 * rejected, the same way ConcurrentIndex.insert rejects duplicates.
+	 *
+	 * @param entry
+	 *            is an entry with a key not less than the previous key.
+	 */
+	void add(IndexEntry entry) throws IOException {
+		byte[] previousKey = lastKey;
+		if (lastKey != null) {
+			int diff = IndexEntry.compareKeys(entry.key, lastKey);
+			if (diff == 0) {
+				System.out.println("Data exists. Duplicates not allowed.");
+				return;
+			} else if (diff < 0) {
+				throw new IllegalArgumentException(
+						"Entries must be added in key order");
+			}
+		}
+		lastKey = entry.key;
+		entryCount++;
+
+		Level leaves = level(0);
+		if (leaves.current == null)
+			startNode(0);
+		else if (!index.compressedLeaves && leaves.current.keyCount == leafFill)
+			nextNode(0);
+
+		BTreeNode leaf = leaves.current;
+		leaf.addEntry(entry.key, entry.byteOffset, entry.dataLength);
+		if (index.compressedLeaves) {
+			int entrySize = CompressedLeaf.entrySize(leaf, leaf.keyCount - 1);
+			if (leaf.keyCount > 1 && leafBytes + entrySize > leafFill) {
+				// The entry doesn't fit; it starts the next leaf instead.
+				leaf.keyCount--;
+				nextNode(0);
+				leaf = leaves.current;
+				leaf.addEntry(entry.key, entry.byteOffset, entry.dataLength);
+				entrySize = CompressedLeaf.entrySize(leaf, 0);
+				leafBytes = 0;
+			}
+			leafBytes += entrySize;
+		}
+		if (leaf.keyCount == 1)
+			leaves.currentLow = previousKey == null ? entry.key : IndexFile
+					.separator(previousKey, entry.key);
+	}
+
+	/**
+	 * Writes the nodes which are still in memory, completing every level up
+	 * to the root, and records the root in the metadata.
+	 */
+	void finish() throws IOException {
+		if (levels.isEmpty()) {
+			// No entries at all, the tree is a single empty leaf.
+			startNode(0);
+		}
+
+		for (int count = 0; count < levels.size(); count++) {
+			Level level = levels.get(count);
+			if (level.nodeCount == 1) {
+				// The only node of the top level is the root.
+				index.writeNode(level.current);
+				index.rootPage = level.current.pageId;
+				break;
+			}
+			if (tooSmall(level.current))
+				redistribute(level);
+			level.pending.highKey = level.currentLow;
+			complete(count, level.pending, level.pendingLow);
+			complete(count, level.current, level.currentLow);
+		}
+
+		index.pool.flush();
+		index.writeHeader();
+	}
+
+	/**
+	 * Returns the no. of distinct entries added to the tree.
+	 */
+	long getEntryCount() {
+		return entryCount;
+	}
+
+	private Level level(int levelNo) {
+		if (levelNo == levels.size())
+			levels.add(new Level());
+		return levels.get(levelNo);
+	}
+
+	// Creates a new node at the level, linking it to the previous node.
+	private void startNode(int levelNo) {
+		Level level = level(levelNo);
+		BTreeNode node = new BTreeNode(index.keyLength, index.degree);
+		node.isLeaf = levelNo == 0;
+		node.pageId = index.allocatePage();
+		if (level.current != null) {
+			level.current.rightPage = node.pageId;
+			if (node.isLeaf)
+				node.prevLeafPage = level.current.pageId;
+		}
+		level.current = node;
+		level.currentLow = null;
+		level.nodeCount++;
+	}
+
+	// The current node of the level is full; write the one before it and
+	// start a new node.
+	private void nextNode(int levelNo) throws IOException {
+		Level level = level(levelNo);
+		if (level.pending != null) {
+			level.pending.highKey = level.currentLow;
+			complete(levelNo, level.pending, level.pendingLow);
+		}
+		level.pending = level.current;
+		level.pendingLow = level.currentLow;
+		startNode(levelNo);
+	}
+
+	// Writes a completed node and adds it to its parent.
+	private void complete(int levelNo, BTreeNode node, byte[] low)
+			throws IOException {
+		index.writeNode(node);
+
+		Level parents = level(levelNo + 1);
+		if (parents.current == null)
+			startNode(levelNo + 1);
+		else {
+			// Try the separator in the current parent, and start a new one if
+			// the page would be too full.
+			BTreeNode parent = parents.current;
+			parent.insertKey(parent.keyCount, low);
+			parent.addChildPage(node.pageId);
+			if (parent.childCount <= 3 || !tooFull(parent))
+				return;
+			parent.keyCount--;
+			parent.childCount--;
+			nextNode(levelNo + 1);
+		}
+
+		BTreeNode parent = parents.current;
+		parents.currentLow = low;
+		parent.addChildPage(node.pageId);
+	}
+
+	// Returns how full a leaf is, in keys or in bytes if it is compressed.
+	private int leafSize(BTreeNode leaf) {
+		return index.compressedLeaves ? CompressedLeaf.encodedSize(leaf)
+				: leaf.keyCount;
+	}
+
+	// Checks if an internal node takes more than the fill factor of a page,
+	// or doesn't fit in a page at all.
+	private boolean tooFull(BTreeNode node) {
+		return !IndexFile.fits(node, index.degree, index.compressedLeaves)
+				|| Math.min(IndexFile.plainPageSize(node),
+						IndexFile.prefixedPageSize(node)) > internalFill;
+	}
+
+	// Checks if the last node of a level holds less than half of a full one.
+	private boolean tooSmall(BTreeNode node) {
+		if (node.isLeaf)
+			return leafSize(node) < Math.max(1, leafFill / 2);
+		return node.childCount < 2
+				|| Math.min(IndexFile.plainPageSize(node),
+						IndexFile.prefixedPageSize(node)) < internalFill / 2;
+	}
+
+	// Moves entries from the end of the pending node to the front of the
+	// current node so that both hold about the same number.
+	private void redistribute(Level level) {
+		BTreeNode left = level.pending;
+		BTreeNode right = level.current;
+
+		if (right.isLeaf && index.compressedLeaves) {
+			// Entries differ in size, so move them one at a time.
+			while (left.keyCount > 1 && leafSize(right) < leafSize(left))
+				left.moveTail(left.keyCount - 1, right);
+			level.currentLow = IndexFile.separator(
+					left.getKey(left.keyCount - 1), right.getKey(0));
+		} else if (right.isLeaf) {
+			int move = (left.keyCount - right.keyCount) / 2;
+			left.moveTail(left.keyCount - move, right);
+			level.currentLow = IndexFile.separator(
+					left.getKey(left.keyCount - 1), right.getKey(0));
+		} else {
+			int move = (left.childCount - right.childCount) / 2;
+			if (move == 0)
+				return;
+			// The first key of the right node's old first child becomes a
+			// separator, the children moved keep the separators between
+			// them, and the key left of the first child moved becomes the
+			// new low.
+			int from = left.childCount - move;
+			right.insertKey(0, level.currentLow);
+			left.moveTail(from, right);
+			level.currentLow = left.getKey(from - 1);
+			left.keyCount = from - 1;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/**
+Encoding of compressed leaf pages. The entries of a leaf are sorted by key,
+their byte offsets mostly grow and their data lengths are mostly the same, so
+each entry is stored relative to the one before it:
+
+	varint    : no. of leading bytes the key shares with the previous key.
+	varint    : no. of bytes of the key which follow, without its padding.
+	bytes     : those bytes of the key.
+	varint    : byte offset minus the previous byte offset, zigzag encoded.
+	varint    : data length minus the previous data length, zigzag encoded.
+
+The first entry is relative to an empty key, offset 0 and length 0. Varints
+hold 7 bits per byte, low bits first, with the high bit set on every byte but
+the last. The page header is the same as for a plain leaf (see IndexFile),
+with the page type COMPRESSED_LEAF_PAGE.
+
+The entries can only be decoded in order, which a Cursor does on demand while
+a search walks the page; a lookup stops decoding at the first key which is
+not less than the key it is looking for.
+ */
+
+import java.nio.ByteBuffer;
+
+class CompressedLeaf {
+
+	/**
+	 * Returns the no. of bytes the entries of a leaf take when compressed,
+	 * without the page header.
+	 *
+	 * @param node
+	 *            is the leaf.
+	 */
+	static int encodedSize(BTreeNode node) {
+		int size = 0;
+		for (int count = 0; count < node.keyCount; count++)
+			size += entrySize(node, count);
+		return size;
+	}
+
+	/**
+	 * Returns the no. of bytes the entry at the given slot of a leaf takes
+	 * when compressed.
+	 *
+	 * @param node
+	 *            is the leaf.
+	 * @param slot
+	 *            is the slot of the entry.
+	 */
+	static int entrySize(BTreeNode node, int slot) {
+		int shared = shared(node, slot);
+		int suffixLength = keyEnd(node, slot, shared) - shared;
+		long previousOffset = slot == 0 ? 0 : node.byteOffset[slot - 1];
+		int previousLength = slot == 0 ? 0 : node.dataLength[slot - 1];
+		return varintSize(shared) + varintSize(suffixLength) + suffixLength
+				+ varintSize(zigzag(node.byteOffset[slot] - previousOffset))
+				+ varintSize(zigzag(node.dataLength[slot] - previousLength));
+	}
+
+	/**
+	 * Writes the entries of a leaf to a page, after the page header.
+	 *
+	 * @param node
+	 *            is the leaf.
+	 * @param page
+	 *            is a buffer of PAGE_SIZE bytes.
+	 */
+	static void encode(BTreeNode node, ByteBuffer page) {
+		page.position(IndexFile.NODE_HEADER_SIZE);
+		long previousOffset = 0;
+		int previousLength = 0;
+		for (int slot = 0; slot < node.keyCount; slot++) {
+			int shared = shared(node, slot);
+			int suffixLength = keyEnd(node, slot, shared) - shared;
+			putVarint(page, shared);
+			putVarint(page, suffixLength);
+			page.put(node.keys, slot * node.keyLength + shared, suffixLength);
+			putVarint(page, zigzag(node.byteOffset[slot] - previousOffset));
+			putVarint(page, zigzag(node.dataLength[slot] - previousLength));
+			previousOffset = node.byteOffset[slot];
+			previousLength = node.dataLength[slot];
+		}
+	}
+
+	/**
+	 * Reads all entries of a compressed leaf page into a node.
+	 *
+	 * @param page
+	 *            is a buffer holding the page at position 0.
+	 * @param node
+	 *            is the node, with room for the entries of the page.
+	 * @param keyCount
+	 *            is the no. of entries in the page.
+	 */
+	static void decode(ByteBuffer page, BTreeNode node, int keyCount) {
+		Cursor cursor = new Cursor(page, 0, node.keyLength, keyCount);
+		while (cursor.next()) {
+			System.arraycopy(cursor.key, 0, node.keys, cursor.slot
+					* node.keyLength, node.keyLength);
+			node.byteOffset[cursor.slot] = cursor.byteOffset;
+			node.dataLength[cursor.slot] = cursor.dataLength;
+		}
+		node.keyCount = keyCount;
+	}
+
+	/**
+	 * Decodes the entries of a compressed leaf page one at a time, straight
+	 * from the buffer holding the page.
+	 */
+	static class Cursor {
+		private final ByteBuffer buffer;
+		private final int keyCount;
+		private int position; // Position of the next entry in the buffer.
+		final byte[] key; // Key of the current entry, zero padded.
+		long byteOffset; // Byte offset of the current entry.
+		int dataLength; // Data length of the current entry.
+		int slot = -1; // Slot of the current entry.
+
+		/**
+		 * @param buffer
+		 *            is the buffer holding the page.
+		 * @param base
+		 *            is the position of the page in the buffer.
+		 * @param keyLength
+		 *            is the length of the keys.
+		 * @param keyCount
+		 *            is the no. of entries in the page.
+		 */
+		Cursor(ByteBuffer buffer, int base, int keyLength, int keyCount) {
+			this.buffer = buffer;
+			this.keyCount = keyCount;
+			this.position = base + IndexFile.NODE_HEADER_SIZE;
+			this.key = new byte[keyLength];
+		}
+
+		/**
+		 * Moves to the next entry.
+		 *
+		 * @return false if there are no more entries.
+		 */
+		boolean next() {
+			if (slot + 1 >= keyCount)
+				return false;
+			slot++;
+			int shared = (int) getVarint();
+			int suffixLength = (int) getVarint();
+			for (int count = 0; count < suffixLength; count++)
+				key[shared + count] = buffer.get(position++);
+			for (int count = shared + suffixLength; count < key.length; count++)
+				key[count] = 0;
+			byteOffset += unzigzag(getVarint());
+			dataLength += (int) unzigzag(getVarint());
+			return true;
+		}
+
+		/**
+		 * Moves to the first entry whose key is not less than the search
+		 * key.
+		 *
+		 * @return the comparison of that key with the search key, or -1 if
+		 *         every key of the page is less.
+		 */
+		int seek(byte[] pSearchKey) {
+			while (next()) {
+				int diff = compareKey(pSearchKey);
+				if (diff >= 0)
+					return diff;
+			}
+			return -1;
+		}
+
+		/**
+		 * Compares the key of the current entry with a search key, the same
+		 * way as MappedIndexReader.compareKey.
+		 */
+		int compareKey(byte[] pSearchKey) {
+			return MappedIndexReader.compareKey(key, pSearchKey);
+		}
+
+		private long getVarint() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get(position++);
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+	}
+
+	// Returns the no. of leading bytes the key at the slot shares with the
+	// key before it.
+	private static int shared(BTreeNode node, int slot) {
+		if (slot == 0)
+			return 0;
+		int keyPos = slot * node.keyLength;
+		int previousPos = keyPos - node.keyLength;
+		int shared = 0;
+		while (shared < node.keyLength
+				&& node.keys[keyPos + shared] == node.keys[previousPos + shared])
+			shared++;
+		return shared;
+	}
+
+	// Returns the length of the key at the slot without its padding, but not
+	// less than from.
+	private static int keyEnd(BTreeNode node, int slot, int from) {
+		int keyPos = slot * node.keyLength;
+		int end = node.keyLength;
+		while (end > from && node.keys[keyPos + end - 1] == 0)
+			end--;
+		return end;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int varintSize(long value) {
+		int size = 1;
+		while ((value >>>= 7) != 0)
+			size++;
+		return size;
+	}
+
+	private static void putVarint(ByteBuffer page, long value) {
+		while ((value & ~0x7fl) != 0) {
+			page.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		page.put((byte) value);
+	}
+}
@@ -0,0 +1,1524 @@
+/**
+Thread safe handle of an index file. Any number of threads may look keys up
+and insert entries at the same time; the tree is read and modified page by
+page through the buffer pool of the file, and every page has a PageLatch.
+
+The index is used as a B-link tree (see IndexFile): every node has a
+right-link and a high key, and a search which finds its key not less than the
+high key of a node moves right. A node which is split keeps its lower half,
+and the upper half goes to a new node to its right before the separator is
+added to the parent, so from the moment the split node is written its keys are
+found through its right-link, even by a search which read the parent before
+the split.
+
+Lookups therefore take no latches and never start over from the root. They
+only read each page at a stable version of its latch, reading the page again
+if a writer was changing it at the same time, so that they don't decode a
+page which is half written.
+
+An insert walks down the same way, remembering the last node it visited at
+each level, and write latches the leaf, moving right if the leaf was split in
+the meantime. If the leaf has to be split, the latch of the leaf is released
+once both halves are written, and only then is the parent latched to add the
+separator, so a writer holds the latch of a single node at a time. The one
+exception is the previous leaf link of the leaf to the right of a split leaf,
+which is changed while the split leaf is still latched; latches are always
+taken from left to right, so this can't deadlock.
+
+A long scan which must not see the inserts made after it started takes a
+Snapshot and reads through it. The pages are the same for every reader; each
+insert records its key in a VersionTable with a timestamp before writing it,
+and a snapshot skips the keys inserted after it. As splits only ever move keys
+to the right, a scan which follows the right-links meets every key once.
+
+Every insert is appended to a WriteAheadLog before its leaf is changed, and an
+index opened again replays the inserts still in the log. The changed pages,
+and the metadata, are only written by a checkpoint, when the index is closed
+or when the log or the changed pages held by the buffer pool have grown too
+large. Inserts wait for a checkpoint, so none is half way between the log and
+the pages.
+
+With bptree.writeBuffer set, inserts don't go to the tree at once but to a
+sorted write buffer in memory, and once it holds that many entries they are
+merged into the tree in a single sorted pass, like insertBatch, so that inserts
+at random keys change each leaf once per merge rather than once per insert.
+The entries of the buffer are kept in the write-ahead log until they are
+merged; a checkpoint merges the buffer first. Lookups and lists read the buffer
+before the tree, so an entry which is being merged is found in one or both, and
+combine the two. A buffered entry carries the timestamp of its insert, which
+snapshots check instead of the VersionTable, and the key is recorded there
+with that timestamp when it is merged.
+
+A delete removes its entry from the write buffer or from its leaf at once,
+logged like an insert, and blanks the record out in the indexed file. The
+VersionTable keeps the entry for the snapshots which still see it. A leaf left
+with less than bptree.underflow of a page is only noted, and rebalanced by the
+next checkpoint, while no insert or delete is changing the tree: it is merged
+with its left sibling under the same parent, or the first child with its right
+sibling, the right node of the two going into the left one; if both don't fit
+in a page, entries move from the left node into the right one instead. Either
+way keys only move right, so a lookup which read the parent before still finds
+its key through the right-links. A parent which loses a child is rebalanced
+the same way, and a root left with a single child is replaced by it. The pages
+merged away are parked with the epoch of the lookups which may still be reading
+them, and freed by the first checkpoint after those lookups are done, so none
+is reused under a lookup and no insert or delete waits for a long scan. A page
+still parked when the index is closed with lookups running, or cut off, is
+lost to the free list.
+
+findAsync and scanAsync look keys up without blocking the caller on the index
+file: a page which isn't cached is read through an AsynchronousFileChannel, and
+the walk goes on in the thread which completes the read, so that many lookups
+wait for their pages at the same time. readRecordAsync fetches the records from
+the indexed file the same way.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+class ConcurrentIndex {
+
+	private final IndexFile index;
+	private final ConcurrentHashMap<Integer, PageLatch> latches = new ConcurrentHashMap<Integer, PageLatch>();
+	private final Object rootLock = new Object(); // Guards a new root.
+	private final VersionTable versions = new VersionTable();
+	private volatile int rootPage;
+	// Held shared by inserts and exclusively by checkpoints.
+	private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+	private final WriteAheadLog log;
+	// Inserts not merged into the tree yet by key, or null without a buffer.
+	private final ConcurrentSkipListMap<byte[], BufferedEntry> writeBuffer;
+	private final int writeBufferSize; // No. of entries which start a merge.
+	private final AtomicInteger bufferedCount = new AtomicInteger();
+	private final AtomicBoolean merging = new AtomicBoolean();
+	private final AtomicInteger mergeCount = new AtomicInteger();
+	// Leaves left too empty by deletes, with a key they cover.
+	private final ConcurrentHashMap<Integer, byte[]> underflowed = new ConcurrentHashMap<Integer, byte[]>();
+	private final double underflow; // Fraction of a page a node must fill.
+	private final AtomicInteger deleteCount = new AtomicInteger();
+	private int freedCount; // No. of pages freed by rebalancing.
+	// Pages merged away by rebalancing, by the epoch in which they were,
+	// until the lookups of that epoch are done. Changed by checkpoints only.
+	private final TreeMap<Integer, List<Integer>> parkedPages = new TreeMap<Integer, List<Integer>>();
+	private int parkedCount; // No. of pages in parkedPages.
+	private String recovery; // What open recovered, null for nothing.
+	// Lookups in progress, counted in the current one of two epochs, so that
+	// the pages a rebalance merges away are freed after those which started
+	// before it.
+	private final AtomicInteger[] readers = { new AtomicInteger(),
+			new AtomicInteger() };
+	private volatile int epoch;
+	// Channel of readRecordAsync, opened by the first asynchronous read.
+	private AsynchronousFileChannel dataChannel;
+
+	/**
+	 * Consistent view of the index as of the moment it was taken. A snapshot
+	 * must be closed when it is no longer used.
+	 */
+	class Snapshot implements Closeable {
+		final long timestamp; // No insert after this one is seen.
+		private boolean closed;
+
+		private Snapshot(long timestamp) {
+			this.timestamp = timestamp;
+		}
+
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			versions.closeSnapshot(timestamp);
+		}
+	}
+
+	private ConcurrentIndex(IndexFile index, WriteAheadLog log) {
+		this.index = index;
+		this.log = log;
+		this.rootPage = index.rootPage;
+		this.writeBufferSize = IndexConfig.writeBufferSize();
+		this.writeBuffer = writeBufferSize == 0 ? null
+				: new ConcurrentSkipListMap<byte[], BufferedEntry>(
+						IndexEntry.KEY_ORDER);
+		this.underflow = IndexConfig.underflow();
+		index.pool.keepDirtyPages(true);
+	}
+
+	/**
+	 * Opens an index file for concurrent use, replaying the inserts and
+	 * deletes left in its write-ahead log.
+	 *
+	 * @param indexFile
+	 *            is the name of the index file.
+	 * @return the handle of the index.
+	 */
+	static ConcurrentIndex open(String indexFile) throws IOException {
+		WriteAheadLog log = WriteAheadLog.open(indexFile,
+				IndexFile.readCreationId(indexFile));
+		IndexFile file = null;
+		try {
+			// An interrupted checkpoint is finished before the file is read.
+			List<WriteAheadLog.Change> changes = log.recover();
+			file = IndexFile.open(indexFile, true);
+			ConcurrentIndex index = new ConcurrentIndex(file, log);
+			if (log.restoredPages() > 0)
+				index.recovery = "Restored " + log.restoredPages()
+						+ " pages of an interrupted checkpoint";
+			if (!changes.isEmpty()) {
+				index.replay(changes);
+				index.checkpoint();
+			}
+			return index;
+		} catch (IOException ex) {
+			log.close();
+			if (file != null) {
+				file.pool.discardFrom(0); // The log still has the inserts.
+				file.close();
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns the opened index file.
+	 */
+	IndexFile getIndexFile() {
+		return index;
+	}
+
+	/**
+	 * Looks a key up.
+	 *
+	 * @param pKey
+	 *            is the key; a key longer than keyLength bytes isn't present.
+	 * @return the entry of the key, or null if the key isn't present.
+	 */
+	IndexEntry find(byte[] pKey) throws IOException {
+		if (pKey.length > index.keyLength)
+			return null; // No key stored is that long.
+		byte[] key = padKey(pKey);
+		if (writeBuffer != null) {
+			IndexEntry buffered = writeBuffer.get(key);
+			if (buffered != null)
+				return buffered;
+		}
+		int epoch = beginRead();
+		try {
+			return findInTree(key);
+		} finally {
+			endRead(epoch);
+		}
+	}
+
+	// Looks a padded key up in the tree only.
+	private IndexEntry findInTree(byte[] key) throws IOException {
+		BTreeNode leaf = descend(rootPage, key, null);
+		int slot = leaf.search(key);
+		return slot < 0 ? null : new IndexEntry(leaf.getKey(slot),
+				leaf.byteOffset[slot], leaf.dataLength[slot]);
+	}
+
+	/**
+	 * Looks many keys up in one walk of the tree. The keys are looked up in
+	 * key order, and the walk to a key starts from the lowest node on the
+	 * path to the key before it which still covers it, so keys in the same
+	 * leaf or sub tree share the nodes above them. Each key is found as of
+	 * some moment during the call, as with separate lookups.
+	 *
+	 * @param pKeys
+	 *            are the keys, in any order; keys longer than keyLength bytes
+	 *            aren't present.
+	 * @return the entries of the keys in the order of the keys, null for a
+	 *         key which isn't present.
+	 */
+	List<IndexEntry> findAll(List<byte[]> pKeys) throws IOException {
+		final List<byte[]> keys = new ArrayList<byte[]>();
+		List<Integer> order = new ArrayList<Integer>();
+		for (byte[] pKey : pKeys) {
+			// A key longer than the stored ones isn't present.
+			if (pKey.length <= index.keyLength)
+				order.add(keys.size());
+			keys.add(pKey.length <= index.keyLength ? padKey(pKey) : null);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer one, Integer two) {
+				return IndexEntry.compareKeys(keys.get(one), keys.get(two));
+			}
+		});
+		IndexEntry[] entries = new IndexEntry[keys.size()];
+		// The buffer is looked at for every key before the tree is read, as
+		// find does for one, since a leaf is reused for the keys after it.
+		if (writeBuffer != null) {
+			for (int no : order)
+				entries[no] = writeBuffer.get(keys.get(no));
+		}
+		List<BTreeNode> path = new ArrayList<BTreeNode>();
+		BTreeNode leaf = null;
+		int epoch = beginRead();
+		try {
+			for (int no : order) {
+				byte[] key = keys.get(no);
+				if (entries[no] != null)
+					continue;
+				if (leaf == null || beyond(leaf, key))
+					leaf = descendFrom(path, key);
+				int slot = leaf.search(key);
+				if (slot >= 0)
+					entries[no] = new IndexEntry(leaf.getKey(slot),
+							leaf.byteOffset[slot], leaf.dataLength[slot]);
+			}
+		} finally {
+			endRead(epoch);
+		}
+		return Arrays.asList(entries);
+	}
+
+	// Walks to the leaf covering a key from the lowest node of the path which
+	// still covers it, replacing the nodes below it on the path. The keys
+	// walked to must ascend.
+	private BTreeNode descendFrom(List<BTreeNode> path, byte[] key)
+			throws IOException {
+		while (!path.isEmpty() && beyond(path.get(path.size() - 1), key))
+			path.remove(path.size() - 1);
+		if (path.isEmpty())
+			return descend(rootPage, key, path);
+		BTreeNode node = path.get(path.size() - 1);
+		return descend(node.childPage[BTreeNode.childSlot(node.search(key))],
+				key, path);
+	}
+
+	/**
+	 * Takes a snapshot of the index.
+	 */
+	Snapshot snapshot() {
+		return new Snapshot(versions.openSnapshot());
+	}
+
+	/**
+	 * Looks a key up in a snapshot.
+	 *
+	 * @param snapshot
+	 *            is the snapshot to be read.
+	 * @param pKey
+	 *            is the key; a key longer than keyLength bytes isn't present.
+	 * @return the entry of the key, or null if the key isn't present in the
+	 *         snapshot.
+	 */
+	IndexEntry find(Snapshot snapshot, byte[] pKey) throws IOException {
+		if (pKey.length > index.keyLength)
+			return null;
+		byte[] key = padKey(pKey);
+		if (writeBuffer != null) {
+			BufferedEntry buffered = writeBuffer.get(key);
+			if (buffered != null)
+				return buffered.timestamp <= snapshot.timestamp ? buffered
+						: versions.deletedEntry(key, snapshot.timestamp);
+		}
+		IndexEntry entry;
+		int epoch = beginRead();
+		try {
+			entry = findInTree(key);
+		} finally {
+			endRead(epoch);
+		}
+		if (entry != null && versions.visible(entry.key, snapshot.timestamp))
+			return entry;
+		// The entry may have been deleted after the snapshot was taken.
+		return versions.deletedEntry(key, snapshot.timestamp);
+	}
+
+	/**
+	 * Lists the entries of a snapshot from a key on, in key order.
+	 *
+	 * @param snapshot
+	 *            is the snapshot to be read.
+	 * @param pKey
+	 *            is the first key to be listed, or the key after which the
+	 *            entries are listed if it isn't present.
+	 * @param count
+	 *            is the maximum no. of entries to be listed.
+	 * @return the entries.
+	 */
+	List<IndexEntry> list(Snapshot snapshot, byte[] pKey, int count)
+			throws IOException {
+		byte[] key = startKey(pKey);
+		if (key == null)
+			return new ArrayList<IndexEntry>();
+		List<IndexEntry> buffered = bufferedEntries(snapshot, key, count);
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		int epoch = beginRead();
+		try {
+			BTreeNode leaf = descend(rootPage, key, null);
+			int slot = startSlot(leaf, key);
+			while (addVisible(leaf, slot, snapshot, entries, count)) {
+				leaf = read(leaf.rightPage);
+				slot = 0;
+			}
+		} finally {
+			endRead(epoch);
+		}
+		return combine(entries, buffered, snapshot, key, count);
+	}
+
+	// Lists the entries of the write buffer a snapshot sees from a key on.
+	private List<IndexEntry> bufferedEntries(Snapshot snapshot, byte[] key,
+			int count) {
+		List<IndexEntry> buffered = new ArrayList<IndexEntry>();
+		if (writeBuffer != null) {
+			for (BufferedEntry entry : writeBuffer.tailMap(key).values()) {
+				if (buffered.size() == count)
+					break;
+				if (entry.timestamp <= snapshot.timestamp)
+					buffered.add(entry);
+			}
+		}
+		return buffered;
+	}
+
+	// Returns the slot of the first key of a leaf not less than the key.
+	private static int startSlot(BTreeNode leaf, byte[] key) {
+		int slot = leaf.search(key);
+		return slot < 0 ? -slot - 1 : slot;
+	}
+
+	// Adds the entries of a leaf from a slot on which a snapshot sees, up to
+	// count entries, and checks if the list goes on in the next leaf.
+	private boolean addVisible(BTreeNode leaf, int slot, Snapshot snapshot,
+			List<IndexEntry> entries, int count) {
+		for (; slot < leaf.keyCount && entries.size() < count; slot++) {
+			byte[] entryKey = leaf.getKey(slot);
+			if (versions.visible(entryKey, snapshot.timestamp))
+				entries.add(new IndexEntry(entryKey, leaf.byteOffset[slot],
+						leaf.dataLength[slot]));
+		}
+		return entries.size() < count && leaf.rightPage != IndexFile.NO_PAGE;
+	}
+
+	// Adds the buffered entries and the deleted ones the snapshot still sees
+	// to the entries listed from the leaves.
+	private List<IndexEntry> combine(List<IndexEntry> entries,
+			List<IndexEntry> buffered, Snapshot snapshot, byte[] key, int count) {
+		if (!buffered.isEmpty())
+			entries = merge(entries, buffered, count);
+		// Deletes record their entries before they remove them, so an entry
+		// deleted while the leaves were read is found here.
+		List<IndexEntry> deleted = versions.deletedEntries(key,
+				snapshot.timestamp, count);
+		return deleted.isEmpty() ? entries : merge(entries, deleted, count);
+	}
+
+	/**
+	 * Looks a key up without blocking on the index file. The pages which
+	 * aren't cached are read through an AsynchronousFileChannel, and the
+	 * lookup goes on in the thread which completes the read, so many lookups
+	 * can wait for their pages at the same time. If every page is cached the
+	 * future is complete when it is returned.
+	 *
+	 * @param pKey
+	 *            is the key; a key longer than keyLength bytes isn't present.
+	 * @return the future of the entry, or of null if the key isn't present.
+	 */
+	CompletableFuture<IndexEntry> findAsync(byte[] pKey) {
+		if (pKey.length > index.keyLength)
+			return CompletableFuture.completedFuture(null);
+		final byte[] key = padKey(pKey);
+		if (writeBuffer != null) {
+			IndexEntry buffered = writeBuffer.get(key);
+			if (buffered != null)
+				return CompletableFuture.completedFuture(buffered);
+		}
+		final int epoch = beginRead();
+		return descendAsync(rootPage, key).thenApply(
+				new Function<BTreeNode, IndexEntry>() {
+					public IndexEntry apply(BTreeNode leaf) {
+						int slot = leaf.search(key);
+						return slot < 0 ? null : new IndexEntry(leaf
+								.getKey(slot), leaf.byteOffset[slot],
+								leaf.dataLength[slot]);
+					}
+				}).whenComplete(new BiConsumer<IndexEntry, Throwable>() {
+			public void accept(IndexEntry entry, Throwable failure) {
+				endRead(epoch);
+			}
+		});
+	}
+
+	/**
+	 * Lists the entries from a key on, in key order, without blocking on the
+	 * index file, like findAsync. The list is read through a snapshot taken
+	 * when the method is called, so it is consistent however long the reads
+	 * take.
+	 *
+	 * @param pFrom
+	 *            is the first key to be listed, or the key after which the
+	 *            entries are listed if it isn't present.
+	 * @param limit
+	 *            is the maximum no. of entries to be listed.
+	 * @return the future of the entries.
+	 */
+	CompletableFuture<List<IndexEntry>> scanAsync(byte[] pFrom, final int limit) {
+		final byte[] key = startKey(pFrom);
+		if (key == null)
+			return CompletableFuture
+					.<List<IndexEntry>> completedFuture(new ArrayList<IndexEntry>());
+		final Snapshot snapshot = snapshot();
+		final List<IndexEntry> buffered = bufferedEntries(snapshot, key, limit);
+		final List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		final int epoch = beginRead();
+		return descendAsync(rootPage, key).thenCompose(
+				new Function<BTreeNode, CompletionStage<Void>>() {
+					public CompletionStage<Void> apply(BTreeNode leaf) {
+						return scanLeaves(leaf, startSlot(leaf, key),
+								snapshot, entries, limit);
+					}
+				}).whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void none, Throwable failure) {
+				endRead(epoch);
+			}
+		}).thenApply(new Function<Void, List<IndexEntry>>() {
+			public List<IndexEntry> apply(Void none) {
+				return combine(entries, buffered, snapshot, key, limit);
+			}
+		}).whenComplete(new BiConsumer<List<IndexEntry>, Throwable>() {
+			public void accept(List<IndexEntry> list, Throwable failure) {
+				snapshot.close();
+			}
+		});
+	}
+
+	// Adds the visible entries of the leaves from a slot of a leaf on to the
+	// list. The leaves which are cached are read in a loop; at a leaf which
+	// isn't, the scan goes on once it is read.
+	private CompletableFuture<Void> scanLeaves(BTreeNode leaf, int slot,
+			final Snapshot snapshot, final List<IndexEntry> entries,
+			final int limit) {
+		while (addVisible(leaf, slot, snapshot, entries, limit)) {
+			CompletableFuture<BTreeNode> next = readAsync(leaf.rightPage);
+			if (!next.isDone() || next.isCompletedExceptionally()) {
+				return next
+						.thenCompose(new Function<BTreeNode, CompletionStage<Void>>() {
+							public CompletionStage<Void> apply(BTreeNode next) {
+								return scanLeaves(next, 0, snapshot, entries,
+										limit);
+							}
+						});
+			}
+			leaf = next.join();
+			slot = 0;
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Reads the record of an entry from the indexed file through an
+	 * AsynchronousFileChannel.
+	 *
+	 * @param entry
+	 *            is the entry of the record.
+	 * @return the future of the record.
+	 */
+	CompletableFuture<byte[]> readRecordAsync(final IndexEntry entry) {
+		AsynchronousFileChannel channel;
+		try {
+			channel = dataChannel();
+		} catch (IOException ex) {
+			return failed(ex);
+		}
+		return IndexFile.readAsync(channel,
+				ByteBuffer.allocate(entry.dataLength), entry.byteOffset)
+				.thenApply(new Function<ByteBuffer, byte[]>() {
+					public byte[] apply(ByteBuffer record) {
+						if (record.hasRemaining())
+							throw new CompletionException(new IOException(
+									"Record at " + entry.byteOffset
+											+ " is past the end of "
+											+ index.inputFile));
+						return record.array();
+					}
+				});
+	}
+
+	/**
+	 * Reads the records of entries at the same time, as readRecordAsync.
+	 *
+	 * @param entries
+	 *            are the entries of the records.
+	 * @return the future of the records, in the order of the entries.
+	 */
+	CompletableFuture<List<byte[]>> readRecordsAsync(List<IndexEntry> entries) {
+		final List<CompletableFuture<byte[]>> reads = new ArrayList<CompletableFuture<byte[]>>();
+		for (IndexEntry entry : entries)
+			reads.add(readRecordAsync(entry));
+		return CompletableFuture.allOf(
+				reads.toArray(new CompletableFuture<?>[reads.size()]))
+				.thenApply(new Function<Void, List<byte[]>>() {
+					public List<byte[]> apply(Void none) {
+						List<byte[]> records = new ArrayList<byte[]>();
+						for (CompletableFuture<byte[]> read : reads)
+							records.add(read.join());
+						return records;
+					}
+				});
+	}
+
+	// Returns the channel readRecordAsync reads the indexed file through,
+	// opened by the first read.
+	private synchronized AsynchronousFileChannel dataChannel()
+			throws IOException {
+		if (dataChannel == null)
+			dataChannel = AsynchronousFileChannel.open(
+					Paths.get(index.inputFile), StandardOpenOption.READ);
+		return dataChannel;
+	}
+
+	// Merges two lists of entries in key order, dropping the second of two
+	// entries with the same key, up to count entries.
+	private static List<IndexEntry> merge(List<IndexEntry> first,
+			List<IndexEntry> second, int count) {
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		int one = 0;
+		int two = 0;
+		while (entries.size() < count
+				&& (one < first.size() || two < second.size())) {
+			int diff = one == first.size() ? 1 : two == second.size() ? -1
+					: IndexEntry.compareKeys(first.get(one).key,
+							second.get(two).key);
+			if (diff <= 0)
+				entries.add(first.get(one++));
+			else
+				entries.add(second.get(two++));
+			if (diff == 0)
+				two++;
+		}
+		return entries;
+	}
+
+	/**
+	 * Inserts an entry.
+	 *
+	 * @param pKey
+	 *            is the key, at most keyLength bytes.
+	 * @param byteOffset
+	 *            is the byte offset of the record.
+	 * @param dataLength
+	 *            is the length of the record.
+	 * @return false if the key is already present.
+	 */
+	boolean insert(byte[] pKey, long byteOffset, int dataLength)
+			throws IOException {
+		byte[] key = padKey(pKey);
+		Batch batch = new Batch();
+		batch.entries.add(new IndexEntry(key, byteOffset, dataLength));
+		checkpointLock.readLock().lock();
+		try {
+			log.append(batch.entries);
+			if (writeBuffer != null) {
+				bufferInsert(batch);
+			} else {
+				List<BTreeNode> path = new ArrayList<BTreeNode>();
+				insertRun(lockCovering(descend(rootPage, key, path).pageId,
+						key), path, batch);
+			}
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+		mergeIfFull();
+		checkpointIfFull();
+		return batch.inserted == 1;
+	}
+
+	/**
+	 * Inserts a batch of entries in a single pass over the tree. The entries
+	 * are sorted by key, every leaf gets all entries which belong to it at
+	 * once, and the walk down to the next leaf starts from the lowest node on
+	 * the path to the previous one which covers the next key too. Entries
+	 * whose key is already present, or is repeated in the batch, are left
+	 * out. With a write buffer, the entries go to the buffer instead.
+	 *
+	 * @param entries
+	 *            are the entries, with keys of at most keyLength bytes.
+	 * @return the no. of entries inserted.
+	 */
+	int insertBatch(List<IndexEntry> entries) throws IOException {
+		Batch batch = sortedBatch(entries);
+		checkpointLock.readLock().lock();
+		try {
+			log.append(batch.entries);
+			if (writeBuffer != null)
+				bufferInsert(batch);
+			else
+				insertBatch(batch);
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+		mergeIfFull();
+		checkpointIfFull();
+		return batch.inserted;
+	}
+
+	/**
+	 * Deletes the entry of a key and blanks its record out in the indexed
+	 * file. If the leaf is left too empty, it is rebalanced by the next
+	 * checkpoint.
+	 *
+	 * @param pKey
+	 *            is the key; a key longer than keyLength bytes isn't present.
+	 * @return the entry deleted, or null if the key isn't present.
+	 */
+	IndexEntry delete(byte[] pKey) throws IOException {
+		if (pKey.length > index.keyLength)
+			return null; // No key stored is that long.
+		byte[] key = padKey(pKey);
+		IndexEntry entry;
+		checkpointLock.readLock().lock();
+		try {
+			entry = find(key);
+			if (entry == null)
+				return null;
+			log.appendDelete(entry);
+			if (!deleteEntry(entry))
+				return null; // Another delete was first.
+			tombstone(entry);
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+		deleteCount.incrementAndGet();
+		checkpointIfFull();
+		return entry;
+	}
+
+	/**
+	 * Writes the dirty pages and the metadata, syncs them and empties the
+	 * write-ahead log, after merging the write buffer into the tree and
+	 * rebalancing the nodes left too empty by deletes. The
+	 * pages are logged before they are written, so that a checkpoint cut off
+	 * half way can be done again. Waits for the inserts in progress, and
+	 * inserts wait for the checkpoint.
+	 */
+	void checkpoint() throws IOException {
+		checkpoint(0, 0);
+	}
+
+	// Takes a checkpoint unless the write-ahead log is smaller than
+	// minLogSize and the buffer pool keeps less than minKeptPages dirty
+	// pages outside of its frames, which another checkpoint may have just
+	// brought them below.
+	private void checkpoint(long minLogSize, int minKeptPages)
+			throws IOException {
+		checkpointLock.writeLock().lock();
+		try {
+			if (log.size() < minLogSize
+					&& index.pool.keptPageCount() < minKeptPages)
+				return;
+			if (writeBuffer != null)
+				mergeWriteBuffer();
+			rebalance();
+			freeParkedPages();
+			index.writeFreeList();
+			index.rootPage = rootPage;
+			Map<Integer, ByteBuffer> pages = index.pool.dirtyPages();
+			if (pages.isEmpty() && log.size() == 0)
+				return;
+			pages.put(0, index.encodeHeader());
+			log.appendCheckpoint(pages);
+			index.sync();
+			log.clear();
+		} finally {
+			checkpointLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns what opening the index recovered from the write-ahead log in a
+	 * readable form, or null if the log was empty.
+	 */
+	String recovery() {
+		return recovery;
+	}
+
+	/**
+	 * Returns the statistics of the buffer pool and of the write-ahead log.
+	 */
+	String statistics() {
+		String statistics = index.pool.statistics() + "\n" + log.statistics();
+		if (writeBuffer != null)
+			statistics += "\nWrite buffer: " + bufferedCount.get()
+					+ " entries, " + mergeCount.get() + " merges";
+		if (deleteCount.get() > 0 || index.freePageCount() > 0)
+			statistics += "\nDeletes: " + deleteCount.get() + ", "
+					+ freedCount + " pages freed, " + parkedCount
+					+ " parked, " + index.freePageCount()
+					+ " free pages, " + index.deadBytes
+					+ " bytes of deleted records";
+		return statistics;
+	}
+
+	/**
+	 * Returns the no. of recently inserted keys held back from the open
+	 * snapshots, and of recently deleted entries kept for them.
+	 */
+	int versionCount() {
+		return versions.size();
+	}
+
+	// Entries being inserted, sorted by key and padded.
+	private static class Batch {
+		final List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		int next; // Next entry to be inserted.
+		int inserted; // No. of entries inserted.
+		boolean merged; // BufferedEntries of the write buffer.
+	}
+
+	// Entry of the write buffer with the timestamp of its insert.
+	private static class BufferedEntry extends IndexEntry {
+		final long timestamp;
+
+		BufferedEntry(IndexEntry entry, long timestamp) {
+			super(entry.key, entry.byteOffset, entry.dataLength);
+			this.timestamp = timestamp;
+		}
+	}
+
+	// Adds the entries of a batch which are neither in the tree nor in the
+	// write buffer to the buffer. The tree is checked again once an entry is
+	// in the buffer, as a merge may have just moved the same key there; the
+	// entry found may also be this one, if it has been merged meanwhile.
+	private void bufferInsert(Batch batch) throws IOException {
+		long timestamp = versions.beginInsert();
+		try {
+			for (IndexEntry entry : batch.entries) {
+				if (findInTree(entry.key) != null)
+					continue;
+				BufferedEntry buffered = new BufferedEntry(entry, timestamp);
+				if (writeBuffer.putIfAbsent(entry.key, buffered) != null)
+					continue;
+				bufferedCount.incrementAndGet();
+				IndexEntry present = findInTree(entry.key);
+				if (present != null
+						&& (present.byteOffset != entry.byteOffset || present.dataLength != entry.dataLength)) {
+					// Unless a merge has dropped it already.
+					if (writeBuffer.remove(entry.key, buffered))
+						bufferedCount.decrementAndGet();
+					continue;
+				}
+				batch.inserted++;
+			}
+		} finally {
+			versions.endInsert(timestamp);
+		}
+	}
+
+	// Merges the write buffer into the tree if it holds as many entries as
+	// it may, unless another insert is merging it already.
+	private void mergeIfFull() throws IOException {
+		if (writeBuffer == null || bufferedCount.get() < writeBufferSize
+				|| !merging.compareAndSet(false, true))
+			return;
+		checkpointLock.readLock().lock();
+		try {
+			mergeWriteBuffer();
+		} finally {
+			checkpointLock.readLock().unlock();
+			merging.set(false);
+		}
+	}
+
+	// Inserts the entries of the write buffer into the tree in one sorted
+	// pass, and then drops them from the buffer. Entries added meanwhile
+	// stay for the next merge.
+	private void mergeWriteBuffer() throws IOException {
+		Batch batch = new Batch();
+		batch.merged = true;
+		batch.entries.addAll(writeBuffer.values());
+		if (batch.entries.isEmpty())
+			return;
+		insertBatch(batch);
+		for (IndexEntry entry : batch.entries) {
+			if (writeBuffer.remove(entry.key, entry))
+				bufferedCount.decrementAndGet();
+		}
+		mergeCount.incrementAndGet();
+	}
+
+	// Inserts the next entries of the batch into a latched leaf as long as
+	// they belong to it, writes it, and releases it. If the leaf overflows it
+	// is split after the entry which made it overflow, and the separators
+	// are added to the parents. path holds the nodes visited on the way down.
+	private void insertRun(BTreeNode node, List<BTreeNode> path, Batch batch)
+			throws IOException {
+		BTreeNode right;
+		int inserted = 0;
+		long timestamp = versions.beginInsert();
+		try {
+			boolean fits = true;
+			while (fits && batch.next < batch.entries.size()) {
+				IndexEntry entry = batch.entries.get(batch.next);
+				if (beyond(node, entry.key))
+					break;
+				batch.next++;
+				if (batch.merged && writeBuffer.get(entry.key) != entry)
+					continue; // Deleted since the merge started.
+				int slot = node.search(entry.key);
+				if (slot >= 0)
+					continue; // The key is already present.
+				versions.record(entry.key, batch.merged ? ((BufferedEntry) entry).timestamp
+						: timestamp);
+				node.insertEntry(-slot - 1, entry.key, entry.byteOffset,
+						entry.dataLength);
+				inserted++;
+				fits = IndexFile.fits(node, index.degree,
+						index.compressedLeaves);
+			}
+			batch.inserted += inserted;
+			if (fits) {
+				if (inserted > 0)
+					index.writeNode(node);
+				latch(node.pageId).writeUnlock();
+				return;
+			}
+			right = split(node);
+		} finally {
+			versions.endInsert(timestamp);
+		}
+
+		// Add the separators of the split nodes to their parents.
+		for (int levelNo = 0;; levelNo++) {
+			byte[] separator = node.highKey;
+			if (path.size() <= levelNo && growRoot(node, right)) {
+				latch(node.pageId).writeUnlock();
+				return;
+			}
+			latch(node.pageId).writeUnlock();
+
+			node = lockCovering(parentPage(path, levelNo, separator), separator);
+			int slot = -node.search(separator) - 1;
+			node.insertKey(slot, separator);
+			node.insertChildPage(slot + 1, right.pageId);
+			if (IndexFile.fits(node, index.degree, index.compressedLeaves)) {
+				index.writeNode(node);
+				latch(node.pageId).writeUnlock();
+				return;
+			}
+			right = split(node);
+		}
+	}
+
+	/**
+	 * Takes a checkpoint and closes the file and the write-ahead log.
+	 */
+	void close() throws IOException {
+		boolean checkpointed = false;
+		try {
+			checkpoint();
+			checkpointed = true;
+		} finally {
+			// Without a checkpoint the file keeps the pages of the last one,
+			// and the log the inserts since.
+			if (!checkpointed)
+				index.pool.discardFrom(0);
+			try {
+				log.close();
+			} finally {
+				try {
+					synchronized (this) {
+						if (dataChannel != null)
+							dataChannel.close();
+					}
+				} finally {
+					index.close();
+				}
+			}
+		}
+	}
+
+	// Takes a checkpoint if the write-ahead log has grown too large, or the
+	// buffer pool keeps as many dirty pages outside of its frames as it has
+	// frames.
+	private void checkpointIfFull() throws IOException {
+		long logLimit = IndexConfig.walCheckpointSize();
+		int pageLimit = index.pool.getCapacity();
+		if (log.size() >= logLimit
+				|| index.pool.keptPageCount() >= pageLimit)
+			checkpoint(logLimit, pageLimit);
+	}
+
+	// Pads and sorts entries to be inserted.
+	private Batch sortedBatch(List<IndexEntry> entries) {
+		Batch batch = new Batch();
+		for (IndexEntry entry : entries)
+			batch.entries.add(new IndexEntry(padKey(entry.key),
+					entry.byteOffset, entry.dataLength));
+		Collections.sort(batch.entries, IndexEntry.FILE_ORDER);
+		return batch;
+	}
+
+	// Inserts a sorted batch. The walk down to the next leaf starts from the
+	// lowest node on the path to the previous one which covers the next key
+	// too.
+	private void insertBatch(Batch batch) throws IOException {
+		List<BTreeNode> path = new ArrayList<BTreeNode>();
+		while (batch.next < batch.entries.size()) {
+			byte[] key = batch.entries.get(batch.next).key;
+			// Keep the part of the path which covers the key; the nodes may
+			// have been split since, which the walk down finds out.
+			while (!path.isEmpty() && beyond(path.get(path.size() - 1), key))
+				path.remove(path.size() - 1);
+			int page = path.isEmpty() ? rootPage : path.remove(path.size() - 1).pageId;
+			BTreeNode leaf = descend(page, key, path);
+			insertRun(lockCovering(leaf.pageId, key), path, batch);
+		}
+	}
+
+	// Applies the inserts and deletes of the write-ahead log in order without
+	// logging them again, as they stay in the log until the checkpoint. Each
+	// run of inserts is inserted as a sorted batch.
+	private void replay(List<WriteAheadLog.Change> changes) throws IOException {
+		List<IndexEntry> inserts = new ArrayList<IndexEntry>();
+		int inserted = 0;
+		int insertCount = 0;
+		int deleted = 0;
+		int deleteCount = 0;
+		for (int count = 0; count <= changes.size(); count++) {
+			WriteAheadLog.Change change = count < changes.size() ? changes
+					.get(count) : null;
+			if (change != null && !change.delete) {
+				inserts.add(change.entry);
+				continue;
+			}
+			if (!inserts.isEmpty()) {
+				Batch batch = sortedBatch(inserts);
+				insertBatch(batch);
+				inserted += batch.inserted;
+				insertCount += inserts.size();
+				inserts.clear();
+			}
+			if (change != null) {
+				deleteCount++;
+				// A delete which didn't find its entry didn't blank its
+				// record out either.
+				if (deleteEntry(change.entry)) {
+					tombstone(change.entry);
+					deleted++;
+				}
+			}
+		}
+		String replayed = "Recovered " + inserted + " of " + insertCount
+				+ " inserts from the write-ahead log";
+		if (deleteCount > 0)
+			replayed += "\nRecovered " + deleted + " of " + deleteCount
+					+ " deletes from the write-ahead log";
+		recovery = recovery == null ? replayed : recovery + "\n" + replayed;
+	}
+
+	// Removes an entry if its key still has it, from the write buffer and
+	// from its leaf, recording it for the snapshots which still see it.
+	private boolean deleteEntry(IndexEntry entry) throws IOException {
+		long timestamp = versions.beginInsert();
+		try {
+			if (writeBuffer != null) {
+				BufferedEntry buffered = writeBuffer.get(entry.key);
+				if (buffered != null && sameRecord(buffered, entry)) {
+					versions.recordDelete(buffered, buffered.timestamp,
+							timestamp);
+					boolean removed = writeBuffer.remove(entry.key, buffered);
+					if (removed)
+						bufferedCount.decrementAndGet();
+					// A merge may have moved the entry to the tree meanwhile.
+					return removeFromLeaf(entry, timestamp, false) || removed;
+				}
+			}
+			return removeFromLeaf(entry, timestamp, true);
+		} finally {
+			versions.endInsert(timestamp);
+		}
+	}
+
+	// Removes an entry from its latched leaf if it is there, and notes the
+	// leaf if it is left too empty.
+	private boolean removeFromLeaf(IndexEntry entry, long timestamp,
+			boolean record) throws IOException {
+		BTreeNode leaf = lockCovering(
+				descend(rootPage, entry.key, null).pageId, entry.key);
+		try {
+			int slot = leaf.search(entry.key);
+			if (slot < 0 || leaf.byteOffset[slot] != entry.byteOffset
+					|| leaf.dataLength[slot] != entry.dataLength)
+				return false;
+			if (record)
+				versions.recordDelete(entry, versions.insertedAt(entry.key),
+						timestamp);
+			leaf.removeEntry(slot);
+			index.writeNode(leaf);
+			if (underflows(leaf))
+				underflowed.put(leaf.pageId, entry.key);
+			return true;
+		} finally {
+			latch(leaf.pageId).writeUnlock();
+		}
+	}
+
+	private static boolean sameRecord(IndexEntry one, IndexEntry two) {
+		return one.byteOffset == two.byteOffset
+				&& one.dataLength == two.dataLength;
+	}
+
+	// Overwrites the record of a deleted entry in the indexed file with line
+	// breaks, which leaves the other records where they are and makes -create
+	// skip it, and counts its bytes as dead until -compact drops them.
+	private void tombstone(IndexEntry entry) throws IOException {
+		RandomAccessFile data = new RandomAccessFile(index.inputFile, "rw");
+		try {
+			// An async log may have kept a delete of a record which never
+			// reached the file.
+			if (entry.byteOffset + entry.dataLength > data.length())
+				return;
+			byte[] blank = new byte[entry.dataLength];
+			Arrays.fill(blank, (byte) '\n');
+			data.seek(entry.byteOffset);
+			data.write(blank);
+			if (IndexConfig.walSync() != WriteAheadLog.SyncPolicy.ASYNC)
+				data.getChannel().force(false);
+		} finally {
+			data.close();
+		}
+		index.addDeadBytes(entry.dataLength);
+	}
+
+	// Checks if a node holds less than the underflow fraction of what it
+	// may hold: keys for a plain leaf, bytes of the page otherwise.
+	private boolean underflows(BTreeNode node) {
+		if (node.keyCount == 0)
+			return true;
+		if (node.isLeaf && !index.compressedLeaves)
+			return node.keyCount < underflow * (index.degree - 1);
+		int size = node.isLeaf ? IndexFile.compressedLeafSize(node) : Math
+				.min(IndexFile.plainPageSize(node),
+						IndexFile.prefixedPageSize(node));
+		return size < underflow * IndexFile.PAGE_SIZE;
+	}
+
+	// Rebalances the leaves noted by deletes, and their parents, and parks the
+	// pages merged away with the current epoch. Called by a checkpoint, so no
+	// insert or delete changes the tree meanwhile.
+	private void rebalance() throws IOException {
+		if (underflowed.isEmpty())
+			return;
+		List<Integer> freed = new ArrayList<Integer>();
+		for (byte[] key : underflowed.values())
+			rebalance(key, freed);
+		underflowed.clear();
+		// A root left with a single child is replaced by the child.
+		BTreeNode root = read(rootPage);
+		while (!root.isLeaf && root.childCount == 1) {
+			freed.add(root.pageId);
+			rootPage = root.childPage[0];
+			root = read(rootPage);
+		}
+		if (freed.isEmpty())
+			return;
+		List<Integer> parked = parkedPages.get(epoch);
+		if (parked == null)
+			parkedPages.put(epoch, parked = new ArrayList<Integer>());
+		parked.addAll(freed);
+		parkedCount += freed.size();
+	}
+
+	// Frees the parked pages which no lookup can still be reading. Starts a
+	// new epoch first if the lookups of the one before the current one are
+	// done, as their counter then serves the next one; otherwise the current
+	// one goes on, and pages parked meanwhile wait with it. Lookups of a new
+	// epoch start from the tree as it is now, so the pages of an epoch are
+	// free once its lookups are done and a later one has started.
+	private void freeParkedPages() {
+		if (parkedPages.isEmpty())
+			return;
+		int current = epoch;
+		if (readers[(current + 1) & 1].get() == 0)
+			epoch = ++current;
+		Iterator<Map.Entry<Integer, List<Integer>>> entries = parkedPages
+				.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Integer, List<Integer>> parked = entries.next();
+			int parkedEpoch = parked.getKey();
+			// The epochs before the last one were done when it started.
+			if (parkedEpoch == current || parkedEpoch == current - 1
+					&& readers[parkedEpoch & 1].get() != 0)
+				break;
+			for (int page : parked.getValue())
+				index.freePage(page);
+			freedCount += parked.getValue().size();
+			parkedCount -= parked.getValue().size();
+			entries.remove();
+		}
+	}
+
+	// Rebalances the leaf covering a key, and then its parent and so on for
+	// as long as the node rebalanced is left too empty.
+	private void rebalance(byte[] key, List<Integer> freed) throws IOException {
+		List<BTreeNode> path = new ArrayList<BTreeNode>();
+		BTreeNode node = descend(rootPage, key, path);
+		while (!path.isEmpty() && underflows(node)) {
+			BTreeNode parent = path.remove(path.size() - 1);
+			if (!rebalance(parent, node, freed))
+				return;
+			node = read(parent.pageId);
+		}
+	}
+
+	// Merges a node with its left sibling under the same parent, or with
+	// its right sibling if it is the first child, the right node of the two
+	// going into the left one. If both don't fit in a page, entries move from
+	// the left sibling into the node instead, never the other way, as keys
+	// must only move right. Returns false if the node is left as it is.
+	private boolean rebalance(BTreeNode parent, BTreeNode node,
+			List<Integer> freed) throws IOException {
+		int slot = 0;
+		while (slot < parent.childCount && parent.childPage[slot] != node.pageId)
+			slot++;
+		if (parent.childCount < 2 || slot == parent.childCount)
+			return false;
+		int leftSlot = slot == 0 ? 0 : slot - 1;
+		BTreeNode left = read(parent.childPage[leftSlot]);
+		BTreeNode right = read(parent.childPage[leftSlot + 1]);
+		byte[] separator = parent.getKey(leftSlot);
+
+		BTreeNode merged = read(left.pageId);
+		if (merged.isLeaf) {
+			for (int count = 0; count < right.keyCount; count++)
+				merged.addEntry(right.getKey(count), right.byteOffset[count],
+						right.dataLength[count]);
+		} else {
+			merged.insertKey(merged.keyCount, separator);
+			for (int count = 0; count < right.keyCount; count++)
+				merged.insertKey(merged.keyCount, right.getKey(count));
+			for (int count = 0; count < right.childCount; count++)
+				merged.addChildPage(right.childPage[count]);
+		}
+		merged.rightPage = right.rightPage;
+		merged.highKey = right.highKey;
+		if (IndexFile.fits(merged, index.degree, index.compressedLeaves)) {
+			// The left node takes over the keys and the right-link of the
+			// right one, which stays as it is for the lookups on their way to
+			// it until it is freed.
+			writeLatched(merged);
+			if (merged.isLeaf)
+				linkNextLeaf(merged);
+			parent.removeKey(leftSlot);
+			parent.removeChildPage(leftSlot + 1);
+			writeLatched(parent);
+			freed.add(right.pageId);
+			return true;
+		}
+		if (slot == 0)
+			return false;
+
+		// Even the two out like BulkLoader.redistribute does.
+		byte[] newSeparator;
+		if (right.isLeaf && index.compressedLeaves) {
+			while (left.keyCount > 1
+					&& CompressedLeaf.encodedSize(right) < CompressedLeaf
+							.encodedSize(left))
+				left.moveTail(left.keyCount - 1, right);
+			newSeparator = padKey(IndexFile.separator(
+					left.getKey(left.keyCount - 1), right.getKey(0)));
+		} else if (right.isLeaf) {
+			int move = (left.keyCount - right.keyCount) / 2;
+			if (move <= 0)
+				return false;
+			left.moveTail(left.keyCount - move, right);
+			newSeparator = padKey(IndexFile.separator(
+					left.getKey(left.keyCount - 1), right.getKey(0)));
+		} else {
+			int move = (left.childCount - right.childCount) / 2;
+			if (move <= 0)
+				return false;
+			int from = left.childCount - move;
+			right.insertKey(0, separator);
+			left.moveTail(from, right);
+			newSeparator = left.getKey(from - 1);
+			left.keyCount = from - 1;
+		}
+		left.highKey = newSeparator;
+		parent.removeKey(leftSlot);
+		parent.insertKey(leftSlot, newSeparator);
+		if (!IndexFile.fits(right, index.degree, index.compressedLeaves)
+				|| !IndexFile.fits(parent, index.degree, index.compressedLeaves))
+			return false;
+		// The right node gets the entries before the left one loses them.
+		writeLatched(right);
+		writeLatched(left);
+		writeLatched(parent);
+		return true;
+	}
+
+	// Writes a node under its write latch, for the lookups reading it.
+	private void writeLatched(BTreeNode node) throws IOException {
+		PageLatch latch = latch(node.pageId);
+		latch.writeLock();
+		try {
+			index.writeNode(node);
+		} finally {
+			latch.writeUnlock();
+		}
+	}
+
+	// Counts a lookup in the current epoch and returns the epoch.
+	private int beginRead() {
+		while (true) {
+			int current = epoch;
+			readers[current & 1].incrementAndGet();
+			if (epoch == current)
+				return current;
+			readers[current & 1].decrementAndGet(); // Counted too late.
+		}
+	}
+
+	private void endRead(int epoch) {
+		readers[epoch & 1].decrementAndGet();
+	}
+
+	// Walks from a page, usually the root, to the leaf covering the key
+	// without latching, moving right where a node was split. The internal
+	// nodes the walk leaves downwards are added to path.
+	private BTreeNode descend(int page, byte[] key, List<BTreeNode> path)
+			throws IOException {
+		BTreeNode node = read(page);
+		while (true) {
+			while (beyond(node, key))
+				node = read(node.rightPage);
+			if (node.isLeaf)
+				return node;
+			if (path != null)
+				path.add(node);
+			node = read(node.childPage[BTreeNode.childSlot(node.search(key))]);
+		}
+	}
+
+	// Walks from a page to the leaf covering the key like descend, reading
+	// the pages which aren't cached asynchronously.
+	private CompletableFuture<BTreeNode> descendAsync(int page,
+			final byte[] key) {
+		return readAsync(page).thenCompose(
+				new Function<BTreeNode, CompletionStage<BTreeNode>>() {
+					public CompletionStage<BTreeNode> apply(BTreeNode node) {
+						if (beyond(node, key))
+							return descendAsync(node.rightPage, key);
+						if (node.isLeaf)
+							return CompletableFuture.completedFuture(node);
+						return descendAsync(node.childPage[BTreeNode
+								.childSlot(node.search(key))], key);
+					}
+				});
+	}
+
+	// Reads a page like read if it is cached, and pinned meanwhile so that it
+	// stays cached. Otherwise the node is decoded from the copy loaded for
+	// it: a page which wasn't cached had no writer, and the copy is the page
+	// as it was while it was loaded.
+	private CompletableFuture<BTreeNode> readAsync(final int page) {
+		CompletableFuture<ByteBuffer> loaded;
+		try {
+			if (index.pool.pinCached(page) != null) {
+				try {
+					return CompletableFuture.completedFuture(read(page));
+				} finally {
+					index.pool.unpin(page, false);
+				}
+			}
+			loaded = index.loadAsync(page);
+		} catch (IOException ex) {
+			return failed(ex);
+		}
+		return loaded.thenCompose(
+				new Function<ByteBuffer, CompletionStage<BTreeNode>>() {
+					public CompletionStage<BTreeNode> apply(ByteBuffer copy) {
+						if (copy == null)
+							return readAsync(page); // Start over.
+						return CompletableFuture.completedFuture(index
+								.decodeNode(copy, page));
+					}
+				});
+	}
+
+	// Returns a future which has failed with an exception.
+	private static <T> CompletableFuture<T> failed(Throwable ex) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(ex);
+		return future;
+	}
+
+	// Reads a page at a stable version of its latch.
+	private BTreeNode read(int page) throws IOException {
+		PageLatch latch = latch(page);
+		while (true) {
+			long version = latch.readLock();
+			BTreeNode node;
+			try {
+				node = index.readNode(page);
+			} catch (RuntimeException ex) {
+				if (latch.validate(version))
+					throw ex;
+				continue; // Decoding a torn page can fail in any way.
+			}
+			if (latch.validate(version))
+				return node;
+		}
+	}
+
+	// Write latches the node at the page, or the first node right of it
+	// whose high key is greater than the key, and returns it.
+	private BTreeNode lockCovering(int page, byte[] key) throws IOException {
+		while (true) {
+			PageLatch latch = latch(page);
+			latch.writeLock();
+			BTreeNode node = index.readNode(page);
+			if (!beyond(node, key))
+				return node;
+			latch.writeUnlock();
+			page = node.rightPage;
+		}
+	}
+
+	// Checks if the key belongs right of the node.
+	private static boolean beyond(BTreeNode node, byte[] key) {
+		return node.rightPage != IndexFile.NO_PAGE
+				&& IndexEntry.compareKeys(key, node.highKey) >= 0;
+	}
+
+	// Splits a latched node like balance does: the node keeps the lower half
+	// and the upper half goes to a new page linked in to its right. Both are
+	// written, the new page first, and the separator is left as the new high
+	// key of the node.
+	private BTreeNode split(BTreeNode node) throws IOException {
+		int split = node.keyCount % 2 == 0 ? node.keyCount / 2 - 1
+				: node.keyCount / 2;
+		BTreeNode right = new BTreeNode(index.keyLength, index.degree);
+		right.isLeaf = node.isLeaf;
+		right.pageId = index.allocatePage();
+		byte[] separator;
+		if (node.isLeaf) {
+			node.moveTail(split, right);
+			separator = padKey(IndexFile.separator(node.getKey(split - 1),
+					right.getKey(0)));
+		} else {
+			separator = node.getKey(split);
+			node.moveTail(split + 1, right);
+			node.keyCount = split;
+		}
+		right.rightPage = node.rightPage;
+		right.highKey = node.highKey;
+		if (node.isLeaf) {
+			right.prevLeafPage = node.pageId;
+			linkNextLeaf(right);
+		}
+		index.writeNode(right);
+		node.rightPage = right.pageId;
+		node.highKey = separator;
+		index.writeNode(node);
+		return right;
+	}
+
+	// Points the previous leaf link of the leaf right of a new leaf to it.
+	private void linkNextLeaf(BTreeNode leaf) throws IOException {
+		if (leaf.rightPage == IndexFile.NO_PAGE)
+			return;
+		PageLatch latch = latch(leaf.rightPage);
+		latch.writeLock();
+		try {
+			BTreeNode next = index.readNode(leaf.rightPage);
+			next.prevLeafPage = leaf.pageId;
+			index.writeNode(next);
+		} finally {
+			latch.writeUnlock();
+		}
+	}
+
+	// Adds a new root above a split node if the node was the root. The node
+	// is still latched, so no one else can split it meanwhile.
+	private boolean growRoot(BTreeNode node, BTreeNode right)
+			throws IOException {
+		synchronized (rootLock) {
+			if (rootPage != node.pageId)
+				return false;
+			BTreeNode newRoot = new BTreeNode(index.keyLength, index.degree);
+			newRoot.pageId = index.allocatePage();
+			newRoot.insertKey(0, node.highKey);
+			newRoot.addChildPage(node.pageId);
+			newRoot.addChildPage(right.pageId);
+			index.writeNode(newRoot);
+			rootPage = newRoot.pageId;
+			return true;
+		}
+	}
+
+	// Returns the page of a node at the level above levelNo to look for the
+	// parent of a split node from. If the walk down didn't reach that level
+	// because the tree has grown since, the tree is walked again.
+	private int parentPage(List<BTreeNode> path, int levelNo, byte[] key)
+			throws IOException {
+		while (path.size() <= levelNo) {
+			path.clear();
+			descend(rootPage, key, path);
+			if (path.size() <= levelNo)
+				Thread.yield(); // The new root isn't there yet.
+		}
+		return path.get(path.size() - 1 - levelNo).pageId;
+	}
+
+	// Pads a key to the key length of the index. A longer key is refused
+	// rather than cut, as its prefix is another key.
+	private byte[] padKey(byte[] pKey) {
+		if (pKey.length > index.keyLength)
+			throw new IllegalArgumentException("Key of " + pKey.length
+					+ " bytes is longer than the key length "
+					+ index.keyLength);
+		return Arrays.copyOf(pKey, index.keyLength);
+	}
+
+	// Returns the padded key a list from a key on starts at. A key longer
+	// than the key length comes right after its prefix, so the list starts
+	// at the next key of keyLength bytes; null if there is none.
+	private byte[] startKey(byte[] pKey) {
+		if (pKey.length <= index.keyLength)
+			return padKey(pKey);
+		byte[] key = Arrays.copyOf(pKey, index.keyLength);
+		for (int count = key.length - 1; count >= 0; count--) {
+			if (++key[count] != 0)
+				return key;
+		}
+		return null; // The prefix is the greatest key possible.
+	}
+
+	private PageLatch latch(int page) {
+		PageLatch latch = latches.get(page);
+		if (latch == null) {
+			PageLatch created = new PageLatch();
+			latch = latches.putIfAbsent(page, created);
+			if (latch == null)
+				latch = created;
+		}
+		return latch;
+	}
+}
@@ -0,0 +1,125 @@
+/**
+Measures how lookups and inserts through a ConcurrentIndex scale with the no.
+of threads. An index is built from a data file with -create, and then each
+round runs the same no. of operations with 1, 2, 4, ... threads, a given share
+of them inserts of new keys and the rest lookups of keys of the data file. Run
+it with
+
+	java ConcurrentIndexBenchmark <data file> <key length> [threads] [write %] [operations]
+
+The inserted keys only go into the index, which is created in the temporary
+directory and deleted at the end; the data file is left alone.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConcurrentIndexBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String dataFile = args[0];
+		int keyLength = Integer.parseInt(args[1]);
+		int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime
+				.getRuntime().availableProcessors();
+		int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		int operations = args.length > 4 ? Integer.parseInt(args[4]) : 200000;
+		List<byte[]> keys = readKeys(dataFile, keyLength);
+
+		File file = File.createTempFile("bptree-concurrent", ".indx");
+		try {
+			DBIndexFile.main(new String[] { "-create",
+					Integer.toString(keyLength), dataFile, file.getPath() });
+			ConcurrentIndex index = ConcurrentIndex.open(file.getPath());
+			try {
+				System.out.println("threads  ops/s      lookups  found   inserts");
+				for (int threads = 1; threads <= maxThreads; threads *= 2)
+					run(index, keys, keyLength, threads, writePercent,
+							operations);
+			} finally {
+				index.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	// Runs one round with the given no. of threads and prints its throughput.
+	private static void run(final ConcurrentIndex index,
+			final List<byte[]> keys, final int keyLength, final int threads,
+			final int writePercent, int operations) throws Exception {
+		final int perThread = operations / threads;
+		final AtomicLong lookups = new AtomicLong();
+		final AtomicLong found = new AtomicLong();
+		final AtomicLong inserts = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		final Throwable[] failure = new Throwable[1];
+		for (int count = 0; count < threads; count++) {
+			final Random random = new Random(threads * 1000 + count);
+			workers[count] = new Thread() {
+				public void run() {
+					try {
+						for (int op = 0; op < perThread; op++) {
+							if (random.nextInt(100) < writePercent) {
+								if (index.insert(randomKey(random, keyLength),
+										0, 0))
+									inserts.incrementAndGet();
+							} else {
+								lookups.incrementAndGet();
+								if (index.find(keys.get(random.nextInt(keys
+										.size()))) != null)
+									found.incrementAndGet();
+							}
+						}
+					} catch (Throwable ex) {
+						failure[0] = ex;
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		long time = System.nanoTime() - start;
+		if (failure[0] != null)
+			throw new RuntimeException(failure[0]);
+		System.out.println(String.format("%7d %10.0f %9d %9d %9d", threads,
+				perThread * threads * 1e9 / time, lookups.get(), found.get(),
+				inserts.get()));
+	}
+
+	// Makes a key which is unlikely to be in the data file.
+	private static byte[] randomKey(Random random, int keyLength) {
+		byte[] key = new byte[keyLength];
+		for (int count = 0; count < keyLength; count++)
+			key[count] = (byte) ('a' + random.nextInt(26));
+		return key;
+	}
+
+	// Reads the keys of the data file.
+	private static List<byte[]> readKeys(String dataFile, int keyLength)
+			throws IOException {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+		try {
+			RecordScanner scanner = new RecordScanner(file.getChannel(), 0,
+					file.length(), keyLength);
+			while (scanner.next()) {
+				if (!scanner.hasKey())
+					continue;
+				byte[] key = new byte[keyLength];
+				scanner.copyKey(key, 0);
+				keys.add(key);
+			}
+		} finally {
+			file.close();
+		}
+		return keys;
+	}
+}
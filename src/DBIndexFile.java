@@ -2,7 +2,10 @@
 Implementation of B+ tree indexing. This program will read a text file
 containing data and builds an index , treating the first 'n' bytes as the key.
 Apart from creating an index, the program will help you search a record by the
-key, insert a new text record and list sequential records with a key as reference.
+key or the records of a batch of keys, insert a new text record or a batch of
+them, delete a record and list sequential records with a key as reference, in
+either order or between two keys. It can also keep indexes open and answer these
+requests over a local socket (see IndexServer and IndexClient).
 
 Course: CS6360 - Database Design
 Authors: Prabhmanmeet Singh 
@@ -10,437 +13,52 @@ Authors: Prabhmanmeet Singh
 Last Modified: 11/26/2013
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.RandomAccessFile;
-import java.io.Serializable;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
-// An instance of BTreeNode represents a node in the B+ Tree.
-class BTreeNode implements Serializable {
-	public List<String> key; // Stores vector of keys.
-	public List<BTreeNode> ptr; // Vector of pointers to the children nodes if
-								// any.
-	public List<Long> byteOffset; // Byte offset of the data in data file. In
-									// other
-	// words this is the data pointer.
-	public List<Integer> dataLength; // Length of the data in bytes for each
-										// key.
-	public BTreeNode immediateParent; // Pointer to the immediate parent.
-	public BTreeNode nextLeafPointer; // Applicable to only leaf nodes.
-	public BTreeNode prevLeafPointer; // Applicable to only leaf nodes.
-	public boolean isLeaf; // Checks if the node is a leaf node or intermediate
-							// node. If set to true, then the corresponding node
-							// is true.
-
-	// Constructor.
-	public BTreeNode() {
-		this.key = new ArrayList<String>();
-		this.ptr = new ArrayList<BTreeNode>();
-		this.byteOffset = new ArrayList<Long>();
-		this.dataLength = new ArrayList<Integer>();
-		this.immediateParent = null;
-		this.nextLeafPointer = null;
-		this.prevLeafPointer = null;
-		this.isLeaf = false;
-	}
-}
-
 // Main class
 public class DBIndexFile {
 
-	static BTreeNode root; // This acts as our root node.
 	static int DEGREE = 0; // Degree of a node determines the no. of keys to be
 							// stored in a node.
 
 	/**
-	 * A recursive function which inserts key and data pointer into the B+ tree.
-	 * This function checks for duplicates and doesn't allow them to be
-	 * inserted. The B+ Tree is traversed till the leaf node and the key
-	 * inserted maintaining the sort order. If the degree exceeds, the tree is
-	 * balanced.
-	 * 
-	 * @param pNode
-	 *            is the candidate node where the key might be inserted.
-	 * @param pKeyValue
-	 *            is the key value to be inserted.
-	 * @param pByteOffset
-	 *            is the byte offset of the key in the input file.
-	 * @param pDataLength
-	 *            length of the data.
-	 * @author Yogeshwara Krishnan
-	 */
-	static void insertIntoBTree(BTreeNode pNode, String pKeyValue,
-			long pByteOffset, int pDataLength) {
-		/* Added by Yogesh on 11-25-2013 */
-		// Check if the B+ Tree is empty.
-		// If empty create a new node and insert the key and byte offset.
-		if ((pNode == null || pNode.key.isEmpty()) && pNode == root) {
-			pNode.key.add(pKeyValue);
-			pNode.byteOffset.add((Long) pByteOffset);
-			pNode.dataLength.add(pDataLength);
-			pNode.isLeaf = true;
-			root = pNode;
-			// Write root to file
-			return;
-		}
-
-		// If the parameter p_node is not empty then traverse through the tree
-		// till leaf
-		// and insert the key and the byte offset.
-		else if (pNode != null || !pNode.key.isEmpty()) {
-			for (int count = 0; count < pNode.key.size(); count++) {
-				// Check if the key already exists. If it exists, don't allow
-				// insertion.
-				if (pKeyValue.compareTo(pNode.key.get(count)) == 0) {
-					System.out.println("Data exists. Duplicates not allowed.");
-					return;
-				}
-
-				// Else traverse through the node to find appropriate place to
-				// insert the key.
-				// pKeyValue is Less than current key[count]
-				else if (pKeyValue.compareTo(pNode.key.get(count)) < 0) {
-					if (!pNode.isLeaf && pNode.ptr.get(count) != null) {
-						// Write pNode to file
-						insertIntoBTree((BTreeNode) pNode.ptr.get(count),
-								pKeyValue, pByteOffset, pDataLength);
-						return;
-					} else if (pNode.isLeaf) {
-						// Push dummy values at the end of the key and byte
-						// offset arrays to avoid
-						// out of range exceptions.
-						pNode.key.add("");
-						pNode.byteOffset.add(0l);
-						pNode.dataLength.add(0);
-
-						for (int j = pNode.key.size() - 2; j >= count; j--) {
-							pNode.key.set(j + 1, pNode.key.get(j));
-							pNode.byteOffset
-									.set(j + 1, pNode.byteOffset.get(j));
-							pNode.dataLength
-									.set(j + 1, pNode.dataLength.get(j));
-						}
-
-						pNode.key.set(count, pKeyValue);
-						pNode.byteOffset.set(count, pByteOffset);
-						pNode.dataLength.set(count, pDataLength);
-
-						// Check the degree of the node. If the degree exceeds
-						// balance the node and then write to file.
-
-						if (pNode.key.size() == DEGREE) {
-							balance(pNode);
-							return;
-						} else {
-							return;
-						}
-
-					}
-				}
-
-				// pKeyValue is Greater than current key[count]
-				else if (pKeyValue.compareTo(pNode.key.get(count)) > 0) {
-					if (count < pNode.key.size() - 1) {
-						continue;
-					}
-
-					// End of the right child.
-					else if (count == pNode.key.size() - 1) {
-						if (!pNode.isLeaf && pNode.ptr.get(count + 1) != null) {
-							// Write pNode to file, before traversing to right subTree.
-							insertIntoBTree(
-									(BTreeNode) pNode.ptr.get(count + 1),
-									pKeyValue, pByteOffset, pDataLength);
-							return;
-						}
-
-						else if (pNode.isLeaf) {
-							pNode.key.add("");
-							pNode.byteOffset.add(0l);
-							pNode.dataLength.add(0);
-							pNode.key.set(count + 1, pKeyValue);
-							pNode.byteOffset.set(count + 1, pByteOffset);
-							pNode.dataLength.set(count + 1, pDataLength);
-						}
-
-						// Check the degree of node and balance the node.
-						if (pNode.key.size() == DEGREE) {
-							balance(pNode);
-							return;
-						} else
-							return;
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * A recursive function which balances the unstable nodes; leaf or
-	 * intermediate; in the B+ tree.
-	 * 
-	 * @param pNode
-	 *            is the node to be balanced.
-	 * @author Prabhmanmeet Singh Last Modified: Prabhmanmeet Singh On:
-	 *         11-28-2013
-	 */
-	static void balance(BTreeNode pNode) {
-		BTreeNode bLeft = new BTreeNode(); // New left child
-		BTreeNode bRight = new BTreeNode(); // New right child
-		BTreeNode bPrime = new BTreeNode(); // New parent / root.
-		BTreeNode parent;
-
-		int newPosKey = 0, split = 0, temp = 0;
-
-		// Check if the node to be balanced is a leaf node.
-		if (pNode.isLeaf) {
-			// bRight is leaf node
-			bRight.isLeaf = true;
-			// Calculate where to split the pNode.
-			if (pNode.key.size() % 2 == 0)
-				split = (pNode.key.size() / 2) - 1;
-			else
-				split = pNode.key.size() / 2;
-
-			// Populate the right child.
-			for (int count = split; count < pNode.key.size(); count++) {
-				bRight.key.add(pNode.key.get(count));
-				bRight.byteOffset.add(pNode.byteOffset.get(count));
-				bRight.dataLength.add(pNode.dataLength.get(count));
-			}
-
-			// Populate the left child.
-			bLeft.isLeaf = true;
-			for (int count = 0; count < split; count++) {
-				bLeft.key.add(pNode.key.get(count));
-				bLeft.byteOffset.add(pNode.byteOffset.get(count));
-				bLeft.dataLength.add(pNode.dataLength.get(count));
-			}
-
-			// Reassign the next pointers
-			if (pNode.nextLeafPointer != null)
-				bRight.nextLeafPointer = pNode.nextLeafPointer;
-			else
-				bRight.nextLeafPointer = null;
-
-			// Reassign the previous pointers
-			if (pNode.prevLeafPointer != null)
-				bLeft.prevLeafPointer = pNode.prevLeafPointer;
-			else
-				bLeft.prevLeafPointer = null;
-
-			// Point bLeft's next pointer to bRight.
-			bLeft.nextLeafPointer = bRight;
-			// Point bRight's previous pointer to bLeft.
-			bRight.prevLeafPointer = bLeft;
-
-			// If Parent is not present.
-			if (pNode.immediateParent == null) {
-				bPrime.isLeaf = false;
-				bPrime.key.add(bRight.key.get(0));
-				bPrime.ptr.add(bLeft);
-				bPrime.ptr.add(bRight);
-				bLeft.immediateParent = bPrime;
-				bRight.immediateParent = bPrime;
-				root = bPrime;
-				pNode = bPrime;
-				// Write bLeft to file, left SubTree saved to file.
-				// Write bRight to file, right SubTree saved to file.
-				// Write parent node to file.
-			}
-			// If Parent is present.
-			else if (pNode.immediateParent != null) {
-				// Get the parent of pNode.
-				parent = pNode.immediateParent;
-				// Write pNode to file, after loading parent.
-				
-				parent.key.add(bRight.key.get(0));
-				// Keys are Balanced
-				Collections.sort(parent.key);
-				bLeft.immediateParent = parent;
-				bRight.immediateParent = parent;
-				newPosKey = parent.key.indexOf(bRight.key.get(0));
-
-				// Balancing the Pointers
-				// Check if the key has been inserted at the end or somewhere in
-				// the middle.
-				if (newPosKey < parent.key.size() - 1) {
-					parent.ptr.add(null);
-
-					// Right shift the pointer
-					for (int count = parent.key.size() - 1; count > newPosKey; count--) {
-						parent.ptr.set(count + 1, parent.ptr.get(count));
-					}
-
-					// Make the parent point to the new left and right children.
-					parent.ptr.set(newPosKey + 1, bRight);
-					parent.ptr.set(newPosKey, bLeft);
-				}
-
-				else if (newPosKey == parent.key.size() - 1) {
-					// Setting bLeft as next pointer.
-					parent.ptr.set(newPosKey, bLeft);
-					parent.ptr.add(bRight);
-				}
-
-				// Rearrange the next and previous pointers
-				if (pNode.prevLeafPointer != null) {
-					pNode.prevLeafPointer.nextLeafPointer = bLeft;
-					bLeft.prevLeafPointer = pNode.prevLeafPointer;
-				}
-				// Setting bRight as next pointer.
-				if (pNode.nextLeafPointer != null) {
-					pNode.nextLeafPointer.prevLeafPointer = bRight;
-					bRight.nextLeafPointer = pNode.nextLeafPointer;
-				}
-
-				// Check if the parent needs to be balanced.
-				if (parent.key.size() == DEGREE) {
-					// Write bLeft and bRight to file, before traversing to Parent Node.
-					balance(parent);
-					return;
-				} else
-					return;
-			}
-		}
-
-		// If the node to be balanced is not a leaf node
-		else if (!pNode.isLeaf) {
-			bRight.isLeaf = false;
-			// Calculate where exactly to split.
-			if (pNode.key.size() % 2 == 0)
-				split = (pNode.key.size() / 2) - 1;
-			else
-				split = pNode.key.size() / 2;
-
-			String popKey = pNode.key.get(split);
-			int k = 0, p = 0;
-
-			// Populate the right non leaf node.
-			for (int count = split + 1; count < pNode.key.size(); count++) {
-				bRight.key.add(pNode.key.get(count));
-			}
-
-			// Copy the node pointers too to the right child.
-			for (int count = split + 1; count < pNode.ptr.size(); count++) {
-				bRight.ptr.add(pNode.ptr.get(count));
-				bRight.ptr.get(k++).immediateParent = bRight;
-			}
-			k = 0;
-			// Populate the left child with key and node pointers.
-			for (int count = 0; count < split; count++) {
-				bLeft.key.add(pNode.key.get(count));
-			}
-
-			// Copy the node pointers too to the left child.
-			for (int count = 0; count < split + 1; count++) {
-				bLeft.ptr.add(pNode.ptr.get(count));
-				bLeft.ptr.get(p++).immediateParent = bLeft;
-			}
-
-			p = 0;
-
-			// If the intermediate node has no parent.
-			if (pNode.immediateParent == null) {
-				// Create a new parent. Note that this becomes the root.
-				bPrime.isLeaf = false;
-				bPrime.key.add(popKey);
-				bPrime.ptr.add(bLeft);
-				bPrime.ptr.add(bRight);
-				bLeft.immediateParent = bPrime;
-				bRight.immediateParent = bPrime;
-				pNode = bPrime;
-				root = bPrime;
-				// Write bLeft to file, save the Left SubTree to file.
-				// Write bRight to file, save the Right SubTree to file.
-				// Write parent to file.
-				return;
-			}
-
-			// If intermediate node has parent.
-			else if (pNode.immediateParent != null) {
-				parent = pNode.immediateParent;
-				parent.key.add(popKey);
-				// Balance the keys in parent.
-				Collections.sort(parent.key);
-				newPosKey = parent.key.indexOf(popKey);
-
-				// If key added is at the end
-				if (newPosKey == parent.key.size() - 1) {
-					parent.ptr.set(newPosKey, bLeft);
-					parent.ptr.add(bRight);
-					bRight.immediateParent = parent;
-					bLeft.immediateParent = parent;
-				}
-
-				else if (newPosKey < parent.key.size() - 1) {
-					int ptrSize = parent.ptr.size();
-					parent.ptr.add(null);
-
-					// Balancing the pointers in parent.
-					for (int count = ptrSize - 1; count > newPosKey; count--) {
-						parent.ptr.set(count + 1, parent.ptr.get(count));
-					}
-
-					parent.ptr.set(newPosKey, bLeft);
-					parent.ptr.set(newPosKey + 1, bRight);
-
-					bLeft.immediateParent = parent;
-					bRight.immediateParent = parent;
-				}
-
-				// Balance the parent if needed.
-				if (parent.key.size() == DEGREE) {
-					// Write bRight to file
-					// Write bLeft to file
-					balance(parent);
-					return;
-				} else
-					return;
-			}
-		}
-	}
-
-	/**
-	 * This function will print the leaf nodes of the B+Tree. This was written
-	 * just for debugging purposes.
-	 * 
-	 * @author Yogeshwara Krishnan
-	 * @param pNode
+	 * Maps an index file into memory for reading. The mapped pages are those
+	 * of the last checkpoint, so inserts and deletes which a run that didn't
+	 * finish left in the write-ahead log are replayed first.
+	 * @param indexFile is the index file to be read.
+	 * @return the mapped index file.
 	 */
-	static void printLeafNodes(BTreeNode pNode) {
-		while (!pNode.isLeaf) {
-			printLeafNodes(pNode.ptr.get(0));
-			return;
-		}
-
-		if (pNode.isLeaf) {
-			while (pNode.nextLeafPointer != null) {
-				System.out.println(pNode.key + " : " + pNode.byteOffset + " : "
-						+ pNode.dataLength);
-				pNode = pNode.nextLeafPointer;
-			}
-			if (pNode.nextLeafPointer == null) {
-				System.out.println(pNode.key + " : " + pNode.byteOffset + " : "
-						+ pNode.dataLength);
-			}
-		}
+	static MappedIndexReader openMapped(String indexFile) throws IOException {
+		if (WriteAheadLog.hasRecords(indexFile))
+			openConcurrent(indexFile).close(); // Closing checkpoints.
+		return MappedIndexReader.open(indexFile);
 	}
 
 	/**
-	 * This function reads the index file specified as argument and gets 3K of
-	 * data from it.
+	 * This function maps the index file specified as argument into memory and
+	 * searches for the key directly in the mapped pages.
 	 * 
 	 * @param indexFile
 	 *            is the index file to be read.
@@ -449,29 +67,17 @@ public class DBIndexFile {
 	 * @author Prabhmanmeet Singh
 	 */
 	static void readIndexForSearch(String indexFile, String pSearchKey) {
-		// Temporary variable which acts as a root for each 3K block being read.
-		BTreeNode newRoot = null;
 		try {
-			FileInputStream fin = new FileInputStream(indexFile);
-			FileChannel fc = fin.getChannel();
-			fc.position(1025l); // Because metadata is of 1024 bytes.
-			ObjectInputStream ois = new ObjectInputStream(fin);
-			// Reading Root node from file.
-			newRoot = (BTreeNode) ois.readObject();
-			ois.close();
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
-
-		// Search for the key in the currently read tree.
-		if (newRoot != null) {
-			searchData(newRoot, indexFile, pSearchKey);
+			MappedIndexReader reader = openMapped(indexFile);
+			searchData(reader, indexFile, pSearchKey);
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
 		}
 	}
 
 	/**
-	 * This function reads the index file specified as argument and gets 3K of
-	 * data from it.
+	 * This function maps the index file specified as argument into memory and
+	 * lists the records starting from the search key.
 	 * 
 	 * @param indexFile
 	 *            is the index file to be read.
@@ -484,87 +90,49 @@ public class DBIndexFile {
 	 */
 	static void readIndexForListSearch(String indexFile, String pSearchKey,
 			String pListSize) {
-		BTreeNode newRoot = null;
 		int listSize = Integer.parseInt(pListSize);
 		try {
-			FileInputStream fin = new FileInputStream(indexFile);
-			FileChannel fc = fin.getChannel();
-			fc.position(1025l);
-			ObjectInputStream ois = new ObjectInputStream(fin);
-			// Reading Root node from file.
-			newRoot = (BTreeNode) ois.readObject();
-			ois.close();
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
-
-		if (newRoot != null) {
-			searchListData(newRoot, indexFile, pSearchKey, listSize);
+			MappedIndexReader reader = openMapped(indexFile);
+			searchListData(reader, pSearchKey, listSize);
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
 		}
 	}
 
 	/**
-	 * A recursive function which traverses 3K block of the BTree read from the
-	 * index file and searches for the key.
+	 * Walks the mapped pages from the root to the leaf and searches for the
+	 * key. Keys are compared in place in the mapped pages.
 	 * 
-	 * @param pNode
-	 *            is the node being searched for the key.
+	 * @param reader
+	 *            is the mapped index file.
+	 * @param indexFile
+	 *            is the index file being read.
 	 * @param pSearchKey
 	 *            is the key being searched.
 	 * @author Prabhmanmeet Singh
 	 */
-	static void searchData(BTreeNode pNode, String indexFile, String pSearchKey) {
-		for (int count = 0; count < pNode.key.size(); count++) {
-			// Check if the node is a leaf node.
-			if (pNode.isLeaf) {
-				int keyIndex = pNode.key.indexOf(pSearchKey);
-				if (keyIndex == -1) { // If key isn't present.
-					System.out.println("Data not found");
-					return;
-				} else if (keyIndex != -1) { // If key is found.
-					// Byte offset of the key in the input file.
-					long byteOffset = pNode.byteOffset.get(keyIndex);
-					// Length of the data to be read.
-					int dataLength = pNode.dataLength.get(keyIndex);
-					// Traverse to that node and read the input file
-					getSearchData(indexFile, byteOffset, dataLength);
-					return;
-				}
-			}
-
-			// Traversing the left subtree.
-			else if (pSearchKey.compareTo(pNode.key.get(count)) < 0) {
-				if (!pNode.isLeaf && pNode.ptr.get(count) != null) {
-					searchData(pNode.ptr.get(count), indexFile, pSearchKey);
-					return;
-				}
-			}
-
-			// Traversing the right subtree.
-			else if (pSearchKey.compareTo(pNode.key.get(count)) >= 0) {
-				if (count < pNode.key.size() - 1) {
-					continue;
-				}
-
-				else if (count == pNode.key.size() - 1) {
-					if (!pNode.isLeaf && pNode.ptr.get(count + 1) != null) {
-						searchData((BTreeNode) pNode.ptr.get(count + 1),
-								indexFile, pSearchKey);
-						return;
-					}
-				}
-			}
+	static void searchData(MappedIndexReader reader, String indexFile,
+			String pSearchKey) {
+		// The key is compared with the raw bytes of the data file.
+		byte[] searchKey = pSearchKey.getBytes();
+		int leafPage = reader.findLeaf(searchKey);
+		int slot = reader.findSlot(leafPage, searchKey);
+		if (slot == -1) { // If key isn't present.
+			System.out.println("Data not found");
+			return;
 		}
+		// Read the input file at the byte offset of the key.
+		getSearchData(reader.inputFile, reader.byteOffset(leafPage, slot),
+				reader.dataLength(leafPage, slot));
 	}
 
 	/**
-	 * A recursive function which traverses the B+ tree and retrieves list of
-	 * data starting from pSearchKey.
+	 * Seeks the mapped pages to the first key not less than pSearchKey and
+	 * retrieves the list of data starting from it, following the next leaf
+	 * pages until listSize records are out.
 	 * 
-	 * @param pNode
-	 *            is the node where we start our search.
-	 * @param indexFile
-	 *            is the index file we need to read.
+	 * @param reader
+	 *            is the mapped index file.
 	 * @param pSearchKey
 	 *            is the key we need to search for.
 	 * @param listSize
@@ -572,104 +140,256 @@ public class DBIndexFile {
 	 *            (including).
 	 * @author Yogeshwara Krishnan
 	 */
-	static void searchListData(BTreeNode pNode, String indexFile,
-			String pSearchKey, int listSize) {
-		for (int count = 0; count < pNode.key.size(); count++) {
-			// Check if the node is a leaf node.
-			if (pNode.isLeaf) {
-				int keyIndex = pNode.key.indexOf(pSearchKey);
-				if (keyIndex == -1) { // If key not found.
-					System.out.println("Data not found");
-					return;
-				} else if (keyIndex != -1) { // If key was found.
-					// Get the byte offset.
-					long byteOffset = pNode.byteOffset.get(keyIndex);
-					// Get the no of bytes to be read.
-					int dataLength = pNode.dataLength.get(keyIndex);
-					// Read the input file and print the data
-					getSearchData(indexFile, byteOffset, dataLength);
-					int ct = 2;
-					// Iterate through the node to retrieve other keys.
-					for (int i = keyIndex + 1; i < pNode.key.size(); i++, ct++) {
-						if (ct <= listSize)
-							getSearchData(indexFile, pNode.byteOffset.get(i),
-									pNode.dataLength.get(i));
-					}
-					
-					// If the current node is exhausted and target size hasn't been reached
-					// go to the next leaf pointer.
-					BTreeNode nextLeaf = pNode.nextLeafPointer;
-					while (nextLeaf != null) {
-						for (int i = 0; i < nextLeaf.key.size(); i++, ct++) {
-							if (ct <= listSize)
-								getSearchData(indexFile,
-										nextLeaf.byteOffset.get(i),
-										nextLeaf.dataLength.get(i));
-						}
-						nextLeaf = nextLeaf.nextLeafPointer;
-					}
-					return;
+	static void searchListData(MappedIndexReader reader, String pSearchKey,
+			int listSize) {
+		// The key is compared with the raw bytes of the data file.
+		printRange(reader.inputFile, reader.range(pSearchKey.getBytes(), true, null,
+				false, false, listSize));
+	}
+
+	/**
+	 * This function maps the index file specified as argument into memory and
+	 * lists the records of a key range, in descending key order if the range
+	 * starts from the greater key.
+	 * 
+	 * @param indexFile
+	 *            is the index file to be read.
+	 * @param pFromKey
+	 *            is the key the range starts from.
+	 * @param pToKey
+	 *            is the key the range ends at. Both keys are in the range.
+	 * @param pListSize
+	 *            is the maximum no. of records to be listed.
+	 */
+	static void readIndexForRangeSearch(String indexFile, String pFromKey,
+			String pToKey, String pListSize) {
+		int listSize = Integer.parseInt(pListSize);
+		try {
+			MappedIndexReader reader = openMapped(indexFile);
+			byte[] fromKey = pFromKey.getBytes();
+			byte[] toKey = pToKey.getBytes();
+			boolean descending = IndexEntry.compareKeys(fromKey, toKey) > 0;
+			printRange(reader.inputFile, reader.range(fromKey, true, toKey, true,
+					descending, listSize));
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+		}
+	}
+
+	/**
+	 * This function maps the index file specified as argument into memory and
+	 * lists the records from the last key not greater than the search key
+	 * down.
+	 * 
+	 * @param indexFile
+	 *            is the index file to be read.
+	 * @param pSearchKey
+	 *            is the key the list starts from.
+	 * @param pListSize
+	 *            is the maximum no. of records to be listed.
+	 */
+	static void readIndexForDescendingSearch(String indexFile,
+			String pSearchKey, String pListSize) {
+		int listSize = Integer.parseInt(pListSize);
+		try {
+			MappedIndexReader reader = openMapped(indexFile);
+			printRange(reader.inputFile, reader.range(pSearchKey.getBytes(),
+					true, null, false, true, listSize));
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+		}
+	}
+
+	// Prints the records of the entries of a cursor from the file which was
+	// indexed, or "Data not found" if it has none. With bptree.readahead set,
+	// the leaves and records are read ahead of the cursor and the records are
+	// printed through a buffer.
+	private static void printRange(String inputFile,
+			MappedIndexReader.RangeCursor cursor) {
+		if (!cursor.hasNext()) {
+			System.out.println("Data not found");
+			return;
+		}
+		int maxDepth = IndexConfig.readahead();
+		if (maxDepth == 0) {
+			RandomAccessFile file = null;
+			try {
+				file = new RandomAccessFile(inputFile, "r");
+				while (cursor.hasNext()) {
+					IndexEntry entry = cursor.next();
+					printRecord(file, entry.byteOffset, entry.dataLength);
+				}
+			} catch (IOException ex) {
+				System.out.println(ex.getMessage());
+			} finally {
+				try {
+					if (file != null)
+						file.close();
+				} catch (IOException ex) {
+					ex.printStackTrace();
 				}
 			}
+			return;
+		}
+		LeafReadahead readahead = null;
+		PrintStream out = new PrintStream(new BufferedOutputStream(
+				new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+		try {
+			readahead = cursor.readAhead(inputFile, maxDepth);
+			while (cursor.hasNext())
+				out.println(new String(readahead.record(cursor.next())));
+			out.flush();
+			if (IndexConfig.printStats())
+				System.out.println(readahead.statistics());
+		} catch (IOException ex) {
+			out.flush();
+			System.out.println(ex.getMessage());
+		} finally {
+			try {
+				if (readahead != null)
+					readahead.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
 
-			// Traverse through the left sub tree.
-			else if (pSearchKey.compareTo(pNode.key.get(count)) < 0) {
-				if (!pNode.isLeaf && pNode.ptr.get(count) != null) {
-					searchListData(pNode.ptr.get(count), indexFile, pSearchKey,
-							listSize);
-					return;
+	/**
+	 * Looks the keys of a file up in one walk of the mapped index file (see
+	 * MappedIndexReader.findLeaves) and prints their records in the order of
+	 * the keys, or "Data not found" for a key which isn't present. The
+	 * records are read in the order of their offsets, in one pass over the
+	 * file which was indexed.
+	 * @param indexFile is the index file to be read.
+	 * @param keyFile holds a key per line, - for the standard input.
+	 */
+	static void searchBatch(String indexFile, String keyFile) {
+		try {
+			final MappedIndexReader reader = openMapped(indexFile);
+			List<byte[]> keys = readRecords(keyFile);
+			// Keys are padded like the stored ones; a longer key is never
+			// present.
+			final List<byte[]> searchKeys = new ArrayList<byte[]>();
+			List<Integer> order = new ArrayList<Integer>();
+			for (int count = 0; count < keys.size(); count++) {
+				searchKeys.add(Arrays.copyOf(keys.get(count), reader.keyLength));
+				if (keys.get(count).length <= reader.keyLength)
+					order.add(count);
+			}
+			Collections.sort(order, new Comparator<Integer>() {
+				public int compare(Integer one, Integer two) {
+					return IndexEntry.compareKeys(searchKeys.get(one),
+							searchKeys.get(two));
 				}
+			});
+			List<byte[]> sortedKeys = new ArrayList<byte[]>();
+			for (int no : order)
+				sortedKeys.add(searchKeys.get(no));
+			int[] leaves = reader.findLeaves(sortedKeys);
+
+			List<IndexEntry> entries = new ArrayList<IndexEntry>(
+					Collections.<IndexEntry> nCopies(keys.size(), null));
+			for (int count = 0; count < leaves.length; count++) {
+				int slot = reader.findSlot(leaves[count], sortedKeys.get(count));
+				if (slot != -1)
+					entries.set(order.get(count), new IndexEntry(
+							sortedKeys.get(count), reader.byteOffset(
+									leaves[count], slot), reader.dataLength(
+									leaves[count], slot)));
 			}
-
-			// Traverse through the right sub tree.
-			else if (pSearchKey.compareTo(pNode.key.get(count)) >= 0) {
-				if (count < pNode.key.size() - 1) {
-					continue;
+			int found = 0;
+			for (byte[] record : readData(reader.inputFile, entries)) {
+				if (record == null) {
+					System.out.println("Data not found");
+				} else {
+					System.out.println(new String(record));
+					found++;
 				}
+			}
+			System.out.println("Found " + found + " of " + keys.size()
+					+ " keys.");
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+		}
+	}
 
-				else if (count == pNode.key.size() - 1) {
-					if (!pNode.isLeaf && pNode.ptr.get(count + 1) != null) {
-						searchListData((BTreeNode) pNode.ptr.get(count + 1),
-								indexFile, pSearchKey, listSize);
-						return;
-					}
-				}
+	/**
+	 * Reads the records of entries from the file which was indexed. The
+	 * records are read in the order of their offsets, so the file is passed
+	 * over once from front to back however the entries are ordered.
+	 * @param inputFile is the file which was indexed.
+	 * @param entries are the entries of the records; null entries are
+	 *        skipped.
+	 * @return the records in the order of the entries, null for a null entry.
+	 */
+	static List<byte[]> readData(String inputFile,
+			final List<IndexEntry> entries) throws IOException {
+		List<Integer> order = new ArrayList<Integer>();
+		for (int count = 0; count < entries.size(); count++) {
+			if (entries.get(count) != null)
+				order.add(count);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer one, Integer two) {
+				return Long.compare(entries.get(one).byteOffset,
+						entries.get(two).byteOffset);
+			}
+		});
+		List<byte[]> records = new ArrayList<byte[]>(
+				Collections.<byte[]> nCopies(entries.size(), null));
+		RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+		try {
+			for (int no : order) {
+				IndexEntry entry = entries.get(no);
+				byte[] record = new byte[entry.dataLength];
+				file.seek(entry.byteOffset);
+				file.readFully(record);
+				records.set(no, record);
 			}
+		} finally {
+			file.close();
 		}
+		return records;
 	}
 
 	/**
 	 * This method prints the data which was found while searching B+ Tree.
 	 * We do a random access on the file using the byte offset and the data length
 	 * variables.
-	 * @param indexFile is the index file to be read.
+	 * @param inputFile is the file which was indexed.
 	 * @param byteOffset is the byte offset which will be used for random access.
 	 * @param dataLength is the no of bytes to be read starting from byteOffset.
 	 * @author Prabhmanmeet Singh
 	 */
-	static void getSearchData(String indexFile, long byteOffset, int dataLength) {
+	static void getSearchData(String inputFile, long byteOffset, int dataLength) {
 		RandomAccessFile file = null;
-		// Get the file name which was index from the metadata.
-		String inputFileName = getInputFileNameFromMetadata(indexFile);
 		try {
-			file = new RandomAccessFile(inputFileName, "r");
-			file.seek(byteOffset); // Place the file pointer at this offset.
-			byte buffer[] = new byte[dataLength];
-			file.read(buffer); // Read the data.
-
-			String str = new String(buffer);
-			System.out.println(str);
-		} catch (Exception e) {
-			System.out.println(e.getStackTrace());
+			file = new RandomAccessFile(inputFile, "r");
+			printRecord(file, byteOffset, dataLength);
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
 		} finally {
 			try {
-				file.close();
+				if (file != null)
+					file.close();
 			} catch (IOException ex) {
 				ex.printStackTrace();
 			}
 		}
 	}
 
+	// Prints the record at an offset of the open file which was indexed.
+	private static void printRecord(RandomAccessFile file, long byteOffset,
+			int dataLength) throws IOException {
+		if (byteOffset + dataLength > file.length())
+			throw new IOException("Record at " + byteOffset
+					+ " is past the end of the file");
+		byte buffer[] = new byte[dataLength];
+		file.seek(byteOffset); // Place the file pointer at this offset.
+		file.readFully(buffer); // Read the whole record.
+		System.out.println(new String(buffer));
+	}
+
 	/**
 	 * This method inserts the new data into the input file.
 	 * @param indexFile is the index file to be read.
@@ -679,148 +399,105 @@ public class DBIndexFile {
 	 */
 	static void insertNewData(String indexFile, String pData) {
 		int keyLength = Integer.parseInt(getKeyLengthFromMetadata(indexFile));
-		// Extract the key from the data.
-		String key = (String) pData.subSequence(0, keyLength);
+		// Extract the key from the bytes the data is written as, like -create
+		// does.
+		byte[] data = pData.getBytes();
+		if (data.length < keyLength) {
+			System.out.println("Data is shorter than the key.");
+			return;
+		}
+		// ISO 8859-1 maps each byte to a char and back, so the key keeps the
+		// bytes of the data.
+		String key = new String(data, 0, keyLength, StandardCharsets.ISO_8859_1);
 		// Check if the key exists.
 		readIndexBeforeInsert(indexFile, key, pData);
 	}
 
+	/**
+	 * Opens an index for concurrent use and prints what was recovered from
+	 * its write-ahead log, if anything.
+	 * @param indexFile is the index file.
+	 * @return the handle of the index.
+	 */
+	static ConcurrentIndex openConcurrent(String indexFile) throws IOException {
+		ConcurrentIndex index = ConcurrentIndex.open(indexFile);
+		if (index.recovery() != null)
+			System.out.println(index.recovery());
+		return index;
+	}
+
 	/**
 	 * This function will read the index file and searches for the key which
 	 * must be inserted. This is for sanity check.
-	 * @param indexFile is the index file to be read to get the 3K block of the tree.
+	 * @param indexFile is the index file to be searched and updated.
 	 * @param pSearchKey is the key that must be searched before inserting.
 	 * @param pData is the data that must be added.
 	 * @author Prabhmanmeet Singh
 	 */
 	static void readIndexBeforeInsert(String indexFile, String pSearchKey,
 			String pData) {
-		BTreeNode newRoot = null;
+		ConcurrentIndex index = null;
 		try {
-			FileInputStream fin = new FileInputStream(indexFile);
-			FileChannel fc = fin.getChannel();
-			fc.position(1025l); // Because metadata is 1024 bytes.
-			ObjectInputStream ois = new ObjectInputStream(fin);
-			// Reading Root node from file.
-			newRoot = (BTreeNode) ois.readObject();
-			ois.close();
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
-
-		if (newRoot != null) { // Search for the data.
-			searchDataBeforeInsert(newRoot, indexFile, pSearchKey, pData);
+			// Opening the index replays the inserts of a run which didn't
+			// finish.
+			index = openConcurrent(indexFile);
+			// Search for the data.
+			searchDataBeforeInsert(index, pSearchKey, pData);
+			if (IndexConfig.printStats())
+				System.out.println(index.statistics());
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+		} finally {
+			try {
+				if (index != null)
+					index.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
 		}
 	}
 
 	
 	/**
-	 * Recursive function which traverses the given sub tree and searches for the key.
-	 * If not found, we will insert it.
-	 * @param pNode is the node being traversed.
-	 * @param indexFile is the index file being read.
+	 * Searches the index for the key. If not found, we will insert it.
+	 * @param index is the opened index.
 	 * @param pSearchKey is the key which must be found before adding it to B+ Tree.
 	 * @param pData is the data to be added.
 	 * @author Yogeshwara Krishnan
 	 */
-	static void searchDataBeforeInsert(BTreeNode pNode, String indexFile,
-			String pSearchKey, String pData) {
-		for (int count = 0; count < pNode.key.size(); count++) {
-			// Check if the node is a leaf node.
-			if (pNode.isLeaf) {
-				int keyIndex = pNode.key.indexOf(pSearchKey);
-				if (keyIndex == -1) { // When data wasn't found. Add the data at
-										// the end of the file.
-					// System.out.println("Data not found");
-					String inputFileName = getInputFileNameFromMetadata(indexFile);
-
-					// Append the data to the text file.
-					int fileOffset = updateInputFile(inputFileName, pData);
-					// Update the index file.
-					updateBTree(inputFileName, indexFile, pSearchKey,
-							fileOffset, pData.length() + 1,
-							getKeyLengthFromMetadata(indexFile));
-					return;
-				} else if (keyIndex != -1) {
-					System.out
-							.println("Data already exists. Duplicates not allowed");
-					return;
-				}
-			}
-
-			// Traverse the left sub tree.
-			else if (pSearchKey.compareTo(pNode.key.get(count)) < 0) {
-				if (!pNode.isLeaf && pNode.ptr.get(count) != null) {
-					searchDataBeforeInsert(pNode.ptr.get(count), indexFile,
-							pSearchKey, pData);
-					return;
-				}
-			}
-
-			// Traverse the right sub tree.
-			else if (pSearchKey.compareTo(pNode.key.get(count)) >= 0) {
-				if (count < pNode.key.size() - 1) {
-					continue;
-				}
-
-				else if (count == pNode.key.size() - 1) {
-					if (!pNode.isLeaf && pNode.ptr.get(count + 1) != null) {
-						searchDataBeforeInsert(
-								(BTreeNode) pNode.ptr.get(count + 1),
-								indexFile, pSearchKey, pData);
-						return;
-					}
-				}
-			}
+	static void searchDataBeforeInsert(ConcurrentIndex index,
+			String pSearchKey, String pData) throws IOException {
+		int keyLength = index.getIndexFile().keyLength;
+		if (index.find(IndexFile.toKeyBytes(pSearchKey, keyLength)) == null) {
+			// When data wasn't found. Add the data at the end of the file.
+			String inputFileName = index.getIndexFile().inputFile;
+
+			// Append the data to the text file.
+			byte[] data = pData.getBytes();
+			long fileOffset = updateInputFile(inputFileName, data);
+			// Update the index file.
+			updateBTree(index, pSearchKey, fileOffset, data.length);
+		} else {
+			System.out.println("Data already exists. Duplicates not allowed");
 		}
 	}
 
 	/**
-	 * This method updates the index file.
-	 * @param inputFile is the input file to be updated.
-	 * @param indexFile is the index file to be updated.
+	 * This method updates the index file. The key is inserted into the pages
+	 * of the tree in place, so only the pages on its root to leaf path and
+	 * the new pages of any splits change. They are marked dirty in the buffer
+	 * pool and written back at their positions when the index is closed,
+	 * and the insert is kept in the write-ahead log until then.
+	 * @param index is the opened index to be updated.
 	 * @param pSearchKey is the key to be added to the B+ tree.
 	 * @param fileOffset is the file offset where the key must be added.
 	 * @param length is the length of the data being added.
-	 * @param pkeyLength is the length of the key got from metadata.
 	 * @author Prabhmanmeet Singh
 	 */
-	private static void updateBTree(String inputFile, String indexFile,
-			String pSearchKey, int fileOffset, int length, String pkeyLength) {
-
-		BTreeNode newRoot = null;
-		try {
-			FileInputStream fin = new FileInputStream(indexFile);
-			FileChannel fc = fin.getChannel();
-			fc.position(1025l);
-			ObjectInputStream ois = new ObjectInputStream(fin);
-			newRoot = (BTreeNode) ois.readObject();
-			ois.close();
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
-
-		root = newRoot;
-		insertIntoBTree(newRoot, pSearchKey, fileOffset, length);
-
-		try {
-			FileOutputStream fout = new FileOutputStream(indexFile);
-			FileChannel fc = fout.getChannel();
-			// Re-write the metadata to be sure.
-			byte[] inputFileName = inputFile.getBytes();
-			byte[] keyLength = pkeyLength.getBytes();
-			byte[] rootOffset = (" " + root.key.get(0)).getBytes();
-			fc.write(ByteBuffer.wrap(inputFileName));
-			fc.write(ByteBuffer.wrap(keyLength), 257l);
-			fc.write(ByteBuffer.wrap(rootOffset), 260l);
-			fc.position(1025l);
-			ObjectOutputStream oos = new ObjectOutputStream(fout);
-			oos.writeObject(root);
-			oos.close();
-			// System.out.println("Done");
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
+	private static void updateBTree(ConcurrentIndex index, String pSearchKey,
+			long fileOffset, int length) throws IOException {
+		index.insert(IndexFile.toKeyBytes(pSearchKey,
+				index.getIndexFile().keyLength), fileOffset, length);
 	}
 
 	
@@ -828,105 +505,405 @@ public class DBIndexFile {
 	 * This method inserts the new data after checking the index
 	 * if it exists or not.
 	 * @param inputFile is the input file to be updated
-	 * @param pData is the data to be added.
-	 * @return fileOffset is the offset where the new key was added.
+	 * @param pData are the bytes of the data to be added.
+	 * @return fileOffset is the offset where the new record starts.
 	 * @author Yogeshwara Krishnan
 	 */
-	private static int updateInputFile(String inputFile, String pData) {
+	private static long updateInputFile(String inputFile, byte[] pData)
+			throws IOException {
+		long[] fileOffsets = new long[1];
+		appendRecords(inputFile, Arrays.asList(pData), fileOffsets);
+		return fileOffsets[0]; // return the file offset to update the B+ Tree.
+	}
+
+	/**
+	 * Appends records to the end of the input file with a single buffered
+	 * write, each followed by a new line. Unless the write-ahead log is
+	 * synced asynchronously, the records are synced before their inserts are
+	 * logged, so a logged insert never points past the end of the file.
+	 * @param inputFile is the input file to be updated.
+	 * @param records are the bytes of the records to be added.
+	 * @param fileOffsets receives the offset where each record starts.
+	 */
+	private static void appendRecords(String inputFile, List<byte[]> records,
+			long[] fileOffsets) throws IOException {
 		File inFile = new File(inputFile);
-		int fileOffset = 0;
+		long fileOffset = 0;
 		if (inFile.exists()) {
-			fileOffset = (int) inFile.length(); // End of the file.
+			fileOffset = inFile.length(); // End of the file.
 		}
 
-		RandomAccessFile file = null;
+		RandomAccessFile file = new RandomAccessFile(inputFile, "rw");
 		try {
-			file = new RandomAccessFile(inputFile, "rw");
-			file.seek(fileOffset - 1); // Check if the eof is new line or not.
-
+			// Check if the eof is new line or not.
 			byte[] buffer = new byte[1];
-			file.read(buffer);
-			if ((int) buffer[0] == 10) {
-				file.seek(fileOffset);
-				file.writeBytes(pData + "\n");
-			} else {
-				file.seek(fileOffset);
-				file.writeBytes("\n" + pData);
+			if (fileOffset > 0) {
+				file.seek(fileOffset - 1);
+				file.read(buffer);
 			}
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (fileOffset > 0 && buffer[0] != '\n') {
+				out.write('\n');
+			}
+			for (int count = 0; count < records.size(); count++) {
+				fileOffsets[count] = fileOffset + out.size();
+				out.write(records.get(count));
+				out.write('\n');
+			}
+			file.seek(fileOffset);
+			file.write(out.toByteArray());
+			if (IndexConfig.walSync() != WriteAheadLog.SyncPolicy.ASYNC)
+				file.getChannel().force(false);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Inserts a batch of records, one per line of a file or of the standard
+	 * input. The new keys are sorted, the keys which are already present or
+	 * repeated in the batch are left out, the records are appended to the
+	 * file which was indexed in one write, and the entries are added to the
+	 * tree in a single pass which writes every changed leaf once.
+	 * @param indexFile is the index file to be updated.
+	 * @param recordFile is the file with the records, or - for the standard
+	 *        input.
+	 */
+	static void insertBatch(String indexFile, String recordFile) {
+		ConcurrentIndex index = null;
+		try {
+			index = openConcurrent(indexFile);
+			int keyLength = index.getIndexFile().keyLength;
+			List<byte[]> records = new ArrayList<byte[]>();
+			for (byte[] data : readRecords(recordFile)) {
+				if (data.length < keyLength)
+					System.out.println("Data is shorter than the key.");
+				else
+					records.add(data);
+			}
+			int inserted = insertRecords(index, records);
+			System.out.println("Inserted " + inserted + " records, "
+					+ (records.size() - inserted) + " duplicates not allowed.");
+			if (IndexConfig.printStats())
+				System.out.println(index.statistics());
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+		} finally {
+			try {
+				if (index != null)
+					index.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the record of a key. The entry is removed from the index and
+	 * the record is blanked out in the file which was indexed, where its
+	 * bytes stay until -compact drops them.
+	 * @param indexFile is the index file to be updated.
+	 * @param pSearchKey is the key of the record to be deleted.
+	 */
+	static void deleteData(String indexFile, String pSearchKey) {
+		ConcurrentIndex index = null;
+		try {
+			index = openConcurrent(indexFile);
+			// The key is compared with the raw bytes of the data file, like
+			// -find does. A key longer than the key length isn't present.
+			IndexEntry entry = index.delete(pSearchKey.getBytes());
+			if (entry == null)
+				System.out.println("Data not found");
+			else
+				System.out.println("Deleted " + entry.dataLength
+						+ " bytes at offset " + entry.byteOffset);
+			if (IndexConfig.printStats())
+				System.out.println(index.statistics());
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+		} finally {
+			try {
+				if (index != null)
+					index.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Drops the records blanked out by deletes from the file which was
+	 * indexed and builds the index again, as the records after them move.
+	 * Deleted records are empty lines, so every empty line is dropped. The
+	 * index is opened and closed first, which replays its write-ahead log.
+	 * @param indexFile is the index file to be rebuilt.
+	 */
+	static void compactDataFile(String indexFile) {
+		ConcurrentIndex index = null;
+		IndexFile file = null;
+		try {
+			index = openConcurrent(indexFile);
+			file = index.getIndexFile();
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
 		} finally {
 			try {
+				if (index != null)
+					index.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				file = null;
+			}
+		}
+		if (file == null)
+			return;
+		if (file.deadBytes == 0) {
+			System.out.println("No deleted records to drop.");
+			return;
+		}
+
+		File data = new File(file.inputFile);
+		File compacted = new File(file.inputFile + ".compact");
+		long dropped;
+		try {
+			dropped = copyRecords(data, compacted);
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+			compacted.delete();
+			return;
+		}
+		try {
+			// The copy replaces the file in one step, so a crash leaves
+			// either of them in place.
+			Files.move(compacted.toPath(), data.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			System.out.println("Could not replace " + data + " with "
+					+ compacted + ": " + ex.getMessage());
+			if (data.exists())
+				compacted.delete();
+			return;
+		}
+		System.out.println("Dropped " + dropped + " bytes of deleted records");
+		String keyLength = Integer.toString(file.keyLength);
+		calculateDegree(keyLength);
+		createIndexFile(keyLength, file.inputFile, indexFile,
+				file.compressedLeaves);
+	}
+
+	// Copies the lines of a file which aren't empty and returns the no. of
+	// bytes left out. A "\r" before a line break doesn't count. The copy is
+	// synced to the disk before it is closed.
+	private static long copyRecords(File from, File to) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(from));
+		FileOutputStream file = null;
+		OutputStream out = null;
+		long dropped = 0;
+		try {
+			file = new FileOutputStream(to);
+			out = new BufferedOutputStream(file);
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int next;
+			while ((next = in.read()) != -1) {
+				line.write(next);
+				if (next != '\n')
+					continue;
+				int length = line.size() - 1;
+				if (length > 0 && line.toByteArray()[length - 1] == '\r')
+					length--;
+				if (length > 0)
+					line.writeTo(out);
+				else
+					dropped += line.size();
+				line.reset();
+			}
+			line.writeTo(out); // The last line has no line break.
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			in.close();
+			if (out != null)
+				out.close();
+			else if (file != null)
 				file.close();
+		}
+		return dropped;
+	}
+
+	/**
+	 * Inserts records whose keys aren't present yet. The keys are sorted,
+	 * the first of the records with equal keys is kept, the records are
+	 * appended to the file which was indexed in one write, and the entries
+	 * are added to the tree in a single pass.
+	 * @param index is the opened index.
+	 * @param records are the records, none shorter than the key.
+	 * @return the no. of records inserted.
+	 */
+	static int insertRecords(ConcurrentIndex index, List<byte[]> records)
+			throws IOException {
+		int keyLength = index.getIndexFile().keyLength;
+		// Sort the keys, keeping the first of the records with equal keys.
+		List<IndexEntry> keys = new ArrayList<IndexEntry>();
+		for (int count = 0; count < records.size(); count++) {
+			byte[] data = records.get(count);
+			keys.add(new IndexEntry(Arrays.copyOf(data, keyLength), count,
+					data.length));
+		}
+		Collections.sort(keys, IndexEntry.FILE_ORDER);
+		List<byte[]> newRecords = new ArrayList<byte[]>();
+		List<IndexEntry> newKeys = new ArrayList<IndexEntry>();
+		for (IndexEntry key : keys) {
+			if ((!newKeys.isEmpty() && IndexEntry.compareKeys(key.key,
+					newKeys.get(newKeys.size() - 1).key) == 0)
+					|| index.find(key.key) != null)
+				continue;
+			newKeys.add(key);
+			newRecords.add(records.get((int) key.byteOffset));
+		}
+		if (newKeys.isEmpty())
+			return 0;
+
+		long[] fileOffsets = new long[newRecords.size()];
+		appendRecords(index.getIndexFile().inputFile, newRecords, fileOffsets);
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		for (int count = 0; count < newKeys.size(); count++)
+			entries.add(new IndexEntry(newKeys.get(count).key,
+					fileOffsets[count], newKeys.get(count).dataLength));
+		return index.insertBatch(entries);
+	}
+
+	/**
+	 * Opens indexes and answers requests for them over a local socket until
+	 * the process is stopped. The indexes are closed on the way out, which
+	 * writes a checkpoint of each.
+	 * @param address is a port on the loopback address or the path of a Unix
+	 *            domain socket.
+	 * @param indexFiles are the index files, numbered from 0 in this order.
+	 */
+	static void serveIndexes(String address, List<String> indexFiles) {
+		final IndexServer server;
+		try {
+			server = IndexServer.open(address, indexFiles);
+			if (server.recovery() != null)
+				System.out.println(server.recovery());
+			System.out.println("Serving " + indexFiles.size()
+					+ " index(es) on " + server.getAddress());
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					server.close();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		});
+		try {
+			server.serve();
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+		} finally {
+			try {
+				server.close();
 			} catch (IOException ex) {
 				ex.printStackTrace();
 			}
 		}
+	}
 
-		return fileOffset; // return the file offset to update the B+ Tree.
+	// Reads the lines of a file, or of the standard input for -, as bytes
+	// the same way -insert takes its record.
+	private static List<byte[]> readRecords(String recordFile)
+			throws IOException {
+		BufferedReader reader = new BufferedReader("-".equals(recordFile) ? new InputStreamReader(
+				System.in) : new FileReader(recordFile));
+		List<byte[]> records = new ArrayList<byte[]>();
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0)
+					records.add(line.getBytes());
+			}
+		} finally {
+			reader.close();
+		}
+		return records;
 	}
 
 	/**
-	 * This method writes the 3K nodes in the memory to the index file.
+	 * This method reads the key, byte offset and length of every record of the
+	 * input file, sorts them by key and bulk loads them into the index file.
+	 * The input file is scanned and the keys are sorted in parallel byte
+	 * ranges; keys which don't fit in the sort memory are spilled to sorted
+	 * run files and merged while the tree is built.
 	 * @param pKeyLength is the length of the key.
 	 * @param inputFile is the input file to be read.
 	 * @param outputFile is the name of the index file.
+	 * @param compressedLeaves is true if the leaves are stored compressed.
 	 * @author Prabhmanmeet Singh
 	 */
 	private static void createIndexFile(String pKeyLength, String inputFile,
-			String outputFile) {
-		BufferedReader br = null;
-		int byteOffset = 0;
+			String outputFile, boolean compressedLeaves) {
 		int keyLength = Integer.parseInt(pKeyLength);
+		ExternalSorter sorter = new ExternalSorter(keyLength,
+				IndexConfig.sortMemory(), IndexConfig.tempDir());
 
 		try {
-			String sCurrentLine;
-			br = new BufferedReader(new FileReader(inputFile));
-			while ((sCurrentLine = br.readLine()) != null) {
-				insertIntoBTree(root,
-						(String) sCurrentLine.subSequence(0, keyLength),
-						byteOffset, sCurrentLine.length());
-				byteOffset += sCurrentLine.length() + 2;
-			}
+			new ParallelIndexBuilder(inputFile, keyLength,
+					IndexConfig.buildThreads(), sorter).scan();
 		} catch (IOException e) {
 			System.out.println("File " + inputFile + " not found.");
-		} finally {
-			try {
-				if (br != null)
-					br.close();
-			} catch (IOException ex) {
-				ex.printStackTrace();
-			}
 		}
 
-		writetoIndexFile(pKeyLength, inputFile, outputFile);
+		writetoIndexFile(pKeyLength, inputFile, outputFile, sorter,
+				compressedLeaves);
 	}
 
 	/**
-	 * This method writes the B+Tree into a file.
+	 * This method builds the B+Tree bottom up from the sorted entries and
+	 * writes it into a file.
 	 * @param pKeyLength is the length of the key.
 	 * @param inputFile is the input file name.
 	 * @param outputFile is the output file name.
+	 * @param sorter holds the entries to be indexed.
+	 * @param compressedLeaves is true if the leaves are stored compressed.
 	 * @author Yogeshwara Krishnan
 	 */
 	private static void writetoIndexFile(String pKeyLength, String inputFile,
-			String outputFile) {
+			String outputFile, ExternalSorter sorter, boolean compressedLeaves) {
+		IndexFile index = null;
 		try {
-			FileOutputStream fout = new FileOutputStream(outputFile);
 			// Write the metadata. Metadata includes the file name being
-			// indexed, the key length, offset of the root.
-			byte[] inputFileName = inputFile.getBytes();
-			byte[] keyLength = pKeyLength.getBytes();
-			byte[] rootOffset = (" " + root.key.get(0)).getBytes();
-			FileChannel fc = fout.getChannel();
-			fc.write(ByteBuffer.wrap(inputFileName));
-			fc.write(ByteBuffer.wrap(keyLength), 257l);
-			fc.write(ByteBuffer.wrap(rootOffset), 260l);
-			fc.position(1025l);
-			ObjectOutputStream oos = new ObjectOutputStream(fout);
-			oos.writeObject(root);
-			oos.close();
-		} catch (Exception ex) {
+			// indexed, the key length, the degree and the page of the root.
+			index = IndexFile.create(outputFile, inputFile,
+					Integer.parseInt(pKeyLength), DEGREE);
+			index.compressedLeaves = compressedLeaves;
+			// Pack the leaves left to right and build the levels above them.
+			// The sorted entries are streamed into the loader.
+			BulkLoader loader = new BulkLoader(index, IndexConfig.fillFactor());
+			sorter.writeTo(loader);
+			loader.finish();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			sorter.close();
+			closeIndexFile(index);
+		}
+	}
+
+	/**
+	 * Closes an index file opened by one of the operations.
+	 * @param index is the index file, may be null if opening it failed.
+	 */
+	static void closeIndexFile(IndexFile index) {
+		try {
+			if (index != null)
+				index.close();
+		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
 	}
@@ -949,6 +926,13 @@ public class DBIndexFile {
 			inputFileName = new String(inputFileByte);
 		} catch (Exception e) {
 			System.out.println(e.getLocalizedMessage());
+		} finally {
+			try {
+				if (file != null)
+					file.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
 		}
 
 		return inputFileName.trim();
@@ -972,6 +956,13 @@ public class DBIndexFile {
 			keyLength = new String(keyLengthByte);
 		} catch (Exception e) {
 			System.out.println(e.getStackTrace());
+		} finally {
+			try {
+				if (file != null)
+					file.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
 		}
 
 		return keyLength.trim();
@@ -991,14 +982,14 @@ public class DBIndexFile {
 
 	// Main method.
 	public static void main(String[] args) {
-		root = new BTreeNode();
 		// To make sure, upper and lower case do not make a difference.
 		String operation = args[0].toLowerCase();
 
 		if ("-create".compareTo(operation) == 0) {
 			System.out.println("Create");
 			calculateDegree(args[1]);
-			createIndexFile(args[1], args[2], args[3]);
+			createIndexFile(args[1], args[2], args[3],
+					IndexConfig.compressLeaves());
 			getInputFileNameFromMetadata(args[3]);
 		}
 
@@ -1007,16 +998,51 @@ public class DBIndexFile {
 			readIndexForSearch(args[1], args[2]);
 		}
 
+		else if ("-findbatch".compareTo(operation) == 0) {
+			System.out.println("Find batch");
+			searchBatch(args[1], args[2]);
+		}
+
 		else if ("-insert".compareTo(operation) == 0) {
 			System.out.println("Insert");
 			insertNewData(args[1], args[2]);
 		}
 
+		else if ("-insertbatch".compareTo(operation) == 0) {
+			System.out.println("Insert batch");
+			insertBatch(args[1], args[2]);
+		}
+
+		else if ("-delete".compareTo(operation) == 0) {
+			System.out.println("Delete");
+			deleteData(args[1], args[2]);
+		}
+
+		else if ("-compact".compareTo(operation) == 0) {
+			System.out.println("Compact");
+			compactDataFile(args[1]);
+		}
+
 		else if ("-list".compareTo(operation) == 0) {
 			System.out.println("List");
 			readIndexForListSearch(args[1], args[2], args[3]);
 		}
 
+		else if ("-listdesc".compareTo(operation) == 0) {
+			System.out.println("List descending");
+			readIndexForDescendingSearch(args[1], args[2], args[3]);
+		}
+
+		else if ("-range".compareTo(operation) == 0) {
+			System.out.println("Range");
+			readIndexForRangeSearch(args[1], args[2], args[3], args[4]);
+		}
+
+		else if ("-serve".compareTo(operation) == 0) {
+			System.out.println("Serve");
+			serveIndexes(args[1], Arrays.asList(args).subList(2, args.length));
+		}
+
 		System.out.println("Success");
 	}
 }
\ No newline at end of file
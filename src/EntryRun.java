@@ -0,0 +1,149 @@
+/**
+A run of index entries packed into primitive arrays: the keys one after the
+other in a single byte array, the byte offsets in a long array and the data
+lengths in an int array. Collecting the records of a data file this way
+creates no object per record. The run is sorted through an array of entry
+numbers, ordered by key and then by byte offset like IndexEntry.FILE_ORDER.
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+class EntryRun {
+
+	private final int keyLength;
+	private byte[] keys;
+	private long[] offsets;
+	private int[] lengths;
+	private int[] order; // Entry numbers in sorted order, once sorted.
+	private int size;
+
+	/**
+	 * @param keyLength
+	 *            is the length of the keys in bytes.
+	 * @param capacity
+	 *            is the initial no. of entries the run has room for.
+	 */
+	EntryRun(int keyLength, int capacity) {
+		capacity = Math.max(capacity, 16);
+		this.keyLength = keyLength;
+		this.keys = new byte[capacity * keyLength];
+		this.offsets = new long[capacity];
+		this.lengths = new int[capacity];
+	}
+
+	/**
+	 * Returns the no. of heap bytes taken by one entry of a run.
+	 *
+	 * @param keyLength
+	 *            is the length of the keys in bytes.
+	 */
+	static long entrySize(int keyLength) {
+		return keyLength + 8 + 4 + 4;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Adds the current record of a scanner to the run.
+	 *
+	 * @param scanner
+	 *            is positioned on a record which has a key.
+	 */
+	void add(RecordScanner scanner) throws IOException {
+		if (size == offsets.length)
+			grow();
+		scanner.copyKey(keys, size * keyLength);
+		offsets[size] = scanner.offset();
+		lengths[size] = scanner.length();
+		size++;
+	}
+
+	private void grow() {
+		int capacity = offsets.length * 2;
+		byte[] newKeys = new byte[capacity * keyLength];
+		System.arraycopy(keys, 0, newKeys, 0, size * keyLength);
+		keys = newKeys;
+		long[] newOffsets = new long[capacity];
+		System.arraycopy(offsets, 0, newOffsets, 0, size);
+		offsets = newOffsets;
+		int[] newLengths = new int[capacity];
+		System.arraycopy(lengths, 0, newLengths, 0, size);
+		lengths = newLengths;
+	}
+
+	/**
+	 * Sorts the run with a merge sort over the entry numbers.
+	 */
+	void sort() {
+		order = new int[size];
+		for (int count = 0; count < size; count++)
+			order[count] = count;
+		int[] temp = new int[size];
+		mergeSort(order, temp, 0, size);
+	}
+
+	private void mergeSort(int[] a, int[] temp, int from, int to) {
+		if (to - from < 2)
+			return;
+		int middle = (from + to) >>> 1;
+		mergeSort(a, temp, from, middle);
+		mergeSort(a, temp, middle, to);
+		if (compare(a[middle - 1], a[middle]) <= 0)
+			return; // Already in order.
+		System.arraycopy(a, from, temp, from, to - from);
+		int left = from, right = middle;
+		for (int count = from; count < to; count++) {
+			if (right >= to
+					|| (left < middle && compare(temp[left], temp[right]) <= 0))
+				a[count] = temp[left++];
+			else
+				a[count] = temp[right++];
+		}
+	}
+
+	// Compares two entries by key and then by byte offset.
+	private int compare(int a, int b) {
+		int posA = a * keyLength, posB = b * keyLength;
+		for (int count = 0; count < keyLength; count++) {
+			int diff = (keys[posA + count] & 0xff) - (keys[posB + count] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return offsets[a] < offsets[b] ? -1 : (offsets[a] == offsets[b] ? 0 : 1);
+	}
+
+	/**
+	 * Returns the entry at the given position of the sorted run.
+	 *
+	 * @param index
+	 *            is the position in sorted order.
+	 */
+	IndexEntry get(int index) {
+		int entry = order[index];
+		byte[] key = new byte[keyLength];
+		System.arraycopy(keys, entry * keyLength, key, 0, keyLength);
+		return new IndexEntry(key, offsets[entry], lengths[entry]);
+	}
+
+	/**
+	 * Writes the sorted run in the run file layout of ExternalSorter.
+	 *
+	 * @param out
+	 *            is the stream of the run file.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		for (int index = 0; index < size; index++) {
+			int entry = order[index];
+			out.write(keys, entry * keyLength, keyLength);
+			out.writeLong(offsets[entry]);
+			out.writeInt(lengths[entry]);
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/**
+Sorts index entries which may not fit in memory. Entries arrive in packed
+EntryRuns through addRun, which several threads may call at the same time.
+Each run is sorted by the thread adding it and is then kept in memory while
+the runs held in memory fit in half of the budget, and is otherwise written to
+a temporary run file. When all entries have been added the runs are merged k
+ways, at most as many files at a time as the budget has room for read
+buffers, and the merged stream is handed straight to a BulkLoader. Memory use is therefore bounded by the budget no
+matter how large the data file is.
+
+Entries with equal keys are ordered by byte offset, so the first record of a
+duplicate key in the data file always comes first, whichever runs the records
+ended up in.
+
+Run file layout: for each entry the key (keyLength bytes), the byte offset
+(8 bytes) and the data length (4 bytes).
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+class ExternalSorter {
+
+	static final int RUN_BUFFER_SIZE = 64 * 1024; // Read/write buffer per run.
+
+	private final int keyLength;
+	private final long memoryBudget; // Bytes available for sorting.
+	private final File tempDir; // Directory of the run files.
+	private final List<EntryRun> memoryRuns = new ArrayList<EntryRun>();
+	private final List<File> fileRuns = new ArrayList<File>();
+	private long memoryRunBytes; // Bytes held by the runs kept in memory.
+
+	/**
+	 * @param keyLength
+	 *            is the length of the keys in bytes.
+	 * @param memoryBudget
+	 *            is the no. of bytes the sorter may use.
+	 * @param tempDir
+	 *            is the directory for the run files, or null for the default
+	 *            temporary directory.
+	 */
+	ExternalSorter(int keyLength, long memoryBudget, File tempDir) {
+		this.keyLength = keyLength;
+		this.memoryBudget = Math.max(memoryBudget, 4 * RUN_BUFFER_SIZE);
+		this.tempDir = tempDir;
+	}
+
+	/**
+	 * Returns the no. of heap bytes a run may take before it is sorted, if
+	 * the budget is shared by the given no. of threads.
+	 *
+	 * @param threads
+	 *            is the no. of threads collecting runs at the same time.
+	 */
+	long runBudget(int threads) {
+		return memoryBudget / (2 * Math.max(1, threads));
+	}
+
+	/**
+	 * Returns the no. of entries a run may hold before it is sorted, if the
+	 * budget is shared by the given no. of threads.
+	 *
+	 * @param threads
+	 *            is the no. of threads collecting runs at the same time.
+	 */
+	int runEntries(int threads) {
+		return (int) Math.min(Integer.MAX_VALUE / keyLength,
+				Math.max(1, runBudget(threads) / EntryRun.entrySize(keyLength)));
+	}
+
+	/**
+	 * Sorts a run of entries and keeps it, in memory if there is room for it
+	 * and in a run file otherwise. May be called by several threads at once.
+	 *
+	 * @param run
+	 *            are the entries; the run is owned by the sorter afterwards.
+	 */
+	void addRun(EntryRun run) throws IOException {
+		if (run.isEmpty())
+			return;
+		run.sort();
+
+		long runBytes = run.size() * EntryRun.entrySize(keyLength);
+		synchronized (this) {
+			if (memoryRunBytes + runBytes <= memoryBudget / 2) {
+				memoryRuns.add(run);
+				memoryRunBytes += runBytes;
+				return;
+			}
+		}
+
+		// No room left in memory; spill the run outside the lock so that
+		// other threads can spill theirs at the same time.
+		File file = newRunFile();
+		RunWriter out = new RunWriter(file);
+		try {
+			run.writeTo(out.out);
+		} finally {
+			out.close();
+		}
+		synchronized (this) {
+			fileRuns.add(file);
+		}
+	}
+
+	/**
+	 * Returns the no. of runs spilled to disk so far.
+	 */
+	synchronized int getRunCount() {
+		return fileRuns.size();
+	}
+
+	/**
+	 * Merges everything added so far and adds it to the loader in key order.
+	 * The run files are deleted afterwards.
+	 *
+	 * @param loader
+	 *            is the loader building the tree.
+	 */
+	void writeTo(BulkLoader loader) throws IOException {
+		try {
+			// Reduce the no. of run files until all of them can be merged at
+			// once.
+			int fanIn = (int) Math.max(2, memoryBudget / 2 / RUN_BUFFER_SIZE);
+			while (fileRuns.size() > fanIn) {
+				List<RunReader> group = new ArrayList<RunReader>();
+				for (int count = 0; count < fanIn; count++)
+					group.add(new FileRunReader(fileRuns.get(count)));
+				File merged = newRunFile();
+				RunWriter out = new RunWriter(merged);
+				try {
+					merge(group, out, null);
+				} finally {
+					out.close();
+				}
+				for (int count = 0; count < fanIn; count++)
+					fileRuns.get(count).delete();
+				fileRuns.subList(0, fanIn).clear();
+				fileRuns.add(merged);
+			}
+
+			List<RunReader> readers = new ArrayList<RunReader>();
+			for (EntryRun run : memoryRuns)
+				readers.add(new MemoryRunReader(run));
+			for (File file : fileRuns)
+				readers.add(new FileRunReader(file));
+			merge(readers, null, loader);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Deletes the run files and drops the runs held in memory.
+	 */
+	synchronized void close() {
+		for (File file : fileRuns)
+			file.delete();
+		fileRuns.clear();
+		memoryRuns.clear();
+		memoryRunBytes = 0;
+	}
+
+	private File newRunFile() throws IOException {
+		File file = File.createTempFile("bptree-run", ".tmp", tempDir);
+		file.deleteOnExit();
+		return file;
+	}
+
+	// Merges the runs in order into either a run file or the loader.
+	private void merge(List<RunReader> readers, RunWriter out,
+			BulkLoader loader) throws IOException {
+		PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(
+				Math.max(1, readers.size()));
+		try {
+			for (RunReader reader : readers) {
+				if (reader.next())
+					heap.add(reader);
+			}
+			while (!heap.isEmpty()) {
+				RunReader reader = heap.poll();
+				if (out != null)
+					out.write(reader.head);
+				else
+					loader.add(reader.head);
+				if (reader.next())
+					heap.add(reader);
+			}
+		} finally {
+			for (RunReader reader : readers)
+				reader.close();
+		}
+	}
+
+	// Sequential writer of a run file.
+	private class RunWriter {
+		final DataOutputStream out;
+
+		RunWriter(File file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), RUN_BUFFER_SIZE));
+		}
+
+		void write(IndexEntry entry) throws IOException {
+			out.write(entry.key, 0, keyLength);
+			out.writeLong(entry.byteOffset);
+			out.writeInt(entry.dataLength);
+		}
+
+		void close() throws IOException {
+			out.close();
+		}
+	}
+
+	// Sequential reader of a run, ordered by its current entry.
+	private abstract static class RunReader implements Comparable<RunReader> {
+		IndexEntry head; // Current entry of the run.
+
+		// Moves to the next entry, returns false at the end of the run.
+		abstract boolean next() throws IOException;
+
+		void close() throws IOException {
+		}
+
+		public int compareTo(RunReader other) {
+			return IndexEntry.FILE_ORDER.compare(head, other.head);
+		}
+	}
+
+	// Reader of a run kept in memory.
+	private static class MemoryRunReader extends RunReader {
+		private final EntryRun run;
+		private int position;
+
+		MemoryRunReader(EntryRun run) {
+			this.run = run;
+		}
+
+		boolean next() {
+			head = position < run.size() ? run.get(position++) : null;
+			return head != null;
+		}
+	}
+
+	// Reader of a run file.
+	private class FileRunReader extends RunReader {
+		private final DataInputStream in;
+
+		FileRunReader(File file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), RUN_BUFFER_SIZE));
+		}
+
+		boolean next() throws IOException {
+			byte[] key = new byte[keyLength];
+			try {
+				in.readFully(key);
+			} catch (EOFException ex) {
+				head = null;
+				return false;
+			}
+			head = new IndexEntry(key, in.readLong(), in.readInt());
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+}
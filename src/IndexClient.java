@@ -0,0 +1,317 @@
+/**
+Client of an IndexServer. It keeps one connection to the server and sends the
+requests described there; findAll sends many lookups before reading any of the
+answers, so they share round trips. From the command line:
+
+	java IndexClient <address> -find <index no> <key>
+	java IndexClient <address> -list <index no> <key> <no. of records>
+	java IndexClient <address> -insert <index no> <record>
+	java IndexClient <address> -insertbatch <index no> <record file>
+	java IndexClient <address> -delete <index no> <key>
+	java IndexClient <address> -findall <index no> <key file>
+
+The address is the port or the socket path the server was started with. A
+record file holds one record per line, - for the standard input, and a key file
+one key per line.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class IndexClient implements Closeable {
+
+	static final int WINDOW = 256; // Lookups of findAll in flight.
+
+	private final SocketChannel channel;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private int nextId; // Id of the next request.
+
+	// Answer of the server to a request.
+	private static class Answer {
+		final byte status;
+		final byte[] body;
+
+		Answer(byte status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param address
+	 *            is the port or the socket path the server was started with.
+	 */
+	IndexClient(String address) throws IOException {
+		channel = IndexServer.connect(address);
+		in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel)));
+		out = new DataOutputStream(new BufferedOutputStream(
+				Channels.newOutputStream(channel)));
+	}
+
+	/**
+	 * Looks up the record of a key.
+	 *
+	 * @param indexNo
+	 *            is the no. of the index on the server.
+	 * @param key
+	 *            is the key.
+	 * @return the record, or null if the key isn't present.
+	 */
+	byte[] find(int indexNo, byte[] key) throws IOException {
+		send(IndexServer.FIND, indexNo, key);
+		out.flush();
+		Answer answer = checked(receive(nextId - 1));
+		return answer.status == IndexServer.NOT_FOUND ? null : answer.body;
+	}
+
+	/**
+	 * Looks up the records of many keys, sending up to WINDOW lookups before
+	 * reading their answers.
+	 *
+	 * @param indexNo
+	 *            is the no. of the index on the server.
+	 * @param keys
+	 *            are the keys.
+	 * @return the records in the order of the keys, null for a key which
+	 *         isn't present.
+	 */
+	List<byte[]> findAll(int indexNo, List<byte[]> keys) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int first = 0; first < keys.size(); first += WINDOW) {
+			int last = Math.min(first + WINDOW, keys.size());
+			int firstId = nextId;
+			for (int no = first; no < last; no++)
+				send(IndexServer.FIND, indexNo, keys.get(no));
+			out.flush();
+			// Every answer of the window is read before a failed one is
+			// thrown, which leaves the connection usable.
+			List<Answer> answers = new ArrayList<Answer>();
+			for (int no = first; no < last; no++)
+				answers.add(receive(firstId + no - first));
+			for (Answer answer : answers)
+				records.add(checked(answer).status == IndexServer.NOT_FOUND ? null
+						: answer.body);
+		}
+		return records;
+	}
+
+	/**
+	 * Lists sequential records from a key on.
+	 *
+	 * @param indexNo
+	 *            is the no. of the index on the server.
+	 * @param key
+	 *            is the key to start from.
+	 * @param count
+	 *            is the maximum no. of records to be listed.
+	 * @return the records in key order.
+	 */
+	List<byte[]> list(int indexNo, byte[] key, int count) throws IOException {
+		byte[] payload = new byte[4 + key.length];
+		payload[0] = (byte) (count >>> 24);
+		payload[1] = (byte) (count >>> 16);
+		payload[2] = (byte) (count >>> 8);
+		payload[3] = (byte) count;
+		System.arraycopy(key, 0, payload, 4, key.length);
+		send(IndexServer.LIST, indexNo, payload);
+		out.flush();
+		DataInputStream body = bodyOf(checked(receive(nextId - 1)));
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int no = body.readInt(); no > 0; no--) {
+			byte[] record = new byte[body.readInt()];
+			body.readFully(record);
+			records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * Inserts a record, whose first keyLength bytes are its key.
+	 *
+	 * @param indexNo
+	 *            is the no. of the index on the server.
+	 * @param record
+	 *            is the record.
+	 * @return false if the key was present already.
+	 */
+	boolean insert(int indexNo, byte[] record) throws IOException {
+		send(IndexServer.INSERT, indexNo, record);
+		out.flush();
+		return checked(receive(nextId - 1)).status == IndexServer.OK;
+	}
+
+	/**
+	 * Inserts records whose keys aren't present yet.
+	 *
+	 * @param indexNo
+	 *            is the no. of the index on the server.
+	 * @param records
+	 *            are the records.
+	 * @return the no. of records inserted.
+	 */
+	int insertBatch(int indexNo, List<byte[]> records) throws IOException {
+		int length = 4;
+		for (byte[] record : records)
+			length += 4 + record.length;
+		out.writeInt(IndexServer.HEADER_SIZE - 4 + length);
+		out.writeInt(nextId++);
+		out.writeByte(IndexServer.INSERT_BATCH);
+		out.writeByte(indexNo);
+		out.writeInt(records.size());
+		for (byte[] record : records) {
+			out.writeInt(record.length);
+			out.write(record);
+		}
+		out.flush();
+		return bodyOf(checked(receive(nextId - 1))).readInt();
+	}
+
+	/**
+	 * Deletes the record of a key.
+	 *
+	 * @param indexNo
+	 *            is the no. of the index on the server.
+	 * @param key
+	 *            is the key.
+	 * @return false if the key wasn't present.
+	 */
+	boolean delete(int indexNo, byte[] key) throws IOException {
+		send(IndexServer.DELETE, indexNo, key);
+		out.flush();
+		return checked(receive(nextId - 1)).status == IndexServer.OK;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	// Writes a request to the output buffer.
+	private void send(byte operation, int indexNo, byte[] payload)
+			throws IOException {
+		out.writeInt(IndexServer.HEADER_SIZE - 4 + payload.length);
+		out.writeInt(nextId++);
+		out.writeByte(operation);
+		out.writeByte(indexNo);
+		out.write(payload);
+	}
+
+	// Reads the answer to a request, which is the next one as the server
+	// answers in order.
+	private Answer receive(int id) throws IOException {
+		int length = in.readInt();
+		if (length < 5 || length > IndexServer.MAX_LENGTH)
+			throw new IOException("Invalid answer length " + length);
+		int answerId = in.readInt();
+		byte status = in.readByte();
+		byte[] body = new byte[length - 5];
+		in.readFully(body);
+		if (answerId != id)
+			throw new IOException("Answer to request " + answerId
+					+ " where " + id + " was expected");
+		return new Answer(status, body);
+	}
+
+	// Throws an answer which tells that its request failed.
+	private static Answer checked(Answer answer) throws IOException {
+		if (answer.status == IndexServer.ERROR)
+			throw new IOException(new String(answer.body,
+					StandardCharsets.UTF_8));
+		if (answer.status == IndexServer.TIMEOUT)
+			throw new IOException("The request timed out");
+		return answer;
+	}
+
+	private static DataInputStream bodyOf(Answer answer) {
+		return new DataInputStream(new ByteArrayInputStream(
+				answer.body));
+	}
+
+	// Reads the lines of a file, or of the standard input for -.
+	private static List<byte[]> readLines(String file) throws IOException {
+		Reader reader = "-".equals(file) ? new InputStreamReader(System.in)
+				: new FileReader(file);
+		BufferedReader lines = new BufferedReader(reader);
+		try {
+			List<byte[]> result = new ArrayList<byte[]>();
+			String line;
+			while ((line = lines.readLine()) != null)
+				result.add(line.getBytes());
+			return result;
+		} finally {
+			lines.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		String operation = args[1].toLowerCase();
+		int indexNo = Integer.parseInt(args[2]);
+		IndexClient client = null;
+		try {
+			client = new IndexClient(args[0]);
+			if ("-find".compareTo(operation) == 0) {
+				byte[] record = client.find(indexNo, args[3].getBytes());
+				System.out.println(record == null ? "Data not found"
+						: new String(record));
+			} else if ("-list".compareTo(operation) == 0) {
+				for (byte[] record : client.list(indexNo, args[3].getBytes(),
+						Integer.parseInt(args[4])))
+					System.out.println(new String(record));
+			} else if ("-insert".compareTo(operation) == 0) {
+				if (client.insert(indexNo, args[3].getBytes()))
+					System.out.println("Inserted");
+				else
+					System.out.println("Data already exists. Duplicates not allowed");
+			} else if ("-insertbatch".compareTo(operation) == 0) {
+				List<byte[]> records = readLines(args[3]);
+				int inserted = client.insertBatch(indexNo, records);
+				System.out.println("Inserted " + inserted + " records, "
+						+ (records.size() - inserted)
+						+ " duplicates not allowed.");
+			} else if ("-delete".compareTo(operation) == 0) {
+				System.out.println(client.delete(indexNo, args[3].getBytes()) ? "Deleted"
+						: "Data not found");
+			} else if ("-findall".compareTo(operation) == 0) {
+				List<byte[]> keys = readLines(args[3]);
+				long start = System.nanoTime();
+				List<byte[]> records = client.findAll(indexNo, keys);
+				long micros = (System.nanoTime() - start) / 1000;
+				int found = 0;
+				for (byte[] record : records) {
+					if (record != null)
+						found++;
+				}
+				System.out.println("Found " + found + " of " + keys.size()
+						+ " keys in " + micros / 1000 + " ms");
+			} else {
+				System.out.println("Unknown operation " + args[1]);
+			}
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+		} finally {
+			try {
+				if (client != null)
+					client.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+}
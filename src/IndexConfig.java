@@ -0,0 +1,244 @@
+/**
+Tunable settings of the index. Every setting can be changed with a system
+property on the command line, for example
+
+	java -Dbptree.poolPages=4096 DBIndexFile -insert index.indx "..."
+
+	bptree.poolPages  : no. of pages held by the buffer pool (default 256).
+	bptree.stats      : print buffer pool statistics after an operation.
+	bptree.fillFactor : fraction of each node filled by -create (default 1.0).
+	bptree.sortMemory : MB of memory -create may use for sorting (default 64).
+	bptree.tempDir    : directory for the sort run files of -create.
+	bptree.threads    : no. of threads -create uses (default: no. of cores).
+	bptree.compressLeaves : -create stores the leaves compressed; the setting
+	                    is kept in the index for later inserts.
+	bptree.walSync    : when inserts sync the write-ahead log, always, group
+	                    (default) or async (see WriteAheadLog).
+	bptree.walGroupMillis : longest wait of a group commit for more inserts,
+	                    and ms between the syncs of async commits (default 10).
+	bptree.walGroupOps : no. of waiting inserts which start a group commit
+	                    at once (default 64).
+	bptree.walCheckpoint : MB the write-ahead log may grow to before the
+	                    dirty pages are written and it is emptied (default 64).
+	bptree.writeBuffer : no. of inserts held in a sorted write buffer before
+	                    they are merged into the tree (default 0, no buffer).
+	bptree.underflow  : fraction of a page below which a node emptied by
+	                    deletes is merged with a sibling (default 0.25).
+	bptree.serverRequests : no. of requests -serve runs at the same time;
+	                    further requests wait to be admitted (default 10000
+	                    with virtual threads, 256 without).
+	bptree.serverDeadline : ms a request of -serve may take from its arrival,
+	                    waiting included, before it is answered with a
+	                    timeout (default 0, no deadline).
+	bptree.readahead  : most leaves -list, -listdesc and -range read ahead,
+	                    along with their records (default 0, no readahead).
+ */
+
+import java.io.File;
+
+class IndexConfig {
+
+	static final String POOL_PAGES = "bptree.poolPages";
+	static final String STATS = "bptree.stats";
+	static final String FILL_FACTOR = "bptree.fillFactor";
+	static final String SORT_MEMORY = "bptree.sortMemory";
+	static final String TEMP_DIR = "bptree.tempDir";
+	static final String THREADS = "bptree.threads";
+	static final String COMPRESS_LEAVES = "bptree.compressLeaves";
+	static final String WAL_SYNC = "bptree.walSync";
+	static final String WAL_GROUP_MILLIS = "bptree.walGroupMillis";
+	static final String WAL_GROUP_OPS = "bptree.walGroupOps";
+	static final String WAL_CHECKPOINT = "bptree.walCheckpoint";
+	static final String WRITE_BUFFER = "bptree.writeBuffer";
+	static final String UNDERFLOW = "bptree.underflow";
+	static final String SERVER_REQUESTS = "bptree.serverRequests";
+	static final String SERVER_DEADLINE = "bptree.serverDeadline";
+	static final String READAHEAD = "bptree.readahead";
+
+	/**
+	 * Returns the no. of pages the buffer pool of an index may hold.
+	 */
+	static int poolPages() {
+		return getInt(POOL_PAGES, 256);
+	}
+
+	/**
+	 * Returns true if statistics should be printed after an operation.
+	 */
+	static boolean printStats() {
+		return Boolean.getBoolean(STATS);
+	}
+
+	/**
+	 * Returns the fraction of each node which -create fills. Lower values
+	 * leave room for later inserts before nodes have to be split.
+	 */
+	static double fillFactor() {
+		return getDouble(FILL_FACTOR, 1.0);
+	}
+
+	/**
+	 * Returns the no. of bytes -create may use to sort the keys before it
+	 * spills them to run files.
+	 */
+	static long sortMemory() {
+		return getInt(SORT_MEMORY, 64) * 1024l * 1024l;
+	}
+
+	/**
+	 * Returns the directory for temporary files, or null for the default
+	 * temporary directory.
+	 */
+	static File tempDir() {
+		String dir = System.getProperty(TEMP_DIR);
+		return dir == null ? null : new File(dir);
+	}
+
+	/**
+	 * Returns the no. of threads used to scan and sort the data file.
+	 */
+	static int buildThreads() {
+		return Math.max(1, getInt(THREADS, Runtime.getRuntime()
+				.availableProcessors()));
+	}
+
+	/**
+	 * Returns true if -create should store the leaves compressed. Compressed
+	 * leaves hold more entries each, so the index has fewer leaves, at the
+	 * cost of decoding the entries while searching a leaf.
+	 */
+	static boolean compressLeaves() {
+		return Boolean.getBoolean(COMPRESS_LEAVES);
+	}
+
+	/**
+	 * Returns when inserts sync the write-ahead log.
+	 */
+	static WriteAheadLog.SyncPolicy walSync() {
+		String value = System.getProperty(WAL_SYNC);
+		if (value == null)
+			return WriteAheadLog.SyncPolicy.GROUP;
+		try {
+			return WriteAheadLog.SyncPolicy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException ex) {
+			System.out.println("Ignoring invalid value " + value + " for "
+					+ WAL_SYNC);
+			return WriteAheadLog.SyncPolicy.GROUP;
+		}
+	}
+
+	/**
+	 * Returns the no. of ms a group commit waits at most for more inserts to
+	 * join it, and the no. of ms between the syncs of async commits.
+	 */
+	static int walGroupMillis() {
+		return getInt(WAL_GROUP_MILLIS, 10);
+	}
+
+	/**
+	 * Returns the no. of inserts waiting for a group commit which sync the
+	 * write-ahead log without waiting for the interval to end.
+	 */
+	static int walGroupOps() {
+		return getInt(WAL_GROUP_OPS, 64);
+	}
+
+	/**
+	 * Returns the size in bytes the write-ahead log may grow to before a
+	 * checkpoint.
+	 */
+	static long walCheckpointSize() {
+		return getInt(WAL_CHECKPOINT, 64) * 1024l * 1024l;
+	}
+
+	/**
+	 * Returns the no. of inserts a ConcurrentIndex holds in its write buffer
+	 * before merging them into the tree, or 0 if inserts go to the tree
+	 * directly.
+	 */
+	static int writeBufferSize() {
+		return Math.max(0, getInt(WRITE_BUFFER, 0));
+	}
+
+	/**
+	 * Returns the fraction of a page a node must fill after deletes, below
+	 * which ConcurrentIndex merges it with a sibling or moves entries into
+	 * it. Lower values leave more space unused but rebalance less often; 0
+	 * only merges empty nodes.
+	 */
+	static double underflow() {
+		return Math.min(0.5, Math.max(0, getDouble(UNDERFLOW, 0.25)));
+	}
+
+	/**
+	 * Returns the no. of requests an IndexServer runs at the same time.
+	 *
+	 * @param virtualThreads
+	 *            tells if the requests run on virtual threads, which makes
+	 *            many more of them affordable.
+	 */
+	static int serverRequests(boolean virtualThreads) {
+		return Math.max(1, getInt(SERVER_REQUESTS, virtualThreads ? 10000
+				: 256));
+	}
+
+	/**
+	 * Returns the ms a request of an IndexServer may take, or 0 if requests
+	 * have no deadline.
+	 */
+	static int serverDeadline() {
+		return Math.max(0, getInt(SERVER_DEADLINE, 0));
+	}
+
+	/**
+	 * Returns the most leaves a range scan reads ahead of its cursor, or 0
+	 * if it reads none ahead.
+	 */
+	static int readahead() {
+		return Math.max(0, getInt(READAHEAD, 0));
+	}
+
+	/**
+	 * Reads an integer system property.
+	 *
+	 * @param name
+	 *            is the name of the property.
+	 * @param defaultValue
+	 *            is returned when the property is missing or not a number.
+	 * @return the value of the property.
+	 */
+	static int getInt(String name, int defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			System.out.println("Ignoring invalid value " + value + " for "
+					+ name);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads a decimal system property.
+	 *
+	 * @param name
+	 *            is the name of the property.
+	 * @param defaultValue
+	 *            is returned when the property is missing or not a number.
+	 * @return the value of the property.
+	 */
+	static double getDouble(String name, double defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException ex) {
+			System.out.println("Ignoring invalid value " + value + " for "
+					+ name);
+			return defaultValue;
+		}
+	}
+}
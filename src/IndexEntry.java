@@ -0,0 +1,60 @@
+/**
+A (key, byte offset, data length) tuple extracted from the data file while an
+index is being built. Keys are kept in their fixed width page representation
+(see IndexFile.toKeyBytes) and are ordered byte by byte as unsigned values,
+which is the same order String.compareTo gives for the keys in the tree.
+ */
+
+import java.util.Comparator;
+
+class IndexEntry {
+
+	final byte[] key; // Key padded to the key length.
+	final long byteOffset; // Byte offset of the record in the data file.
+	final int dataLength; // Length of the record in bytes.
+
+	IndexEntry(byte[] key, long byteOffset, int dataLength) {
+		this.key = key;
+		this.byteOffset = byteOffset;
+		this.dataLength = dataLength;
+	}
+
+	/**
+	 * Orders entries by key and entries with equal keys by byte offset, i.e.
+	 * by their position in the data file.
+	 */
+	static final Comparator<IndexEntry> FILE_ORDER = new Comparator<IndexEntry>() {
+		public int compare(IndexEntry a, IndexEntry b) {
+			int diff = compareKeys(a.key, b.key);
+			if (diff != 0)
+				return diff;
+			return a.byteOffset < b.byteOffset ? -1
+					: (a.byteOffset == b.byteOffset ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Orders fixed width keys as compareKeys does.
+	 */
+	static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			return compareKeys(a, b);
+		}
+	};
+
+	/**
+	 * Compares two fixed width keys as unsigned bytes.
+	 *
+	 * @return a negative number, zero or a positive number if a is less than,
+	 *         equal to or greater than b.
+	 */
+	static int compareKeys(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int count = 0; count < length; count++) {
+			int diff = (a[count] & 0xff) - (b[count] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return a.length - b.length;
+	}
+}
@@ -0,0 +1,889 @@
+/**
+Page oriented layout of the B+ tree index file. The file is a sequence of
+fixed size pages of PAGE_SIZE bytes. Page 0 holds the metadata and every other
+page holds exactly one node of the tree. Nodes refer to their children and to
+their siblings by page number, so a lookup only has to read the pages on its
+root to leaf path. Node pages are read and written through a BufferPool.
+
+Metadata page layout:
+	0   - 255 : name of the file which was indexed.
+	257 - 259 : key length.
+	512 - 515 : magic number identifying the paged format.
+	516 - 519 : page size.
+	520 - 523 : degree of the tree.
+	524 - 527 : page number of the root.
+	528 - 531 : no. of pages in the file including the metadata page.
+	532 - 535 : 1 if leaves are compressed when they are written, else 0.
+	536 - 539 : first page of the free list, 0 if there are no free pages.
+	540 - 547 : no. of bytes of deleted records left in the indexed file.
+	548 - 555 : creation id, a random number drawn when the file is created,
+				which ties the write-ahead log to the file (0 in files
+				created before it was added).
+
+Node page layout:
+	0         : page type (leaf or internal).
+	2  - 3    : no. of keys in the node.
+	4  - 7    : previous leaf page (leaves only).
+	8  - 11   : right-link, the next page on the same level.
+	16 - ...  : keys, each keyLength bytes, followed by the byte offsets (8
+				bytes each) and data lengths (4 bytes each) for a leaf, or by
+				the child page numbers (4 bytes each) for an internal node.
+	PAGE_SIZE - keyLength - ... : high key, if the node has a right-link.
+
+Every node is linked to its right sibling and knows its high key, the
+separator between the two in their lowest common ancestor, so the tree is a
+B-link tree: a search which finds its key not less than the high key of a node
+follows the right-link, which keeps it correct while nodes are being split by
+ConcurrentIndex. The last node of a level has no right-link and no high key,
+but the room for one is kept in every page.
+
+The keys of an internal node are separators: the shortest prefix of the first
+key of the right sub tree which is still greater than the last key of the left
+sub tree, padded with zero bytes. An internal node whose separators share a
+common prefix is written as a prefixed internal page when that is smaller,
+which also lets it hold more keys than a plain page:
+	0         : page type (prefixed internal).
+	2  - 3    : no. of keys in the node.
+	4  - 5    : length of the common prefix.
+	8  - 11   : right-link.
+	16 - ...  : child page numbers (4 bytes each), then for each key the end
+				of its suffix (2 bytes each, relative to the first suffix),
+				then the common prefix, then the suffixes of the keys one
+				after the other.
+
+An index created with compressed leaves writes its leaves as compressed leaf
+pages, which have the header of a plain leaf and the entries encoded as
+described in CompressedLeaf. Such a leaf may hold more than degree - 1 keys,
+as many as fit in the page.
+
+The pages of nodes which ConcurrentIndex has merged away are free pages, which
+allocatePage hands out again before it extends the file. They are chained
+through their right-links and the free pages at the end of the file are cut
+off when the file is synced:
+	0         : page type (free).
+	8  - 11   : next page of the free list, 0 at the end.
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+class IndexFile {
+
+	static final int PAGE_SIZE = 1024; // Size of a node page in bytes.
+	static final int NO_PAGE = -1; // Page number used for a missing link.
+	static final int MAGIC = 0x42505431; // "BPT1"
+
+	// Offsets of the metadata fields in page 0.
+	static final int FILE_NAME_OFFSET = 0;
+	static final int FILE_NAME_LENGTH = 256;
+	static final int KEY_LENGTH_OFFSET = 257;
+	static final int MAGIC_OFFSET = 512;
+	static final int PAGE_SIZE_OFFSET = 516;
+	static final int DEGREE_OFFSET = 520;
+	static final int ROOT_PAGE_OFFSET = 524;
+	static final int PAGE_COUNT_OFFSET = 528;
+	static final int LEAF_ENCODING_OFFSET = 532;
+	static final int FREE_LIST_OFFSET = 536;
+	static final int DEAD_BYTES_OFFSET = 540;
+	static final int CREATION_ID_OFFSET = 548;
+
+	// Offsets of the fields in a node page.
+	static final byte INTERNAL_PAGE = 0;
+	static final byte LEAF_PAGE = 1;
+	static final byte PREFIXED_INTERNAL_PAGE = 2;
+	static final byte COMPRESSED_LEAF_PAGE = 3;
+	static final byte FREE_PAGE = 4;
+	static final int PAGE_TYPE_OFFSET = 0;
+	static final int KEY_COUNT_OFFSET = 2;
+	static final int PREV_PAGE_OFFSET = 4;
+	static final int NEXT_PAGE_OFFSET = 8;
+	static final int PREFIX_LENGTH_OFFSET = 4; // Prefixed internal pages only.
+	static final int NODE_HEADER_SIZE = 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	final BufferPool pool; // Cache of the node pages.
+	final String indexFile; // Name of the index file.
+	String inputFile; // Name of the file which was indexed.
+	int keyLength; // Length of the key in bytes.
+	int degree; // Degree of the tree.
+	int rootPage; // Page number of the root node.
+	int pageCount; // No. of pages including the metadata page.
+	boolean compressedLeaves; // Leaves are written as compressed pages.
+	long deadBytes; // Bytes of deleted records left in the indexed file.
+	long creationId; // Tells the file apart from others of the same name.
+	// Free pages in page order, and whether the chain has to be written.
+	private final TreeSet<Integer> freePages = new TreeSet<Integer>();
+	private boolean freeListChanged;
+	// Channel of loadAsync, opened by the first asynchronous read.
+	private AsynchronousFileChannel asyncChannel;
+
+	private IndexFile(String indexFile, RandomAccessFile file) {
+		this.indexFile = indexFile;
+		this.file = file;
+		this.channel = file.getChannel();
+		this.pool = new BufferPool(channel, IndexConfig.poolPages());
+	}
+
+	/**
+	 * Creates an empty index file. The caller is expected to write the tree
+	 * using writeTree. The write-ahead log of an index file of the same name
+	 * is removed, as its records belong to the old file.
+	 *
+	 * @param indexFile
+	 *            is the name of the index file.
+	 * @param inputFile
+	 *            is the name of the file being indexed.
+	 * @param keyLength
+	 *            is the length of the key.
+	 * @param degree
+	 *            is the degree of the tree.
+	 * @return the newly created index file.
+	 */
+	static IndexFile create(String indexFile, String inputFile, int keyLength,
+			int degree) throws IOException {
+		IndexFile index = new IndexFile(indexFile, new RandomAccessFile(
+				indexFile, "rw"));
+		index.channel.truncate(0);
+		WriteAheadLog.remove(indexFile);
+		SecureRandom random = new SecureRandom();
+		do {
+			index.creationId = random.nextLong();
+		} while (index.creationId == 0);
+		index.inputFile = inputFile;
+		index.keyLength = keyLength;
+		index.degree = degree;
+		index.rootPage = NO_PAGE;
+		index.pageCount = 1;
+		index.writeHeader();
+		return index;
+	}
+
+	/**
+	 * Opens an existing index file and reads its metadata.
+	 *
+	 * @param indexFile
+	 *            is the name of the index file.
+	 * @param writable
+	 *            is true if the index is going to be modified.
+	 * @return the opened index file.
+	 */
+	static IndexFile open(String indexFile, boolean writable)
+			throws IOException {
+		IndexFile index = new IndexFile(indexFile, new RandomAccessFile(
+				indexFile, writable ? "rw" : "r"));
+		try {
+			index.readHeader();
+			index.readFreeList();
+		} catch (IOException ex) {
+			index.close();
+			throw ex;
+		}
+		return index;
+	}
+
+	/**
+	 * Reads the creation id of an index file without opening it, for
+	 * checking its write-ahead log before the pages are read.
+	 *
+	 * @param indexFile
+	 *            is the name of the index file.
+	 * @return the creation id.
+	 */
+	static long readCreationId(String indexFile) throws IOException {
+		IndexFile index = new IndexFile(indexFile, new RandomAccessFile(
+				indexFile, "r"));
+		try {
+			return index.checkedHeader().getLong(CREATION_ID_OFFSET);
+		} finally {
+			index.close();
+		}
+	}
+
+	// Reads the metadata page and checks that it is one of the paged format.
+	private ByteBuffer checkedHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+		readFully(header, 0);
+		if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+			throw new IOException(indexFile
+					+ " is not a paged index file. Rebuild it with -create.");
+		}
+		if (header.getInt(PAGE_SIZE_OFFSET) != PAGE_SIZE) {
+			throw new IOException(indexFile + " uses an unsupported page size.");
+		}
+		return header;
+	}
+
+	/**
+	 * Reads the metadata page.
+	 */
+	private void readHeader() throws IOException {
+		ByteBuffer header = checkedHeader();
+		byte[] name = new byte[FILE_NAME_LENGTH];
+		header.position(FILE_NAME_OFFSET);
+		header.get(name);
+		inputFile = new String(name).trim();
+
+		byte[] keyLengthBytes = new byte[3];
+		header.position(KEY_LENGTH_OFFSET);
+		header.get(keyLengthBytes);
+		keyLength = Integer.parseInt(new String(keyLengthBytes).trim());
+
+		degree = header.getInt(DEGREE_OFFSET);
+		rootPage = header.getInt(ROOT_PAGE_OFFSET);
+		pageCount = header.getInt(PAGE_COUNT_OFFSET);
+		compressedLeaves = header.getInt(LEAF_ENCODING_OFFSET) == 1;
+		deadBytes = header.getLong(DEAD_BYTES_OFFSET);
+		creationId = header.getLong(CREATION_ID_OFFSET);
+		int freePage = header.getInt(FREE_LIST_OFFSET);
+		if (freePage != 0)
+			freePages.add(freePage);
+	}
+
+	// Follows the free list from its first page, which readHeader found.
+	private void readFreeList() throws IOException {
+		if (freePages.isEmpty())
+			return;
+		int freePage = freePages.first();
+		while (true) {
+			ByteBuffer page = pool.pin(freePage);
+			int next;
+			try {
+				if (page.get(PAGE_TYPE_OFFSET) != FREE_PAGE)
+					throw new IOException("Page " + freePage + " of " + indexFile
+							+ " is in the free list but not free");
+				next = page.getInt(NEXT_PAGE_OFFSET);
+			} finally {
+				pool.unpin(freePage, false);
+			}
+			freePage = next;
+			if (freePage == 0)
+				break;
+			if (freePage >= pageCount || !freePages.add(freePage))
+				throw new IOException("The free list of " + indexFile
+						+ " is damaged");
+		}
+	}
+
+	/**
+	 * Writes the metadata page.
+	 */
+	synchronized void writeHeader() throws IOException {
+		writeFully(encodeHeader(), 0);
+	}
+
+	/**
+	 * Returns the metadata page as writeHeader would write it.
+	 */
+	synchronized ByteBuffer encodeHeader() {
+		ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+		byte[] name = inputFile.getBytes();
+		header.put(name, 0, Math.min(name.length, FILE_NAME_LENGTH));
+		header.position(KEY_LENGTH_OFFSET);
+		header.put(Integer.toString(keyLength).getBytes());
+		header.putInt(MAGIC_OFFSET, MAGIC);
+		header.putInt(PAGE_SIZE_OFFSET, PAGE_SIZE);
+		header.putInt(DEGREE_OFFSET, degree);
+		header.putInt(ROOT_PAGE_OFFSET, rootPage);
+		header.putInt(PAGE_COUNT_OFFSET, pageCount);
+		header.putInt(LEAF_ENCODING_OFFSET, compressedLeaves ? 1 : 0);
+		header.putInt(FREE_LIST_OFFSET, freePages.isEmpty() ? 0 : freePages
+				.first());
+		header.putLong(DEAD_BYTES_OFFSET, deadBytes);
+		header.putLong(CREATION_ID_OFFSET, creationId);
+		header.clear();
+		return header;
+	}
+
+	/**
+	 * Reserves a page, the first free page if there is one or else a new
+	 * page at the end of the file. May be called by several threads at once.
+	 *
+	 * @return the page number of the page.
+	 */
+	synchronized int allocatePage() {
+		if (freePages.isEmpty())
+			return pageCount++;
+		freeListChanged = true;
+		return freePages.pollFirst();
+	}
+
+	/**
+	 * Adds a page no node refers to any more to the free list. The caller
+	 * must make sure no reader still holds a link to the page.
+	 *
+	 * @param pageId
+	 *            is the page to be freed.
+	 */
+	synchronized void freePage(int pageId) {
+		freePages.add(pageId);
+		freeListChanged = true;
+	}
+
+	/**
+	 * Returns the no. of pages in the free list.
+	 */
+	synchronized int freePageCount() {
+		return freePages.size();
+	}
+
+	/**
+	 * Adds the length of a deleted record to the bytes of dead records in the
+	 * indexed file.
+	 */
+	synchronized void addDeadBytes(int length) {
+		deadBytes += length;
+	}
+
+	/**
+	 * Writes the free list to the free pages after dropping the free pages at
+	 * the end of the file, which sync cuts off. The metadata has to be
+	 * written afterwards.
+	 */
+	synchronized void writeFreeList() throws IOException {
+		if (!freeListChanged)
+			return;
+		while (!freePages.isEmpty() && freePages.last() == pageCount - 1)
+			pageCount = freePages.pollLast();
+		pool.discardFrom(pageCount);
+		for (int freePage : freePages) {
+			Integer next = freePages.higher(freePage);
+			ByteBuffer page = pool.pinForOverwrite(freePage);
+			try {
+				page.put(PAGE_TYPE_OFFSET, FREE_PAGE);
+				page.putInt(NEXT_PAGE_OFFSET, next == null ? 0 : next);
+			} finally {
+				pool.unpin(freePage, true);
+			}
+		}
+		freeListChanged = false;
+	}
+
+	/**
+	 * Reads a single node from its page. Child and sibling links are returned
+	 * as page numbers; the object references of the node are left empty. The
+	 * page is pinned in the buffer pool only while it is being decoded.
+	 *
+	 * @param pageId
+	 *            is the page to be read.
+	 * @return the node stored in the page.
+	 */
+	BTreeNode readNode(int pageId) throws IOException {
+		ByteBuffer page = pool.pin(pageId);
+		try {
+			return decodeNode(page.duplicate(), pageId);
+		} finally {
+			pool.unpin(pageId, false);
+		}
+	}
+
+	/**
+	 * Loads a page into the buffer pool through an AsynchronousFileChannel
+	 * (see BufferPool.loadAsync).
+	 *
+	 * @param pageId
+	 *            is the page to be loaded.
+	 * @return the future of a copy of the page, or of null if it wasn't
+	 *         loaded by this read.
+	 */
+	CompletableFuture<ByteBuffer> loadAsync(int pageId) throws IOException {
+		AsynchronousFileChannel channel;
+		synchronized (this) {
+			if (asyncChannel == null)
+				asyncChannel = AsynchronousFileChannel.open(
+						Paths.get(indexFile), StandardOpenOption.READ);
+			channel = asyncChannel;
+		}
+		return pool.loadAsync(pageId, channel);
+	}
+
+	/**
+	 * Reads from a position of an asynchronous channel until the buffer is
+	 * full or the end of the file is reached.
+	 *
+	 * @param channel
+	 *            is the channel to be read.
+	 * @param buffer
+	 *            is the buffer to be filled from its position on.
+	 * @param position
+	 *            is the position of the file the read starts at.
+	 * @return the future of the buffer, with bytes remaining if the end of
+	 *         the file came first.
+	 */
+	static CompletableFuture<ByteBuffer> readAsync(
+			final AsynchronousFileChannel channel, final ByteBuffer buffer,
+			final long position) {
+		final CompletableFuture<ByteBuffer> result = new CompletableFuture<ByteBuffer>();
+		final int start = buffer.position();
+		channel.read(buffer, position, null,
+				new CompletionHandler<Integer, Void>() {
+					public void completed(Integer read, Void none) {
+						if (read < 0 || !buffer.hasRemaining())
+							result.complete(buffer);
+						else
+							channel.read(buffer, position + buffer.position()
+									- start, null, this);
+					}
+
+					public void failed(Throwable ex, Void none) {
+						result.completeExceptionally(ex);
+					}
+				});
+		return result;
+	}
+
+	/**
+	 * Writes a single node to the page given by node.pageId. The page is
+	 * marked dirty in the buffer pool and reaches the file when it is evicted
+	 * or the pool is flushed.
+	 *
+	 * @param node
+	 *            is the node to be written.
+	 */
+	void writeNode(BTreeNode node) throws IOException {
+		ByteBuffer page = pool.pinForOverwrite(node.pageId);
+		try {
+			encodeNode(node, page.duplicate());
+		} finally {
+			pool.unpin(node.pageId, true);
+		}
+	}
+
+	/**
+	 * Writes the whole tree to the file. Every node gets a fresh page number,
+	 * assigned in depth first order, and the links between the nodes are
+	 * converted to page numbers before the pages are written.
+	 *
+	 * @param root
+	 *            is the root of the tree.
+	 */
+	void writeTree(BTreeNode root) throws IOException {
+		pageCount = 1;
+		synchronized (this) {
+			freePages.clear(); // Every page is written again.
+			freeListChanged = false;
+		}
+		if (root.keyCount == 0 && root.childCount == 0)
+			root.isLeaf = true; // An empty tree is a single empty leaf.
+		assignPages(root, null, 0, new ArrayList<BTreeNode>());
+		writePages(root);
+		rootPage = root.pageId;
+		pool.flush();
+		// Drop the pages of the old tree which are no longer used.
+		channel.truncate((long) pageCount * PAGE_SIZE);
+		pool.discardFrom(pageCount);
+		writeHeader();
+	}
+
+	// Assigns page numbers to the sub tree rooted at pNode, and links every
+	// node to the one before it on its level, which is the last one in
+	// lastNodes. The high key of a child is the key right of it in pNode.
+	private void assignPages(BTreeNode pNode, byte[] highKey, int depth,
+			List<BTreeNode> lastNodes) {
+		pNode.pageId = allocatePage();
+		pNode.highKey = highKey;
+		pNode.rightPage = NO_PAGE;
+		if (depth == lastNodes.size())
+			lastNodes.add(pNode);
+		else
+			lastNodes.set(depth, pNode).rightPage = pNode.pageId;
+		for (int count = 0; count < pNode.childCount; count++) {
+			assignPages(pNode.ptr[count], count < pNode.keyCount ? pNode
+					.getKey(count) : highKey, depth + 1, lastNodes);
+		}
+	}
+
+	// Converts the object links of the sub tree to page numbers and writes it.
+	private void writePages(BTreeNode pNode) throws IOException {
+		for (int count = 0; count < pNode.childCount; count++) {
+			pNode.childPage[count] = pNode.ptr[count].pageId;
+		}
+		pNode.prevLeafPage = pNode.prevLeafPointer != null ? pNode.prevLeafPointer.pageId
+				: NO_PAGE;
+		writeNode(pNode);
+		for (int count = 0; count < pNode.childCount; count++) {
+			writePages(pNode.ptr[count]);
+		}
+	}
+
+	/**
+	 * Reads the whole tree into memory and links the nodes together with
+	 * object references. Inserts go into the pages in place through
+	 * ConcurrentIndex.insert instead.
+	 *
+	 * @return the root of the tree.
+	 */
+	BTreeNode loadTree() throws IOException {
+		List<BTreeNode> leaves = new ArrayList<BTreeNode>();
+		BTreeNode newRoot = loadSubTree(rootPage, null, leaves);
+		// Link the leaves in key order.
+		for (int count = 1; count < leaves.size(); count++) {
+			leaves.get(count - 1).nextLeafPointer = leaves.get(count);
+			leaves.get(count).prevLeafPointer = leaves.get(count - 1);
+		}
+		return newRoot;
+	}
+
+	// Reads the sub tree stored at pageId, collecting its leaves left to right.
+	private BTreeNode loadSubTree(int pageId, BTreeNode parent,
+			List<BTreeNode> leaves) throws IOException {
+		BTreeNode pNode = readNode(pageId);
+		pNode.immediateParent = parent;
+		if (pNode.isLeaf) {
+			leaves.add(pNode);
+		}
+		if (!pNode.isLeaf)
+			pNode.ptr = new BTreeNode[pNode.childPage.length];
+		for (int count = 0; count < pNode.childCount; count++) {
+			pNode.ptr[count] = loadSubTree(pNode.childPage[count], pNode, leaves);
+		}
+		return pNode;
+	}
+
+	/**
+	 * Serializes a node into a page buffer.
+	 *
+	 * @param node
+	 *            is the node to be serialized.
+	 * @param page
+	 *            is a buffer of PAGE_SIZE bytes.
+	 */
+	void encodeNode(BTreeNode node, ByteBuffer page) {
+		if (!node.isLeaf && prefixedPageSize(node) < plainPageSize(node)) {
+			encodePrefixedNode(node, page);
+			return;
+		}
+		int keyCount = node.keyCount;
+		if (node.isLeaf && compressedLeaves
+				&& compressedLeafSize(node) <= PAGE_SIZE) {
+			page.put(PAGE_TYPE_OFFSET, COMPRESSED_LEAF_PAGE);
+			page.putShort(KEY_COUNT_OFFSET, (short) keyCount);
+			page.putInt(PREV_PAGE_OFFSET, node.prevLeafPage);
+			encodeRightLink(node, page);
+			CompressedLeaf.encode(node, page);
+			return;
+		}
+		page.put(PAGE_TYPE_OFFSET, node.isLeaf ? LEAF_PAGE : INTERNAL_PAGE);
+		page.putShort(KEY_COUNT_OFFSET, (short) keyCount);
+		page.putInt(PREV_PAGE_OFFSET, node.prevLeafPage);
+		encodeRightLink(node, page);
+
+		// The key slots of a node have the same layout as in the page.
+		page.position(NODE_HEADER_SIZE);
+		page.put(node.keys, 0, keyCount * keyLength);
+		if (node.isLeaf) {
+			page.asLongBuffer().put(node.byteOffset, 0, keyCount);
+			page.position(page.position() + keyCount * 8);
+			page.asIntBuffer().put(node.dataLength, 0, keyCount);
+		} else {
+			page.asIntBuffer().put(node.childPage, 0, node.childCount);
+		}
+	}
+
+	// Writes an internal node as a prefixed internal page.
+	private void encodePrefixedNode(BTreeNode node, ByteBuffer page) {
+		int keyCount = node.keyCount;
+		int prefixLength = commonPrefix(node);
+		page.put(PAGE_TYPE_OFFSET, PREFIXED_INTERNAL_PAGE);
+		page.putShort(KEY_COUNT_OFFSET, (short) keyCount);
+		page.putShort(PREFIX_LENGTH_OFFSET, (short) prefixLength);
+		encodeRightLink(node, page);
+
+		page.position(NODE_HEADER_SIZE);
+		page.asIntBuffer().put(node.childPage, 0, node.childCount);
+		int endPos = NODE_HEADER_SIZE + node.childCount * 4;
+		int prefixPos = endPos + keyCount * 2;
+		page.position(prefixPos);
+		page.put(node.keys, 0, prefixLength);
+		int suffixEnd = 0;
+		for (int count = 0; count < keyCount; count++) {
+			int suffixLength = keyEnd(node, count, prefixLength) - prefixLength;
+			page.put(node.keys, count * keyLength + prefixLength, suffixLength);
+			suffixEnd += suffixLength;
+			page.putShort(endPos + count * 2, (short) suffixEnd);
+		}
+	}
+
+	// Writes the right-link of a node and its high key at the end of the page.
+	private void encodeRightLink(BTreeNode node, ByteBuffer page) {
+		page.putInt(NEXT_PAGE_OFFSET, node.rightPage);
+		if (node.rightPage == NO_PAGE)
+			return;
+		int highKeyPos = PAGE_SIZE - keyLength;
+		int length = Math.min(node.highKey.length, keyLength);
+		page.position(highKeyPos);
+		page.put(node.highKey, 0, length);
+		for (int count = length; count < keyLength; count++)
+			page.put((byte) 0);
+	}
+
+	// Reads the right-link and the high key of a node.
+	private void decodeRightLink(ByteBuffer page, BTreeNode node) {
+		node.rightPage = page.getInt(NEXT_PAGE_OFFSET);
+		if (node.rightPage == NO_PAGE)
+			return;
+		node.highKey = new byte[keyLength];
+		page.position(PAGE_SIZE - keyLength);
+		page.get(node.highKey);
+	}
+
+	/**
+	 * Deserializes a node from a page buffer.
+	 *
+	 * @param page
+	 *            is a buffer holding the page.
+	 * @param pageId
+	 *            is the page number of the node.
+	 * @return the node.
+	 */
+	BTreeNode decodeNode(ByteBuffer page, int pageId) {
+		int keyCount = page.getShort(KEY_COUNT_OFFSET);
+		BTreeNode node = new BTreeNode(keyLength, keyCount);
+		node.pageId = pageId;
+		decodeRightLink(page, node);
+		if (page.get(PAGE_TYPE_OFFSET) == PREFIXED_INTERNAL_PAGE) {
+			decodePrefixedNode(page, node, keyCount);
+			return node;
+		}
+		byte type = page.get(PAGE_TYPE_OFFSET);
+		node.isLeaf = type == LEAF_PAGE || type == COMPRESSED_LEAF_PAGE;
+		node.prevLeafPage = page.getInt(PREV_PAGE_OFFSET);
+		if (type == COMPRESSED_LEAF_PAGE) {
+			node.byteOffset = new long[node.keys.length / keyLength];
+			node.dataLength = new int[node.byteOffset.length];
+			CompressedLeaf.decode(page, node, keyCount);
+			return node;
+		}
+
+		page.position(NODE_HEADER_SIZE);
+		page.get(node.keys, 0, keyCount * keyLength);
+		node.keyCount = keyCount;
+		if (node.isLeaf) {
+			node.byteOffset = new long[node.keys.length / keyLength];
+			node.dataLength = new int[node.byteOffset.length];
+			page.asLongBuffer().get(node.byteOffset, 0, keyCount);
+			page.position(page.position() + keyCount * 8);
+			page.asIntBuffer().get(node.dataLength, 0, keyCount);
+		} else {
+			node.childPage = new int[keyCount + 1];
+			page.asIntBuffer().get(node.childPage, 0, keyCount + 1);
+			node.childCount = keyCount + 1;
+		}
+		return node;
+	}
+
+	// Reads the separators and children of a prefixed internal page.
+	private void decodePrefixedNode(ByteBuffer page, BTreeNode node,
+			int keyCount) {
+		int prefixLength = page.getShort(PREFIX_LENGTH_OFFSET);
+		node.childPage = new int[keyCount + 1];
+		node.childCount = keyCount + 1;
+		page.position(NODE_HEADER_SIZE);
+		page.asIntBuffer().get(node.childPage, 0, keyCount + 1);
+
+		int endPos = NODE_HEADER_SIZE + node.childCount * 4;
+		int prefixPos = endPos + keyCount * 2;
+		int suffixPos = prefixPos + prefixLength;
+		int suffixStart = 0;
+		for (int count = 0; count < keyCount; count++) {
+			int suffixEnd = page.getShort(endPos + count * 2);
+			int keyPos = count * keyLength;
+			page.position(prefixPos);
+			page.get(node.keys, keyPos, prefixLength);
+			page.position(suffixPos + suffixStart);
+			page.get(node.keys, keyPos + prefixLength, suffixEnd - suffixStart);
+			suffixStart = suffixEnd;
+		}
+		node.keyCount = keyCount;
+	}
+
+	/**
+	 * Returns the no. of bytes an internal node takes as a plain page,
+	 * including the room for its high key.
+	 */
+	static int plainPageSize(BTreeNode node) {
+		return NODE_HEADER_SIZE + node.keyCount * node.keyLength
+				+ (node.keyCount + 1) * 4 + node.keyLength;
+	}
+
+	/**
+	 * Returns the no. of bytes an internal node takes as a prefixed internal
+	 * page, including the room for its high key.
+	 */
+	static int prefixedPageSize(BTreeNode node) {
+		int prefixLength = commonPrefix(node);
+		int size = NODE_HEADER_SIZE + (node.keyCount + 1) * 4 + node.keyCount
+				* 2 + prefixLength + node.keyLength;
+		for (int count = 0; count < node.keyCount; count++) {
+			size += keyEnd(node, count, prefixLength) - prefixLength;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the no. of bytes a leaf takes as a compressed leaf page,
+	 * including the room for its high key.
+	 */
+	static int compressedLeafSize(BTreeNode node) {
+		return NODE_HEADER_SIZE + CompressedLeaf.encodedSize(node)
+				+ node.keyLength;
+	}
+
+	/**
+	 * Checks if a node can be written to a single page. A plain leaf holds at
+	 * most degree - 1 keys, a compressed leaf and an internal node as many as
+	 * fit in the page.
+	 *
+	 * @param node
+	 *            is the node to be checked.
+	 * @param degree
+	 *            is the degree of the tree.
+	 * @param compressedLeaves
+	 *            is true if leaves are written as compressed pages.
+	 */
+	static boolean fits(BTreeNode node, int degree, boolean compressedLeaves) {
+		if (node.isLeaf)
+			return node.keyCount < degree
+					|| (compressedLeaves && compressedLeafSize(node) <= PAGE_SIZE);
+		return plainPageSize(node) <= PAGE_SIZE
+				|| prefixedPageSize(node) <= PAGE_SIZE;
+	}
+
+	// Returns the length of the prefix shared by all keys of the node. The
+	// keys are sorted, so it is the prefix shared by the first and the last.
+	private static int commonPrefix(BTreeNode node) {
+		if (node.keyCount == 0)
+			return 0;
+		int first = 0, last = (node.keyCount - 1) * node.keyLength;
+		int length = 0;
+		while (length < node.keyLength
+				&& node.keys[first + length] == node.keys[last + length])
+			length++;
+		return length;
+	}
+
+	// Returns the length of the key at the slot without its padding, but not
+	// less than the prefix length.
+	private static int keyEnd(BTreeNode node, int slot, int prefixLength) {
+		int keyPos = slot * node.keyLength;
+		int end = node.keyLength;
+		while (end > prefixLength && node.keys[keyPos + end - 1] == 0)
+			end--;
+		return end;
+	}
+
+	/**
+	 * Returns the shortest separator between two adjacent keys: the shortest
+	 * prefix of right which is greater than left. Every key less than or
+	 * equal to left is less than the separator, and every key greater than
+	 * or equal to right is greater than or equal to it.
+	 *
+	 * @param left
+	 *            is the last key of the left sub tree.
+	 * @param right
+	 *            is the first key of the right sub tree, greater than left.
+	 */
+	static byte[] separator(byte[] left, byte[] right) {
+		int length = 0;
+		while (length < right.length
+				&& (length < left.length ? left[length] : 0) == right[length])
+			length++;
+		return Arrays.copyOf(right, Math.min(length + 1, right.length));
+	}
+
+	/**
+	 * Converts a key to its fixed width representation in a page. Keys
+	 * shorter than the key length are padded with zero bytes; longer ones
+	 * are refused, as cutting them would give another key. The key must
+	 * hold a char per byte, as toKey or new String(bytes, ISO_8859_1) make
+	 * it; a key typed in is encoded with getBytes() instead, the way the
+	 * file which was indexed is.
+	 *
+	 * @param key
+	 *            is the key.
+	 * @param keyLength
+	 *            is the width of the key in bytes.
+	 * @return keyLength bytes.
+	 */
+	static byte[] toKeyBytes(String key, int keyLength) {
+		byte[] bytes = key.getBytes(StandardCharsets.ISO_8859_1);
+		if (bytes.length > keyLength)
+			throw new IllegalArgumentException("Key " + key
+					+ " is longer than the key length " + keyLength);
+		return Arrays.copyOf(bytes, keyLength);
+	}
+
+	/**
+	 * Converts a fixed width key read from a page back to a String.
+	 *
+	 * @param keyBytes
+	 *            is the key as stored in the page.
+	 * @return the key without its padding.
+	 */
+	static String toKey(byte[] keyBytes) {
+		int length = keyBytes.length;
+		while (length > 0 && keyBytes[length - 1] == 0)
+			length--;
+		return new String(keyBytes, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0)
+				throw new IOException("Unexpected end of " + indexFile);
+		}
+		buffer.clear();
+	}
+
+	private void writeFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * Writes the dirty pages and the metadata back, cuts off the pages past
+	 * the last one in use and forces them to the disk.
+	 */
+	void sync() throws IOException {
+		pool.flush();
+		writeHeader();
+		long size = (long) pageCount * PAGE_SIZE;
+		if (channel.size() > size)
+			channel.truncate(size);
+		channel.force(true);
+	}
+
+	/**
+	 * Writes the dirty pages back and closes the file.
+	 */
+	void close() throws IOException {
+		try {
+			pool.flush();
+		} finally {
+			try {
+				synchronized (this) {
+					if (asyncChannel != null)
+						asyncChannel.close();
+				}
+			} finally {
+				file.close();
+			}
+		}
+	}
+}
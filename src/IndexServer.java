@@ -0,0 +1,652 @@
+/**
+Keeps indexes open in a long running process and answers requests over a
+local socket, so that a lookup costs a round trip instead of starting a JVM,
+reading the metadata and opening the tree. Started with
+
+	java DBIndexFile -serve <port or socket path> <index file> ...
+
+A port binds a TCP socket on the loopback address, anything else is taken as
+the path of a Unix domain socket (Java 16 or later). The indexes are numbered
+from 0 in the order they are given. IndexClient talks to the server.
+
+Every connection has a thread which reads its requests, and every request
+runs on a thread of its own from a RequestExecutor, virtual threads where the
+Java version has them. A client may send any number of requests without waiting
+for the answers. Lookups and lists of a connection run at the same time, while
+an insert or a delete waits for the requests before it and holds back the ones
+after it, so a client always sees its own changes. The answers go out in the
+order of the requests, and are held back in the output buffer until every
+request which has arrived is answered, so pipelined requests share their
+writes and round trips. With a deadline set (see IndexConfig), a request which
+isn't admitted and started in time is answered with a timeout, as is a list
+which runs out of time. The server owns the data files while it runs: inserts
+append records to them and deletes blank them out.
+
+Request layout, numbers big endian:
+	0 - 3     : length of the rest of the request.
+	4 - 7     : request id, returned with the answer.
+	8         : operation: find, list, insert, insert batch or delete.
+	9         : no. of the index.
+	10 - ...  : find and delete: the key. list: the no. of records (4 bytes)
+				and the key to start from. insert: the record, whose first
+				keyLength bytes are the key. insert batch: the no. of records
+				(4 bytes), then each record after its length (4 bytes).
+
+Answer layout:
+	0 - 3     : length of the rest of the answer.
+	4 - 7     : request id.
+	8         : status: ok, not found, duplicate, error or timeout.
+	9 - ...   : find: the record. list: the no. of records (4 bytes), then
+				each record after its length (4 bytes). insert batch: the no.
+				of records inserted (4 bytes). error: the message in UTF-8.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class IndexServer implements Closeable {
+
+	static final byte FIND = 1;
+	static final byte LIST = 2;
+	static final byte INSERT = 3;
+	static final byte INSERT_BATCH = 4;
+	static final byte DELETE = 5;
+
+	static final byte OK = 0;
+	static final byte NOT_FOUND = 1;
+	static final byte DUPLICATE = 2;
+	static final byte ERROR = 3;
+	static final byte TIMEOUT = 4;
+
+	static final int HEADER_SIZE = 10; // Request id, operation and index.
+	static final int MAX_LENGTH = 64 * 1024 * 1024; // Longest message.
+
+	// Index being served, with the data file its records are read from.
+	private static class Served {
+		final ConcurrentIndex index;
+		final RandomAccessFile data;
+		final FileChannel dataChannel;
+		// Appends one insert at a time.
+		final ReentrantLock insertLock = new ReentrantLock();
+
+		Served(ConcurrentIndex index) throws IOException {
+			this.index = index;
+			this.data = new RandomAccessFile(index.getIndexFile().inputFile,
+					"r");
+			this.dataChannel = data.getChannel();
+		}
+	}
+
+	// Open connection, with the answers still to be written to it in the
+	// order of the requests. The lock is a ReentrantLock rather than a
+	// monitor, which would pin a virtual thread writing to the socket. The
+	// answers are written to the channel itself: a stream from Channels would
+	// wait for the lock the reader holds while it waits for a request.
+	private static class Connection {
+		final SocketChannel channel;
+		final ByteBuffer out = ByteBuffer.allocate(8192); // Unsent answers.
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition drained = lock.newCondition(); // All answered.
+		final Queue<Pending> pending = new ArrayDeque<Pending>();
+		boolean broken; // Writing has failed, answers are dropped.
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		// Adds a request which is yet to be answered.
+		Pending expect() {
+			lock.lock();
+			try {
+				Pending request = new Pending();
+				pending.add(request);
+				return request;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// Sets the answer of a request, and writes the answers which are next
+		// in order. Once every request is answered they are flushed.
+		void complete(Pending request, byte[] answer) {
+			lock.lock();
+			try {
+				request.answer = answer;
+				while (!pending.isEmpty() && pending.peek().answer != null)
+					write(pending.remove().answer);
+				if (pending.isEmpty()) {
+					flush();
+					drained.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void write(byte[] answer) {
+			if (answer.length > out.remaining())
+				flush();
+			if (broken)
+				return;
+			if (answer.length > out.capacity())
+				send(ByteBuffer.wrap(answer));
+			else
+				out.put(answer);
+		}
+
+		private void flush() {
+			out.flip();
+			send(out);
+			out.clear();
+		}
+
+		private void send(ByteBuffer buffer) {
+			try {
+				while (!broken && buffer.hasRemaining())
+					channel.write(buffer);
+			} catch (IOException ex) {
+				fail(ex);
+			}
+		}
+
+		// Closes the connection when an answer can't be written; the reader
+		// stops at its next request.
+		private void fail(IOException ex) {
+			broken = true;
+			try {
+				channel.close();
+			} catch (IOException closeFailure) {
+				ex.addSuppressed(closeFailure);
+			}
+		}
+
+		// Waits until every request which was read is answered.
+		void awaitDrained() {
+			lock.lock();
+			try {
+				while (!pending.isEmpty())
+					drained.awaitUninterruptibly();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// Request of a connection, until its answer is written.
+	private static class Pending {
+		byte[] answer; // Answer with its header, null until it is ready.
+	}
+
+	private final List<Served> indexes;
+	private final ServerSocketChannel server;
+	private final String socketPath; // Unix domain socket, or null.
+	private final RequestExecutor executor = new RequestExecutor();
+	private final long deadline; // ns a request may take, 0 for no limit.
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private final AtomicLong timeouts = new AtomicLong();
+	private volatile boolean closed;
+
+	private IndexServer(List<Served> indexes, ServerSocketChannel server,
+			String socketPath) {
+		this.indexes = indexes;
+		this.server = server;
+		this.socketPath = socketPath;
+		this.deadline = IndexConfig.serverDeadline() * 1000000l;
+	}
+
+	/**
+	 * Opens the indexes and binds the socket of a server.
+	 *
+	 * @param address
+	 *            is a port on the loopback address, or the path of a Unix
+	 *            domain socket.
+	 * @param indexFiles
+	 *            are the names of the index files, in the order of their
+	 *            numbers.
+	 * @return the server, which answers requests once serve is called.
+	 */
+	static IndexServer open(String address, List<String> indexFiles)
+			throws IOException {
+		List<Served> indexes = new ArrayList<Served>();
+		ServerSocketChannel server = null;
+		try {
+			for (String indexFile : indexFiles) {
+				ConcurrentIndex index = ConcurrentIndex.open(indexFile);
+				try {
+					indexes.add(new Served(index));
+				} catch (IOException ex) {
+					index.close();
+					throw ex;
+				}
+			}
+			if (isPort(address)) {
+				server = ServerSocketChannel.open();
+				server.bind(tcpAddress(address));
+				return new IndexServer(indexes, server, null);
+			}
+			removeStaleSocket(address);
+			server = (ServerSocketChannel) openChannel(
+					ServerSocketChannel.class, address);
+			server.bind(unixAddress(address));
+			return new IndexServer(indexes, server, address);
+		} catch (IOException ex) {
+			if (server != null)
+				server.close();
+			closeIndexes(indexes);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns the address the server is bound to.
+	 */
+	SocketAddress getAddress() throws IOException {
+		return server.getLocalAddress();
+	}
+
+	/**
+	 * Returns what opening the indexes recovered from their write-ahead logs
+	 * in a readable form, or null if the logs were empty.
+	 */
+	String recovery() {
+		String recovery = null;
+		for (int no = 0; no < indexes.size(); no++) {
+			String recovered = indexes.get(no).index.recovery();
+			if (recovered == null)
+				continue;
+			recovered = "Index " + no + ": "
+					+ recovered.replace("\n", "\nIndex " + no + ": ");
+			recovery = recovery == null ? recovered : recovery + "\n"
+					+ recovered;
+		}
+		return recovery;
+	}
+
+	/**
+	 * Accepts connections until the server is closed, reading the requests
+	 * of each in a thread of its own.
+	 */
+	void serve() throws IOException {
+		while (!closed) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException ex) {
+				if (closed)
+					return;
+				throw ex;
+			}
+			if (socketPath == null)
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			final Connection connection = new Connection(channel);
+			synchronized (this) {
+				if (closed) {
+					channel.close();
+					return;
+				}
+				connections.add(connection);
+			}
+			executor.start(new Runnable() {
+				public void run() {
+					handle(connection);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops accepting connections, closes the open ones once their running
+	 * requests are answered, and closes the indexes.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			for (Connection connection : connections)
+				connection.channel.close();
+		}
+		server.close();
+		if (socketPath != null)
+			new File(socketPath).delete();
+		executor.shutdown();
+		if (IndexConfig.printStats()) {
+			System.out.println(executor.statistics() + ", " + timeouts.get()
+					+ " timed out");
+			for (Served served : indexes)
+				System.out.println(served.index.statistics());
+		}
+		closeIndexes(indexes);
+	}
+
+	private static void closeIndexes(List<Served> indexes) throws IOException {
+		IOException failure = null;
+		for (Served served : indexes) {
+			try {
+				served.data.close();
+				served.index.close();
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	// Reads the requests of a connection and hands each to the executor.
+	// Inserts and deletes run once the requests before them are answered, and
+	// the next request is read once they are.
+	private void handle(final Connection connection) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(connection.channel)));
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException ex) {
+					break; // The client is done.
+				}
+				if (length < HEADER_SIZE - 4 || length > MAX_LENGTH)
+					throw new IOException("Invalid request length " + length);
+				final byte[] request = new byte[length];
+				in.readFully(request);
+				final long arrival = System.nanoTime();
+				boolean change = request[4] != FIND && request[4] != LIST;
+				if (change)
+					connection.awaitDrained();
+				final Pending pending = connection.expect();
+				long wait = deadline == 0 ? Long.MAX_VALUE : deadline
+						- (System.nanoTime() - arrival);
+				if (!executor.submit(new Runnable() {
+					public void run() {
+						connection.complete(pending,
+								answer(ByteBuffer.wrap(request), arrival));
+					}
+				}, wait)) {
+					timeouts.incrementAndGet();
+					connection.complete(pending, timedOut(ByteBuffer.wrap(
+							request).getInt()));
+				}
+				if (change)
+					connection.awaitDrained();
+			}
+		} catch (IOException ex) {
+			if (!closed && !connection.broken)
+				System.out.println("Connection closed: " + ex.getMessage());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			connection.awaitDrained();
+			try {
+				connection.channel.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+			synchronized (this) {
+				connections.remove(connection);
+			}
+		}
+	}
+
+	// Carries out a request and returns its answer. A request which fails is
+	// answered with the error, and the connection goes on.
+	private byte[] answer(ByteBuffer request, long arrival) {
+		int id = request.getInt();
+		byte operation = request.get();
+		int indexNo = request.get() & 0xff;
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte status;
+		try {
+			if (indexNo >= indexes.size())
+				throw new IllegalArgumentException("There is no index "
+						+ indexNo);
+			status = execute(indexes.get(indexNo), operation, request,
+					arrival, new DataOutputStream(body));
+		} catch (TimeoutException ex) {
+			timeouts.incrementAndGet();
+			return timedOut(id);
+		} catch (Exception ex) {
+			status = ERROR;
+			body.reset();
+			String message = ex.getMessage() != null ? ex.getMessage() : ex
+					.toString();
+			byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+			body.write(bytes, 0, bytes.length);
+		}
+		return frame(id, status, body);
+	}
+
+	// Returns the answer to a request which has run out of time.
+	private static byte[] timedOut(int id) {
+		return frame(id, TIMEOUT, new ByteArrayOutputStream());
+	}
+
+	// Puts the header of an answer before its body.
+	private static byte[] frame(int id, byte status, ByteArrayOutputStream body) {
+		ByteBuffer answer = ByteBuffer.allocate(9 + body.size());
+		answer.putInt(5 + body.size());
+		answer.putInt(id);
+		answer.put(status);
+		answer.put(body.toByteArray());
+		return answer.array();
+	}
+
+	// Throws a TimeoutException once a request has run out of time.
+	private void checkDeadline(long arrival) throws TimeoutException {
+		if (deadline != 0 && System.nanoTime() - arrival > deadline)
+			throw new TimeoutException();
+	}
+
+	// Carries out a request on an index and writes the body of its answer.
+	private byte execute(Served served, byte operation, ByteBuffer request,
+			long arrival, DataOutputStream body) throws IOException,
+			TimeoutException {
+		ConcurrentIndex index = served.index;
+		checkDeadline(arrival);
+		if (operation == FIND) {
+			IndexEntry entry = index.find(rest(request));
+			if (entry == null)
+				return NOT_FOUND;
+			body.write(readRecord(served, entry));
+			return OK;
+		} else if (operation == LIST) {
+			int count = request.getInt();
+			List<IndexEntry> entries;
+			ConcurrentIndex.Snapshot snapshot = index.snapshot();
+			try {
+				entries = index.list(snapshot, rest(request), count);
+			} finally {
+				snapshot.close();
+			}
+			body.writeInt(entries.size());
+			for (IndexEntry entry : entries) {
+				checkDeadline(arrival);
+				byte[] record = readRecord(served, entry);
+				body.writeInt(record.length);
+				body.write(record);
+			}
+			return OK;
+		} else if (operation == INSERT) {
+			List<byte[]> records = new ArrayList<byte[]>();
+			records.add(rest(request));
+			return insert(served, records, arrival) == 1 ? OK : DUPLICATE;
+		} else if (operation == INSERT_BATCH) {
+			int count = request.getInt();
+			List<byte[]> records = new ArrayList<byte[]>();
+			for (int no = 0; no < count; no++) {
+				byte[] record = new byte[request.getInt()];
+				request.get(record);
+				records.add(record);
+			}
+			body.writeInt(insert(served, records, arrival));
+			return OK;
+		} else if (operation == DELETE) {
+			return index.delete(rest(request)) == null ? NOT_FOUND : OK;
+		}
+		throw new IllegalArgumentException("Unknown operation " + operation);
+	}
+
+	// Appends and inserts the records whose keys aren't present yet, unless
+	// the request runs out of time waiting for the inserts before it.
+	private int insert(Served served, List<byte[]> records, long arrival)
+			throws IOException, TimeoutException {
+		int keyLength = served.index.getIndexFile().keyLength;
+		for (byte[] record : records) {
+			if (record.length < keyLength)
+				throw new IllegalArgumentException("Data is shorter than the key.");
+		}
+		served.insertLock.lock();
+		try {
+			checkDeadline(arrival);
+			return DBIndexFile.insertRecords(served.index, records);
+		} finally {
+			served.insertLock.unlock();
+		}
+	}
+
+	// Returns the bytes of the request after its position.
+	private static byte[] rest(ByteBuffer request) {
+		return Arrays.copyOfRange(request.array(), request.position(),
+				request.limit());
+	}
+
+	// Reads the record of an entry from the data file.
+	private static byte[] readRecord(Served served, IndexEntry entry)
+			throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(entry.dataLength);
+		while (record.hasRemaining()) {
+			if (served.dataChannel.read(record, entry.byteOffset
+					+ record.position()) < 0)
+				throw new EOFException("Record at " + entry.byteOffset
+						+ " is past the end of the data file");
+		}
+		return record.array();
+	}
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param address
+	 *            is the port or the socket path the server was started with.
+	 * @return the connected channel.
+	 */
+	static SocketChannel connect(String address) throws IOException {
+		if (isPort(address)) {
+			SocketChannel channel = SocketChannel.open(tcpAddress(address));
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			return channel;
+		}
+		SocketChannel channel = (SocketChannel) openChannel(
+				SocketChannel.class, address);
+		try {
+			channel.connect(unixAddress(address));
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+		return channel;
+	}
+
+	private static boolean isPort(String address) {
+		return address.matches("[0-9]+");
+	}
+
+	private static InetSocketAddress tcpAddress(String port) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				Integer.parseInt(port));
+	}
+
+	// Unix domain sockets came with Java 16, so they are looked up by name
+	// to keep the rest working on older versions.
+	private static SocketAddress unixAddress(String path) throws IOException {
+		try {
+			return (SocketAddress) Class
+					.forName("java.net.UnixDomainSocketAddress")
+					.getMethod("of", String.class).invoke(null, path);
+		} catch (ReflectiveOperationException ex) {
+			throw new IOException("Unix domain sockets need Java 16 or later",
+					ex);
+		}
+	}
+
+	// Removes the socket file at the path if a server which was killed left
+	// it behind, that is if it is a socket nobody accepts connections on.
+	// Anything else at the path is in use.
+	private static void removeStaleSocket(String path) throws IOException {
+		Path file = Paths.get(path);
+		if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS))
+			return;
+		if (!Files.readAttributes(file, BasicFileAttributes.class,
+				LinkOption.NOFOLLOW_LINKS).isOther())
+			throw new IOException("Address " + path
+					+ " is in use: it isn't a socket");
+		SocketChannel channel = (SocketChannel) openChannel(
+				SocketChannel.class, path);
+		try {
+			channel.connect(unixAddress(path));
+		} catch (IOException ex) {
+			Files.delete(file); // Nobody listens.
+			return;
+		} finally {
+			channel.close();
+		}
+		throw new IOException("Address " + path
+				+ " is in use by another server");
+	}
+
+	// Opens a socket channel or a server socket channel for a Unix domain
+	// socket.
+	private static Object openChannel(Class<?> type, String path)
+			throws IOException {
+		try {
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+			return type.getMethod("open", ProtocolFamily.class).invoke(null,
+					unix);
+		} catch (InvocationTargetException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException(ex.getCause());
+		} catch (ReflectiveOperationException ex) {
+			throw new IOException("Unix domain sockets need Java 16 or later",
+					ex);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Unix domain sockets need Java 16 or later",
+					ex);
+		}
+	}
+}
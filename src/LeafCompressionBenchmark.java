@@ -0,0 +1,124 @@
+/**
+Compares plain and compressed leaves on a data file. Both indexes are built
+with -create, and the benchmark reports their sizes and no. of leaves, the
+time to decode every leaf the way -list does, and the time of a lookup. Run it
+with
+
+	java LeafCompressionBenchmark <data file> <key length> [lookups]
+
+The index files are created in the temporary directory and deleted at the end.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class LeafCompressionBenchmark {
+
+	static final int ROUNDS = 5; // Measured rounds of each test.
+
+	public static void main(String[] args) throws IOException {
+		String dataFile = args[0];
+		int keyLength = Integer.parseInt(args[1]);
+		int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		List<byte[]> keys = sampleKeys(dataFile, keyLength, lookups);
+
+		File plain = File.createTempFile("bptree-plain", ".indx");
+		File compressed = File.createTempFile("bptree-compressed", ".indx");
+		try {
+			create(dataFile, keyLength, plain, false);
+			create(dataFile, keyLength, compressed, true);
+			System.out.println("leaves      index bytes  leaf pages  scan ns/entry"
+					+ "  lookup ns");
+			long plainSize = report("plain", plain, keys);
+			long compressedSize = report("compressed", compressed, keys);
+			System.out.println(String.format("compression ratio %.2f",
+					(double) plainSize / compressedSize));
+		} finally {
+			plain.delete();
+			compressed.delete();
+		}
+	}
+
+	// Builds an index with or without compressed leaves.
+	private static void create(String dataFile, int keyLength, File index,
+			boolean compressLeaves) {
+		System.setProperty(IndexConfig.COMPRESS_LEAVES,
+				Boolean.toString(compressLeaves));
+		DBIndexFile.main(new String[] { "-create", Integer.toString(keyLength),
+				dataFile, index.getPath() });
+	}
+
+	// Prints the measurements of an index and returns its size.
+	private static long report(String name, File index, List<byte[]> keys)
+			throws IOException {
+		MappedIndexReader reader = MappedIndexReader.open(index.getPath());
+		long[] offsets = new long[IndexFile.PAGE_SIZE];
+		int[] lengths = new int[IndexFile.PAGE_SIZE];
+
+		// Decode every leaf, following the leaf links like -list.
+		long sum = 0, entries = 0, leaves = 0, scanTime = 0;
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			entries = leaves = 0;
+			int leafPage = reader.findLeaf(new byte[0]);
+			while (leafPage != IndexFile.NO_PAGE) {
+				int count = reader.leafEntries(leafPage, offsets, lengths);
+				for (int slot = 0; slot < count; slot++)
+					sum += offsets[slot] + lengths[slot];
+				entries += count;
+				leaves++;
+				leafPage = reader.nextLeafPage(leafPage);
+			}
+			if (round > 0) // The first round warms up.
+				scanTime += System.nanoTime() - start;
+		}
+
+		long lookupTime = 0;
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (byte[] key : keys) {
+				int leafPage = reader.findLeaf(key);
+				int slot = reader.findSlot(leafPage, key);
+				sum += reader.byteOffset(leafPage, slot);
+			}
+			if (round > 0)
+				lookupTime += System.nanoTime() - start;
+		}
+
+		System.out.println(String.format("%-11s %11d %11d %14.1f %10.1f   (%d)",
+				name, index.length(), leaves, (double) scanTime / ROUNDS
+						/ entries, (double) lookupTime / ROUNDS / keys.size(),
+				sum));
+		return index.length();
+	}
+
+	// Picks keys of the data file to look up.
+	private static List<byte[]> sampleKeys(String dataFile, int keyLength,
+			int count) throws IOException {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+		try {
+			RecordScanner scanner = new RecordScanner(file.getChannel(), 0,
+					file.length(), keyLength);
+			while (scanner.next()) {
+				if (!scanner.hasKey())
+					continue;
+				byte[] key = new byte[keyLength];
+				scanner.copyKey(key, 0);
+				keys.add(key);
+			}
+		} finally {
+			file.close();
+		}
+		// Look the keys up in random order.
+		Random random = new Random(42);
+		List<byte[]> sample = new ArrayList<byte[]>();
+		for (int index = 0; index < count && !keys.isEmpty(); index++)
+			sample.add(keys.get(random.nextInt(keys.size())));
+		return sample;
+	}
+}
@@ -0,0 +1,368 @@
+/**
+Reads ahead of a range scan over a mapped index (see
+MappedIndexReader.RangeCursor). A background thread walks the leaf chain in the
+direction of the scan ahead of the cursor, which brings the leaf pages into
+memory before the cursor gets to them, and starts asynchronous reads of the
+records the leaves point to. Records which lie close to each other in the data
+file are read as one region, so a data file in key order is read in large
+sequential reads. The cursor then takes its records out of the regions read and
+waits neither for a leaf nor for a record as long as the reads keep up.
+
+The walker stops at the end of the range or once it has read as many entries as
+the cursor may still return. How far it walks ahead, the depth in leaves,
+adapts to the consumer: it starts at one leaf and doubles whenever the cursor
+reaches a leaf which isn't read yet, up to bptree.readahead leaves, and drops by
+one after every depth leaves which were read in time. A slow consumer so keeps
+few records in memory and a fast one keeps many reads in flight.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class LeafReadahead implements Closeable {
+
+	static final int REGION_GAP = 4096; // Largest gap read inside a region.
+	static final int MAX_REGION = 1 << 20; // Largest region in bytes.
+
+	private final MappedIndexReader reader;
+	private final AsynchronousFileChannel channel; // The file indexed.
+	private final boolean descending;
+	private final byte[] to; // Key the range ends at, null for no end.
+	private final boolean toInclusive;
+	private final int maxDepth;
+	private final Thread walker;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final ArrayDeque<Leaf> leaves = new ArrayDeque<Leaf>(); // Walked.
+	private int depth = 1; // No. of leaves walked ahead of the cursor.
+	private int inTime; // No. of leaves read in time at this depth.
+	private boolean stopped; // The walker is to stop.
+	private boolean finished; // The walker has stopped.
+	private Leaf current; // Leaf of the cursor, null if it wasn't walked.
+
+	// Statistics.
+	private long leafCount, regionCount, lateCount;
+
+	// Records of a leaf, in regions ordered by their start.
+	private static class Leaf {
+		final int pageId;
+		final long[] starts;
+		final List<CompletableFuture<ByteBuffer>> regions;
+
+		Leaf(int pageId, long[] starts,
+				List<CompletableFuture<ByteBuffer>> regions) {
+			this.pageId = pageId;
+			this.starts = starts;
+			this.regions = regions;
+		}
+
+		boolean isRead() {
+			for (CompletableFuture<ByteBuffer> region : regions) {
+				if (!region.isDone())
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Starts reading ahead from a leaf.
+	 *
+	 * @param reader
+	 *            is the mapped index file.
+	 * @param dataFile
+	 *            is the file which was indexed.
+	 * @param firstLeaf
+	 *            is the leaf of the cursor.
+	 * @param firstSlot
+	 *            is the slot of the next entry of the cursor in that leaf.
+	 * @param descending
+	 *            tells if the scan goes along the previous leaf pages.
+	 * @param to
+	 *            is the key the range ends at, null for no end.
+	 * @param toInclusive
+	 *            tells if an entry with the key to is in the range.
+	 * @param limit
+	 *            is the no. of entries the cursor may still return.
+	 * @param maxDepth
+	 *            is the most leaves read ahead.
+	 */
+	LeafReadahead(MappedIndexReader reader, String dataFile,
+			final int firstLeaf, final int firstSlot, boolean descending,
+			byte[] to, boolean toInclusive, final int limit, int maxDepth)
+			throws IOException {
+		this.reader = reader;
+		this.channel = AsynchronousFileChannel.open(Paths.get(dataFile),
+				StandardOpenOption.READ);
+		this.descending = descending;
+		this.to = to;
+		this.toInclusive = toInclusive;
+		this.maxDepth = Math.max(1, maxDepth);
+		walker = new Thread(new Runnable() {
+			public void run() {
+				walk(firstLeaf, firstSlot, limit);
+			}
+		}, "bptree-readahead");
+		walker.setDaemon(true);
+		walker.start();
+	}
+
+	// Walks the leaves from the first one until the range or the limit ends,
+	// keeping at most depth leaves ahead of the cursor.
+	private void walk(int pageId, int firstSlot, int limit) {
+		byte[][] keys = new byte[IndexFile.PAGE_SIZE][];
+		long[] offsets = new long[IndexFile.PAGE_SIZE];
+		int[] lengths = new int[IndexFile.PAGE_SIZE];
+		try {
+			int remaining = limit;
+			boolean first = true;
+			while (pageId != IndexFile.NO_PAGE && remaining > 0) {
+				lock.lock();
+				try {
+					while (!stopped && leaves.size() >= depth)
+						changed.await();
+					if (stopped)
+						return;
+				} finally {
+					lock.unlock();
+				}
+
+				// The slots from low up to high are in the range.
+				int keyCount = reader.leafEntries(pageId, keys, offsets,
+						lengths);
+				int low = 0, high = keyCount;
+				if (first && descending)
+					high = Math.min(keyCount, firstSlot + 1);
+				else if (first)
+					low = Math.max(0, firstSlot);
+				first = false;
+				boolean last = false;
+				if (to != null) {
+					while (low < high && beyond(keys[descending ? low
+							: high - 1])) {
+						if (descending)
+							low++;
+						else
+							high--;
+						last = true;
+					}
+				}
+				if (high - low > remaining) {
+					if (descending)
+						low = high - remaining;
+					else
+						high = low + remaining;
+				}
+				remaining -= Math.max(0, high - low);
+
+				Leaf leaf = read(pageId, offsets, lengths, low, high);
+				lock.lock();
+				try {
+					leaves.add(leaf);
+					leafCount++;
+					regionCount += leaf.regions.size();
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				if (last)
+					break;
+				pageId = descending ? reader.prevLeafPage(pageId) : reader
+						.nextLeafPage(pageId);
+			}
+		} catch (InterruptedException ex) {
+			// Stop walking; the cursor reads the rest itself.
+		} finally {
+			lock.lock();
+			try {
+				finished = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// Checks if a key lies past the end of the range.
+	private boolean beyond(byte[] key) {
+		int diff = MappedIndexReader.compareKey(key, to);
+		if (descending)
+			diff = -diff;
+		return diff > 0 || (diff == 0 && !toInclusive);
+	}
+
+	// Starts the reads of the records at the slots from low up to high of a
+	// leaf, joining records close to each other into regions.
+	private Leaf read(int pageId, final long[] offsets, int[] lengths,
+			int low, int high) {
+		Integer[] slots = new Integer[Math.max(0, high - low)];
+		for (int count = 0; count < slots.length; count++)
+			slots[count] = low + count;
+		Arrays.sort(slots, new Comparator<Integer>() {
+			public int compare(Integer one, Integer two) {
+				return Long.compare(offsets[one], offsets[two]);
+			}
+		});
+		List<Long> starts = new ArrayList<Long>();
+		List<CompletableFuture<ByteBuffer>> regions = new ArrayList<CompletableFuture<ByteBuffer>>();
+		int count = 0;
+		while (count < slots.length) {
+			long start = offsets[slots[count]];
+			long end = start + lengths[slots[count]];
+			for (count++; count < slots.length; count++) {
+				long offset = offsets[slots[count]];
+				long next = Math.max(end, offset + lengths[slots[count]]);
+				if (offset > end + REGION_GAP || next - start > MAX_REGION)
+					break;
+				end = next;
+			}
+			starts.add(start);
+			regions.add(IndexFile.readAsync(channel,
+					ByteBuffer.allocate((int) (end - start)), start));
+		}
+		long[] regionStarts = new long[starts.size()];
+		for (int no = 0; no < regionStarts.length; no++)
+			regionStarts[no] = starts.get(no);
+		return new Leaf(pageId, regionStarts, regions);
+	}
+
+	/**
+	 * Tells that the cursor has moved to a leaf. Leaves walked before it are
+	 * dropped, and the depth adapts to whether the leaf was read in time.
+	 *
+	 * @param pageId
+	 *            is the leaf the cursor moved to.
+	 */
+	void reached(int pageId) {
+		lock.lock();
+		try {
+			current = null;
+			boolean late = false;
+			while (!stopped) {
+				if (leaves.isEmpty()) {
+					if (finished)
+						break;
+					late = true;
+					changed.awaitUninterruptibly();
+					continue;
+				}
+				Leaf leaf = leaves.poll();
+				changed.signalAll();
+				if (leaf.pageId == pageId) {
+					current = leaf;
+					break;
+				}
+			}
+			if (current == null)
+				return;
+			if (late || !current.isRead()) {
+				lateCount++;
+				depth = Math.min(maxDepth, depth * 2);
+				inTime = 0;
+			} else if (++inTime >= depth && depth > 1) {
+				depth--;
+				inTime = 0;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the record of an entry of the leaf of the cursor, out of the
+	 * regions read ahead if the entry is in one, otherwise read directly.
+	 *
+	 * @param entry
+	 *            is the entry.
+	 * @return the record.
+	 */
+	byte[] record(IndexEntry entry) throws IOException {
+		byte[] record = new byte[entry.dataLength];
+		Leaf leaf = current;
+		if (leaf != null) {
+			int no = Arrays.binarySearch(leaf.starts, entry.byteOffset);
+			if (no < 0)
+				no = -no - 2;
+			if (no >= 0) {
+				ByteBuffer region = null;
+				try {
+					region = leaf.regions.get(no).join();
+				} catch (CompletionException ex) {
+					// Read the record directly below.
+				}
+				int position = (int) (entry.byteOffset - leaf.starts[no]);
+				if (region != null
+						&& position + record.length <= region.position()) {
+					ByteBuffer copy = region.duplicate();
+					copy.position(position);
+					copy.get(record);
+					return record;
+				}
+			}
+		}
+		try {
+			ByteBuffer buffer = IndexFile.readAsync(channel,
+					ByteBuffer.wrap(record), entry.byteOffset).join();
+			if (buffer.hasRemaining())
+				throw new IOException("Record at " + entry.byteOffset
+						+ " is past the end of the file");
+		} catch (CompletionException ex) {
+			throw new IOException(ex.getCause());
+		}
+		return record;
+	}
+
+	/**
+	 * Stops reading ahead, for example after the cursor was moved elsewhere.
+	 * Records are read directly from then on.
+	 */
+	void stop() {
+		lock.lock();
+		try {
+			stopped = true;
+			current = null;
+			leaves.clear();
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the statistics of the readahead in a readable form.
+	 */
+	String statistics() {
+		lock.lock();
+		try {
+			return "Readahead: " + leafCount + " leaves, " + regionCount
+					+ " regions read, cursor late at " + lateCount
+					+ " leaves, depth " + depth + " of " + maxDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		stop();
+		try {
+			walker.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+}
@@ -0,0 +1,605 @@
+/**
+Read only view of a paged index file which is mapped into memory. The tree is
+walked directly in the mapped pages: keys are compared in place and offsets
+and lengths are read straight out of the leaf pages, so a lookup does not
+create any node, key or list objects. Once the pages are in the OS page cache
+a lookup doesn't touch the disk at all. Compressed leaves are decoded on the
+fly by a CompressedLeaf.Cursor over the mapped page. Like every search of the
+B-link tree, a lookup moves right at each level while the search key is not
+less than the high key of the page.
+
+A RangeCursor iterates over the entries of a key range, in ascending order
+along the next leaf pages or in descending order along the previous ones. It
+seeks to the start of the range from the root, reads a leaf at a time and stops
+at the end of the range or after as many entries as asked for, so a short scan
+reads the leaves it returns entries from and no more. A long scan can have the
+leaves and records ahead of it read in the background (see LeafReadahead).
+
+Files larger than what a single MappedByteBuffer can hold are mapped in
+segments of SEGMENT_PAGES pages each.
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+class MappedIndexReader {
+
+	static final int SEGMENT_SHIFT = 20; // 2^20 pages, i.e. 1 GB per segment.
+	static final int SEGMENT_PAGES = 1 << SEGMENT_SHIFT;
+
+	private final ByteBuffer[] segments; // Mapped segments of the file.
+	final String inputFile; // Name of the file which was indexed.
+	final int keyLength; // Length of the key in bytes.
+	final int rootPage; // Page number of the root node.
+
+	private MappedIndexReader(ByteBuffer[] segments, IndexFile index) {
+		this.segments = segments;
+		this.inputFile = index.inputFile;
+		this.keyLength = index.keyLength;
+		this.rootPage = index.rootPage;
+	}
+
+	/**
+	 * Maps the index file into memory.
+	 *
+	 * @param indexFile
+	 *            is the name of the index file.
+	 * @return a reader over the mapped file.
+	 */
+	static MappedIndexReader open(String indexFile) throws IOException {
+		// Validate and read the metadata.
+		IndexFile index = IndexFile.open(indexFile, false);
+		index.close();
+
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel fc = file.getChannel();
+			long size = (long) index.pageCount * IndexFile.PAGE_SIZE;
+			long segmentSize = (long) SEGMENT_PAGES * IndexFile.PAGE_SIZE;
+			int segmentCount = (int) ((size + segmentSize - 1) / segmentSize);
+			ByteBuffer[] segments = new ByteBuffer[segmentCount];
+			for (int count = 0; count < segmentCount; count++) {
+				long start = count * segmentSize;
+				segments[count] = fc.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(segmentSize, size - start));
+			}
+			// The mapping stays valid after the channel is closed.
+			return new MappedIndexReader(segments, index);
+		} finally {
+			file.close();
+		}
+	}
+
+	// Returns the segment holding the page.
+	private ByteBuffer segment(int pageId) {
+		return segments[pageId >>> SEGMENT_SHIFT];
+	}
+
+	// Returns the position of the page inside its segment.
+	private int base(int pageId) {
+		return (pageId & (SEGMENT_PAGES - 1)) * IndexFile.PAGE_SIZE;
+	}
+
+	boolean isLeaf(int pageId) {
+		byte type = segment(pageId).get(base(pageId) + IndexFile.PAGE_TYPE_OFFSET);
+		return type == IndexFile.LEAF_PAGE
+				|| type == IndexFile.COMPRESSED_LEAF_PAGE;
+	}
+
+	int keyCount(int pageId) {
+		return segment(pageId).getShort(base(pageId) + IndexFile.KEY_COUNT_OFFSET);
+	}
+
+	/**
+	 * Returns the right-link of a page, which is the next leaf for a leaf.
+	 */
+	int nextLeafPage(int pageId) {
+		return segment(pageId).getInt(base(pageId) + IndexFile.NEXT_PAGE_OFFSET);
+	}
+
+	int prevLeafPage(int pageId) {
+		return segment(pageId).getInt(base(pageId) + IndexFile.PREV_PAGE_OFFSET);
+	}
+
+	// Checks if the page is a compressed leaf page.
+	private boolean isCompressed(int pageId) {
+		return segment(pageId).get(base(pageId) + IndexFile.PAGE_TYPE_OFFSET) == IndexFile.COMPRESSED_LEAF_PAGE;
+	}
+
+	// Returns a cursor over a compressed leaf page, moved to the given slot.
+	private CompressedLeaf.Cursor cursor(int pageId, int slot) {
+		CompressedLeaf.Cursor cursor = new CompressedLeaf.Cursor(
+				segment(pageId), base(pageId), keyLength, keyCount(pageId));
+		while (cursor.slot < slot && cursor.next())
+			;
+		return cursor;
+	}
+
+	// Checks if the page is a prefixed internal page.
+	private boolean isPrefixed(int pageId) {
+		return segment(pageId).get(base(pageId) + IndexFile.PAGE_TYPE_OFFSET) == IndexFile.PREFIXED_INTERNAL_PAGE;
+	}
+
+	/**
+	 * Returns the page number of the child at the given slot of an internal
+	 * page.
+	 */
+	int childPage(int pageId, int slot) {
+		if (isPrefixed(pageId))
+			return segment(pageId).getInt(base(pageId)
+					+ IndexFile.NODE_HEADER_SIZE + slot * 4);
+		int keyCount = keyCount(pageId);
+		return segment(pageId).getInt(base(pageId) + IndexFile.NODE_HEADER_SIZE
+				+ keyCount * keyLength + slot * 4);
+	}
+
+	/**
+	 * Returns the byte offset of the record at the given slot of a leaf page.
+	 */
+	long byteOffset(int pageId, int slot) {
+		if (isCompressed(pageId))
+			return cursor(pageId, slot).byteOffset;
+		int keyCount = keyCount(pageId);
+		return segment(pageId).getLong(base(pageId) + IndexFile.NODE_HEADER_SIZE
+				+ keyCount * keyLength + slot * 8);
+	}
+
+	/**
+	 * Reads the byte offsets and data lengths of all records of a leaf page,
+	 * decoding a compressed leaf only once.
+	 *
+	 * @param pageId
+	 *            is the leaf page.
+	 * @param offsets
+	 *            receives the byte offsets; PAGE_SIZE entries are enough for
+	 *            any leaf.
+	 * @param lengths
+	 *            receives the data lengths.
+	 * @return the no. of records of the page.
+	 */
+	int leafEntries(int pageId, long[] offsets, int[] lengths) {
+		return leafEntries(pageId, null, offsets, lengths);
+	}
+
+	/**
+	 * Reads all records of a leaf page like leafEntries above, along with
+	 * copies of their keys.
+	 *
+	 * @param keys
+	 *            receives the keys, zero padded to keyLength, if it isn't
+	 *            null.
+	 */
+	int leafEntries(int pageId, byte[][] keys, long[] offsets, int[] lengths) {
+		if (isCompressed(pageId)) {
+			CompressedLeaf.Cursor cursor = cursor(pageId, -1);
+			while (cursor.next()) {
+				if (keys != null)
+					keys[cursor.slot] = cursor.key.clone();
+				offsets[cursor.slot] = cursor.byteOffset;
+				lengths[cursor.slot] = cursor.dataLength;
+			}
+			return cursor.slot + 1;
+		}
+		ByteBuffer buffer = segment(pageId);
+		int keyPos = base(pageId) + IndexFile.NODE_HEADER_SIZE;
+		int keyCount = keyCount(pageId);
+		for (int slot = 0; slot < keyCount; slot++) {
+			if (keys != null) {
+				keys[slot] = new byte[keyLength];
+				for (int count = 0; count < keyLength; count++)
+					keys[slot][count] = buffer.get(keyPos + slot * keyLength
+							+ count);
+			}
+			offsets[slot] = byteOffset(pageId, slot);
+			lengths[slot] = dataLength(pageId, slot);
+		}
+		return keyCount;
+	}
+
+	/**
+	 * Returns the data length of the record at the given slot of a leaf page.
+	 */
+	int dataLength(int pageId, int slot) {
+		if (isCompressed(pageId))
+			return cursor(pageId, slot).dataLength;
+		int keyCount = keyCount(pageId);
+		return segment(pageId).getInt(base(pageId) + IndexFile.NODE_HEADER_SIZE
+				+ keyCount * (keyLength + 8) + slot * 4);
+	}
+
+	/**
+	 * Compares the key stored at the given slot of a page with a search key
+	 * without copying the stored key. The stored key is padded with zero
+	 * bytes, which compare like the end of the key.
+	 *
+	 * @return a negative number, zero or a positive number if the stored key
+	 *         is less than, equal to or greater than the search key.
+	 */
+	int compareKey(int pageId, int slot, byte[] pSearchKey) {
+		if (isPrefixed(pageId))
+			return comparePrefixedKey(pageId, slot, pSearchKey);
+		if (isCompressed(pageId))
+			return cursor(pageId, slot).compareKey(pSearchKey);
+		return compareAt(segment(pageId), base(pageId)
+				+ IndexFile.NODE_HEADER_SIZE + slot * keyLength, pSearchKey);
+	}
+
+	/**
+	 * Compares a stored key, zero padded to keyLength, with a search key the
+	 * same way as compareKey above.
+	 */
+	static int compareKey(byte[] storedKey, byte[] pSearchKey) {
+		int common = Math.min(storedKey.length, pSearchKey.length);
+		for (int count = 0; count < common; count++) {
+			int diff = (storedKey[count] & 0xff) - (pSearchKey[count] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		if (pSearchKey.length > storedKey.length)
+			return -1; // The stored key is a prefix of the search key.
+		for (int count = common; count < storedKey.length; count++) {
+			if (storedKey[count] != 0)
+				return 1; // The search key is a prefix of the stored key.
+		}
+		return 0;
+	}
+
+	// Compares a plain key stored at the given position with a search key.
+	private int compareAt(ByteBuffer buffer, int keyPos, byte[] pSearchKey) {
+		int common = Math.min(keyLength, pSearchKey.length);
+		for (int count = 0; count < common; count++) {
+			int diff = (buffer.get(keyPos + count) & 0xff)
+					- (pSearchKey[count] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		if (pSearchKey.length > keyLength)
+			return -1; // The stored key is a prefix of the search key.
+		for (int count = common; count < keyLength; count++) {
+			if (buffer.get(keyPos + count) != 0)
+				return 1; // The search key is a prefix of the stored key.
+		}
+		return 0;
+	}
+
+	// Compares the key at the given slot of a prefixed internal page, i.e.
+	// the common prefix followed by the suffix of the key, with a search key.
+	private int comparePrefixedKey(int pageId, int slot, byte[] pSearchKey) {
+		ByteBuffer buffer = segment(pageId);
+		int base = base(pageId);
+		int keyCount = buffer.getShort(base + IndexFile.KEY_COUNT_OFFSET);
+		int prefixLength = buffer.getShort(base
+				+ IndexFile.PREFIX_LENGTH_OFFSET);
+		int endPos = base + IndexFile.NODE_HEADER_SIZE + (keyCount + 1) * 4;
+		int prefixPos = endPos + keyCount * 2;
+		int suffixStart = slot == 0 ? 0 : buffer.getShort(endPos + (slot - 1)
+				* 2);
+		int suffixEnd = buffer.getShort(endPos + slot * 2);
+		int suffixPos = prefixPos + prefixLength + suffixStart - prefixLength;
+		int length = prefixLength + suffixEnd - suffixStart;
+
+		// Bytes past the end of the stored key compare like padding.
+		int compared = Math.max(length, Math.min(keyLength, pSearchKey.length));
+		for (int count = 0; count < compared; count++) {
+			int stored = count < prefixLength ? buffer.get(prefixPos + count)
+					& 0xff : (count < length ? buffer.get(suffixPos + count)
+					& 0xff : 0);
+			int search = count < pSearchKey.length ? pSearchKey[count] & 0xff
+					: 0;
+			if (stored != search)
+				return stored - search;
+		}
+		if (pSearchKey.length > keyLength)
+			return -1; // The stored key is a prefix of the search key.
+		return 0;
+	}
+
+	/**
+	 * Binary search for a key among the keys of a page, the counterpart of
+	 * BTreeNode.search for mapped pages.
+	 *
+	 * @param pageId
+	 *            is the page to be searched.
+	 * @param pSearchKey
+	 *            is the key being searched.
+	 * @return the slot of the key if it is present, otherwise (-(insertion
+	 *         point) - 1).
+	 */
+	int search(int pageId, byte[] pSearchKey) {
+		int low = 0, high = keyCount(pageId) - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int diff = compareKey(pageId, middle, pSearchKey);
+			if (diff < 0)
+				low = middle + 1;
+			else if (diff > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Walks from the root to the leaf which may hold the key.
+	 *
+	 * @param pSearchKey
+	 *            is the key being searched.
+	 * @return the page number of the leaf.
+	 */
+	int findLeaf(byte[] pSearchKey) {
+		int pageId = moveRight(rootPage, pSearchKey);
+		while (!isLeaf(pageId))
+			pageId = moveRight(childPage(pageId,
+					BTreeNode.childSlot(search(pageId, pSearchKey))), pSearchKey);
+		return pageId;
+	}
+
+	/**
+	 * Walks to the leaves of many keys in one pass. The keys are taken in
+	 * order, and the walk to a key starts from the lowest page on the path
+	 * to the key before it whose high key is still greater, so that keys in
+	 * the same leaf or sub tree share the pages above them.
+	 *
+	 * @param pSearchKeys
+	 *            are the keys being searched, in ascending order.
+	 * @return the page numbers of the leaves which may hold the keys.
+	 */
+	int[] findLeaves(List<byte[]> pSearchKeys) {
+		int[] leaves = new int[pSearchKeys.size()];
+		List<Integer> path = new ArrayList<Integer>(); // Root to leaf.
+		for (int count = 0; count < leaves.length; count++) {
+			byte[] searchKey = pSearchKeys.get(count);
+			while (!path.isEmpty() && !covers(path.get(path.size() - 1),
+					searchKey))
+				path.remove(path.size() - 1);
+			int pageId;
+			if (path.isEmpty()) {
+				pageId = moveRight(rootPage, searchKey);
+				path.add(pageId);
+			} else {
+				pageId = path.get(path.size() - 1);
+			}
+			while (!isLeaf(pageId)) {
+				pageId = moveRight(childPage(pageId,
+						BTreeNode.childSlot(search(pageId, searchKey))),
+						searchKey);
+				path.add(pageId);
+			}
+			leaves[count] = pageId;
+		}
+		return leaves;
+	}
+
+	// Walks from the root to the first leaf along the first children.
+	private int firstLeaf() {
+		int pageId = rootPage;
+		while (!isLeaf(pageId))
+			pageId = childPage(pageId, 0);
+		return pageId;
+	}
+
+	// Walks from the root to the last leaf along the right-links and the last
+	// children.
+	private int lastLeaf() {
+		int pageId = rootPage;
+		while (true) {
+			while (nextLeafPage(pageId) != IndexFile.NO_PAGE)
+				pageId = nextLeafPage(pageId);
+			if (isLeaf(pageId))
+				return pageId;
+			pageId = childPage(pageId, keyCount(pageId));
+		}
+	}
+
+	// Checks if the search key is less than the high key of a page, or the
+	// page has no right-link.
+	private boolean covers(int pageId, byte[] pSearchKey) {
+		return nextLeafPage(pageId) == IndexFile.NO_PAGE
+				|| compareAt(segment(pageId), base(pageId) + IndexFile.PAGE_SIZE
+						- keyLength, pSearchKey) > 0;
+	}
+
+	// Follows the right-links from a page while the search key is not less
+	// than the high key of the page.
+	private int moveRight(int pageId, byte[] pSearchKey) {
+		while (!covers(pageId, pSearchKey))
+			pageId = nextLeafPage(pageId);
+		return pageId;
+	}
+
+	/**
+	 * Searches a leaf page for the key.
+	 *
+	 * @param pageId
+	 *            is the leaf page.
+	 * @param pSearchKey
+	 *            is the key being searched.
+	 * @return the slot of the key, or -1 if the key isn't present.
+	 */
+	int findSlot(int pageId, byte[] pSearchKey) {
+		if (isCompressed(pageId)) {
+			// Decode the entries up to the first key not less than the
+			// search key.
+			CompressedLeaf.Cursor cursor = cursor(pageId, -1);
+			return cursor.seek(pSearchKey) == 0 ? cursor.slot : -1;
+		}
+		return Math.max(-1, search(pageId, pSearchKey));
+	}
+
+	/**
+	 * Opens a cursor over a key range.
+	 *
+	 * @param from
+	 *            is the key the range starts from, null to start from the
+	 *            first key, or from the last one in descending order.
+	 * @param fromInclusive
+	 *            tells if an entry with the key from is in the range.
+	 * @param to
+	 *            is the key the range ends at, null for no end.
+	 * @param toInclusive
+	 *            tells if an entry with the key to is in the range.
+	 * @param descending
+	 *            tells if the entries are returned in descending key order,
+	 *            from down to to.
+	 * @param limit
+	 *            is the maximum no. of entries to be returned.
+	 * @return a cursor positioned at the first entry of the range.
+	 */
+	RangeCursor range(byte[] from, boolean fromInclusive, byte[] to,
+			boolean toInclusive, boolean descending, int limit) {
+		RangeCursor cursor = new RangeCursor(to, toInclusive, descending,
+				limit);
+		cursor.seek(from, fromInclusive);
+		return cursor;
+	}
+
+	/**
+	 * Cursor over the entries of a key range. The entries of the current
+	 * leaf are read at once; the next leaf is read only when an entry of it
+	 * is asked for.
+	 */
+	class RangeCursor implements Iterator<IndexEntry> {
+		private final byte[] to; // Key the range ends at, null for no end.
+		private final boolean toInclusive;
+		private final boolean descending;
+		private int remaining; // No. of entries which may still be returned.
+		private final byte[][] keys = new byte[IndexFile.PAGE_SIZE][];
+		private final long[] offsets = new long[IndexFile.PAGE_SIZE];
+		private final int[] lengths = new int[IndexFile.PAGE_SIZE];
+		private int leafPage; // Leaf whose entries are read.
+		private int keyCount; // No. of entries of the leaf.
+		private int slot; // Slot of the next entry, may be out of the leaf.
+		private IndexEntry next; // Next entry, null at the end of the range.
+		private LeafReadahead readahead; // Reads ahead, if it was started.
+
+		private RangeCursor(byte[] to, boolean toInclusive, boolean descending,
+				int limit) {
+			this.to = to;
+			this.toInclusive = toInclusive;
+			this.descending = descending;
+			this.remaining = limit;
+		}
+
+		/**
+		 * Moves to the first entry whose key is not less than the key, or not
+		 * greater than it in descending order. The limit still counts the
+		 * entries returned before.
+		 *
+		 * @param key
+		 *            is the key to move to, null for the first entry, or the
+		 *            last one in descending order.
+		 * @param inclusive
+		 *            tells if an entry with the key itself is moved to.
+		 */
+		void seek(byte[] key, boolean inclusive) {
+			if (readahead != null)
+				readahead.stop();
+			if (key == null) {
+				load(descending ? lastLeaf() : firstLeaf());
+				slot = descending ? keyCount - 1 : 0;
+			} else {
+				load(findLeaf(key));
+				int found = searchLeaf(key);
+				if (found >= 0)
+					slot = inclusive ? found : (descending ? found - 1
+							: found + 1);
+				else
+					slot = descending ? -found - 2 : -found - 1;
+			}
+			advance();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public IndexEntry next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			IndexEntry entry = next;
+			remaining--;
+			slot += descending ? -1 : 1;
+			advance();
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Starts reading the leaves and the records of the rest of the range
+		 * ahead of the cursor. Moving the cursor with seek stops it.
+		 *
+		 * @param dataFile
+		 *            is the file which was indexed.
+		 * @param maxDepth
+		 *            is the most leaves read ahead.
+		 * @return the readahead, which gives the records of the entries and
+		 *         has to be closed after the scan.
+		 */
+		LeafReadahead readAhead(String dataFile, int maxDepth)
+				throws IOException {
+			readahead = new LeafReadahead(MappedIndexReader.this, dataFile,
+					leafPage, slot, descending, to, toInclusive, next == null ? 0
+							: remaining, maxDepth);
+			readahead.reached(leafPage);
+			return readahead;
+		}
+
+		// Reads the entries of a leaf.
+		private void load(int pageId) {
+			leafPage = pageId;
+			keyCount = leafEntries(pageId, keys, offsets, lengths);
+			if (readahead != null)
+				readahead.reached(pageId);
+		}
+
+		// Binary search for a key among the keys of the leaf, like search.
+		private int searchLeaf(byte[] key) {
+			int low = 0, high = keyCount - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int diff = compareKey(keys[middle], key);
+				if (diff < 0)
+					low = middle + 1;
+				else if (diff > 0)
+					high = middle - 1;
+				else
+					return middle;
+			}
+			return -(low + 1);
+		}
+
+		// Finds the entry at the slot, moving on to the next leaves while the
+		// slot is out of the leaf, unless the limit is reached.
+		private void advance() {
+			next = null;
+			if (remaining <= 0)
+				return;
+			while (slot < 0 || slot >= keyCount) {
+				int pageId = descending ? prevLeafPage(leafPage)
+						: nextLeafPage(leafPage);
+				if (pageId == IndexFile.NO_PAGE)
+					return;
+				load(pageId);
+				slot = descending ? keyCount - 1 : 0;
+			}
+			if (to != null) {
+				int diff = compareKey(keys[slot], to);
+				if (descending)
+					diff = -diff;
+				if (diff > 0 || (diff == 0 && !toInclusive))
+					return;
+			}
+			next = new IndexEntry(keys[slot], offsets[slot], lengths[slot]);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/**
+Measures the time a single level of the tree takes to find the slot of a key,
+with the linear scan the tree used to do and with the binary search of
+BTreeNode.search, for growing node fan-outs. Run it with
+
+	java NodeSearchBenchmark [keyLength]
+
+Each fan-out is warmed up before it is measured, and the result of every
+lookup is summed up and printed so that the JIT can't drop the lookups.
+ */
+
+import java.util.Random;
+
+public class NodeSearchBenchmark {
+
+	static final int[] FAN_OUTS = { 8, 16, 40, 64, 128, 256, 512, 1024 };
+	static final int PROBES = 1 << 12; // Keys looked up per round.
+	static final int ROUNDS = 200; // Measured rounds per fan-out.
+
+	public static void main(String[] args) {
+		int keyLength = args.length > 0 ? Integer.parseInt(args[0]) : 11;
+		Random random = new Random(42);
+		System.out.println("fan-out   linear ns   binary ns   speedup");
+		for (int fanOut : FAN_OUTS) {
+			BTreeNode node = new BTreeNode(keyLength, fanOut);
+			node.isLeaf = true;
+			for (int count = 0; count < fanOut; count++)
+				node.addEntry(key(count * 2, keyLength), 0, 0);
+			// Half of the probes are present, half fall between two keys.
+			byte[][] probes = new byte[PROBES][];
+			for (int count = 0; count < PROBES; count++)
+				probes[count] = key(random.nextInt(fanOut * 2), keyLength);
+
+			long sum = 0;
+			for (int round = 0; round < ROUNDS; round++) { // Warm up.
+				sum += linear(node, probes);
+				sum += binary(node, probes);
+			}
+			long start = System.nanoTime();
+			for (int round = 0; round < ROUNDS; round++)
+				sum += linear(node, probes);
+			long linearTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int round = 0; round < ROUNDS; round++)
+				sum += binary(node, probes);
+			long binaryTime = System.nanoTime() - start;
+
+			double lookups = (double) ROUNDS * PROBES;
+			System.out.println(String.format("%7d %11.1f %11.1f %8.1fx   (%d)",
+					fanOut, linearTime / lookups, binaryTime / lookups,
+					(double) linearTime / binaryTime, sum));
+		}
+	}
+
+	// Returns a zero padded decimal key.
+	private static byte[] key(int value, int keyLength) {
+		StringBuilder key = new StringBuilder(Integer.toString(value));
+		while (key.length() < keyLength)
+			key.insert(0, '0');
+		return key.toString().getBytes();
+	}
+
+	// Finds the slots the way the traversals did before BTreeNode.search.
+	private static long linear(BTreeNode node, byte[][] probes) {
+		long sum = 0;
+		for (byte[] probe : probes) {
+			int slot = 0;
+			while (slot < node.keyCount && node.compareKey(slot, probe) <= 0)
+				slot++;
+			sum += slot;
+		}
+		return sum;
+	}
+
+	private static long binary(BTreeNode node, byte[][] probes) {
+		long sum = 0;
+		for (byte[] probe : probes)
+			sum += BTreeNode.childSlot(node.search(probe));
+		return sum;
+	}
+}
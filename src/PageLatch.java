@@ -0,0 +1,67 @@
+/**
+Latch of one index page. The latch is a single version word whose lowest bit
+is set while a writer holds the latch; every write lock and unlock bumps the
+word, so the version a reader saw before reading a page tells afterwards
+whether the page changed in between.
+
+Readers never write to the latch: they take the version with readLock, read
+the page, and check with validate that the version is still the same; if it
+isn't, whatever they read may be torn and they have to read it again. Writers
+take the latch exclusively with writeLock.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class PageLatch {
+
+	static final int SPINS = 64; // Busy waits before a waiting thread yields.
+
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * Waits until no writer holds the latch and returns the version.
+	 */
+	long readLock() {
+		for (int spins = 0;; spins++) {
+			long current = version.get();
+			if ((current & 1) == 0)
+				return current;
+			pause(spins);
+		}
+	}
+
+	/**
+	 * Checks that the latch is still at the version returned by readLock,
+	 * i.e. that nothing read since then was changed by a writer.
+	 */
+	boolean validate(long readVersion) {
+		return version.get() == readVersion;
+	}
+
+	/**
+	 * Waits for the latch and takes it exclusively.
+	 */
+	void writeLock() {
+		for (int spins = 0;; spins++) {
+			long current = version.get();
+			if ((current & 1) == 0
+					&& version.compareAndSet(current, current + 1))
+				return;
+			pause(spins);
+		}
+	}
+
+	/**
+	 * Releases the latch, which gives it a new version.
+	 */
+	void writeUnlock() {
+		version.incrementAndGet();
+	}
+
+	private static void pause(int spins) {
+		if (spins < SPINS)
+			Thread.onSpinWait();
+		else
+			Thread.yield();
+	}
+}
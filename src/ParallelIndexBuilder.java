@@ -0,0 +1,130 @@
+/**
+Extracts the keys of a data file in parallel. The file is split into byte
+ranges on a ForkJoinPool; a range which is too large is split in two halves
+which are processed as separate tasks. Each range is read by a RecordScanner,
+which finds the records in the mapped bytes of the file, so the byte offset
+and length of every record are exact whatever the line endings are.
+
+The keys, offsets and lengths of a range are packed into EntryRuns which are
+sorted by the task itself and handed to an ExternalSorter, so that the sorting
+runs in parallel as well and only the final merge into the tree is
+sequential.
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class ParallelIndexBuilder {
+
+	static final long MIN_RANGE_SIZE = 1024 * 1024; // Ranges aren't split below this.
+
+	private final String inputFile;
+	private final int keyLength;
+	private final int threads;
+	private final ExternalSorter sorter;
+
+	/**
+	 * @param inputFile
+	 *            is the data file to be indexed.
+	 * @param keyLength
+	 *            is the length of the key.
+	 * @param threads
+	 *            is the no. of threads to be used.
+	 * @param sorter
+	 *            receives the sorted runs of entries.
+	 */
+	ParallelIndexBuilder(String inputFile, int keyLength, int threads,
+			ExternalSorter sorter) {
+		this.inputFile = inputFile;
+		this.keyLength = keyLength;
+		this.threads = Math.max(1, threads);
+		this.sorter = sorter;
+	}
+
+	/**
+	 * Scans the whole data file and adds every record to the sorter.
+	 */
+	void scan() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			// A few ranges per thread keep the threads busy when some ranges
+			// take longer than others.
+			long rangeSize = Math.max(MIN_RANGE_SIZE, size / (threads * 4));
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new RangeTask(channel, 0, size, rangeSize));
+			} catch (RuntimeException ex) {
+				// Rethrow the I/O error a task was wrapped around.
+				for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+					if (cause instanceof IOException)
+						throw (IOException) cause;
+				}
+				throw ex;
+			} finally {
+				pool.shutdown();
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	// Task which indexes the lines starting in [start, end).
+	private class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final long rangeSize;
+
+		RangeTask(FileChannel channel, long start, long end, long rangeSize) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.rangeSize = rangeSize;
+		}
+
+		protected void compute() {
+			if (end - start > rangeSize) {
+				long middle = start + (end - start) / 2;
+				invokeAll(new RangeTask(channel, start, middle, rangeSize),
+						new RangeTask(channel, middle, end, rangeSize));
+				return;
+			}
+			try {
+				scanRange(channel, start, end);
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	// Scans the records which start in [start, end) and adds them to the
+	// sorter in runs.
+	private void scanRange(FileChannel channel, long start, long end)
+			throws IOException {
+		int runEntries = sorter.runEntries(threads);
+		int initialCapacity = Math.min(runEntries, 64 * 1024);
+		EntryRun run = new EntryRun(keyLength, initialCapacity);
+		RecordScanner scanner = new RecordScanner(channel, start, end,
+				keyLength);
+
+		while (scanner.next()) {
+			if (!scanner.hasKey()) {
+				System.out.println("Record at byte " + scanner.offset()
+						+ " is shorter than the key and was skipped.");
+				continue;
+			}
+			run.add(scanner);
+			if (run.size() >= runEntries) {
+				sorter.addRun(run);
+				run = new EntryRun(keyLength, initialCapacity);
+			}
+		}
+		sorter.addRun(run);
+	}
+}
@@ -0,0 +1,167 @@
+/**
+Finds the records of a data file directly in the raw bytes of the file. The
+file is mapped into memory a window at a time and searched for line breaks
+without decoding the bytes or creating a String per line; the key of a record
+is simply the first keyLength bytes of its line and can be read in place from
+the mapped window. Offsets and lengths are exact byte values whatever the line
+endings ("\n" or "\r\n") and the character encoding of the data are.
+
+A scanner covers the records which start in the byte range [start, end). The
+partial line at the start of the range belongs to the range before it and is
+skipped, and the last record of the range is read to its end even if that is
+past the end of the range.
+ */
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+class RecordScanner {
+
+	static final int WINDOW_SIZE = 64 * 1024 * 1024; // Bytes mapped at a time.
+	static final long LINE_BREAKS = 0x0a0a0a0a0a0a0a0al; // '\n' in every byte.
+
+	private final FileChannel channel;
+	private final long end; // End of the range.
+	private final long fileSize;
+	private final int keyLength;
+
+	private MappedByteBuffer window; // Mapped part of the file.
+	private long windowStart; // File position of the window.
+	private long position; // File position where the next search starts.
+
+	private long recordStart; // File position of the current record.
+	private int recordLength; // Length of the current record in bytes.
+
+	/**
+	 * @param channel
+	 *            is the channel of the data file.
+	 * @param start
+	 *            is the start of the range.
+	 * @param end
+	 *            is the end of the range.
+	 * @param keyLength
+	 *            is the length of the key in bytes.
+	 */
+	RecordScanner(FileChannel channel, long start, long end, int keyLength)
+			throws IOException {
+		this.channel = channel;
+		this.fileSize = channel.size();
+		this.end = Math.min(end, fileSize);
+		this.keyLength = keyLength;
+		this.position = start;
+		if (start > 0 && start < this.end) {
+			// Skip the line which started before the range. A line break
+			// just before start means a record begins right at start.
+			long lineBreak = findLineBreak(start - 1);
+			position = lineBreak < 0 ? fileSize : lineBreak + 1;
+		}
+	}
+
+	/**
+	 * Moves to the next record of the range. Blank lines are skipped.
+	 *
+	 * @return false if there are no more records in the range.
+	 */
+	boolean next() throws IOException {
+		while (position < end) {
+			long lineStart = position;
+			long lineBreak = findLineBreak(lineStart);
+			long lineEnd = lineBreak < 0 ? fileSize : lineBreak;
+			position = lineBreak < 0 ? fileSize : lineBreak + 1;
+
+			// A "\r" before the line break, or at the end of the file, isn't
+			// part of the record.
+			if (lineEnd > lineStart && byteAt(lineEnd - 1) == '\r')
+				lineEnd--;
+			if (lineEnd > lineStart) {
+				recordStart = lineStart;
+				recordLength = (int) (lineEnd - lineStart);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the byte offset of the current record in the file.
+	 */
+	long offset() {
+		return recordStart;
+	}
+
+	/**
+	 * Returns the length of the current record in bytes, without the line
+	 * break.
+	 */
+	int length() {
+		return recordLength;
+	}
+
+	/**
+	 * Returns true if the current record is at least as long as the key.
+	 */
+	boolean hasKey() {
+		return recordLength >= keyLength;
+	}
+
+	/**
+	 * Copies the key of the current record.
+	 *
+	 * @param dest
+	 *            is the array receiving the key.
+	 * @param destPos
+	 *            is the position in dest of the first byte of the key.
+	 */
+	void copyKey(byte[] dest, int destPos) throws IOException {
+		ensureMapped(recordStart, keyLength);
+		int keyPos = (int) (recordStart - windowStart);
+		for (int count = 0; count < keyLength; count++)
+			dest[destPos + count] = window.get(keyPos + count);
+	}
+
+	// Returns the position of the first '\n' at or after from, or -1 if there
+	// is none before the end of the file. Eight bytes are tested at a time:
+	// after XOR with LINE_BREAKS a line break is a zero byte, and the lowest
+	// zero byte of a word is the lowest byte flagged by the zero byte test.
+	private long findLineBreak(long from) throws IOException {
+		long pos = from;
+		while (pos < fileSize) {
+			ensureMapped(pos, 1);
+			int limit = window.limit();
+			int index = (int) (pos - windowStart);
+			for (; index + 8 <= limit; index += 8) {
+				long word = window.getLong(index) ^ LINE_BREAKS;
+				long zeros = (word - 0x0101010101010101l) & ~word
+						& 0x8080808080808080l;
+				if (zeros != 0)
+					return windowStart + index
+							+ (Long.numberOfTrailingZeros(zeros) >>> 3);
+			}
+			for (; index < limit; index++) {
+				if (window.get(index) == '\n')
+					return windowStart + index;
+			}
+			pos = windowStart + limit;
+		}
+		return -1;
+	}
+
+	private byte byteAt(long pos) throws IOException {
+		ensureMapped(pos, 1);
+		return window.get((int) (pos - windowStart));
+	}
+
+	// Makes sure that [pos, pos + length) is inside the mapped window.
+	private void ensureMapped(long pos, int length) throws IOException {
+		if (window != null && pos >= windowStart
+				&& pos + length <= windowStart + window.limit())
+			return;
+		windowStart = pos;
+		long size = Math.min(Math.max(WINDOW_SIZE, length), fileSize - pos);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+		// Little endian puts the first byte of a word in its lowest bits.
+		window.order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
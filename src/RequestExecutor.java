@@ -0,0 +1,140 @@
+/**
+Runs the requests of an IndexServer, each on a thread of its own. From Java 21
+on these are virtual threads, which park cheaply while a request waits for a
+page or a record to be read, so that tens of thousands of lookups can be in
+flight without a thread pool sized by hand. Older versions fall back to
+platform threads, created as they are needed and kept a while for reuse.
+
+Admission control bounds the no. of requests running at the same time. A
+request beyond the bound waits for a running one to finish, and is refused once
+its deadline has passed. The reader of the connection waits with it, so the
+server stops taking requests it can't run yet and TCP holds the clients back.
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class RequestExecutor {
+
+	private final ExecutorService executor;
+	private final boolean virtualThreads; // Threads are virtual threads.
+	private final int maxRequests; // No. of requests run at the same time.
+	private final Semaphore admission;
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+
+	RequestExecutor() {
+		ExecutorService virtual = virtualThreadExecutor();
+		virtualThreads = virtual != null;
+		executor = virtualThreads ? virtual : Executors
+				.newCachedThreadPool(new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "bptree-request-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		maxRequests = IndexConfig.serverRequests(virtualThreads);
+		admission = new Semaphore(maxRequests);
+	}
+
+	// Returns an executor starting a virtual thread per task, or null if the
+	// Java version has none. Looked up by name to run on older versions.
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (InvocationTargetException ex) {
+			return null; // A preview feature which isn't enabled.
+		} catch (ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tells if the requests run on virtual threads.
+	 */
+	boolean virtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Starts a task outside admission control, such as the reader of a
+	 * connection.
+	 */
+	void start(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Runs a request on a thread of its own once it is admitted.
+	 *
+	 * @param request
+	 *            is the request.
+	 * @param timeoutNanos
+	 *            is the longest wait for admission in ns, Long.MAX_VALUE to
+	 *            wait as long as it takes.
+	 * @return false if the request wasn't admitted in time and won't run.
+	 */
+	boolean submit(final Runnable request, long timeoutNanos)
+			throws InterruptedException {
+		if (!admission.tryAcquire(Math.max(0, timeoutNanos),
+				TimeUnit.NANOSECONDS)) {
+			refused.incrementAndGet();
+			return false;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						request.run();
+					} finally {
+						admission.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			admission.release();
+			throw ex;
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Stops taking tasks and waits for the ones started to finish.
+	 */
+	void shutdown() {
+		executor.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (executor.awaitTermination(1, TimeUnit.MINUTES))
+					break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Returns the statistics of the executor in a readable form.
+	 */
+	String statistics() {
+		return "Requests: " + admitted.get() + " admitted, " + refused.get()
+				+ " refused, at most " + maxRequests + " at a time on "
+				+ (virtualThreads ? "virtual" : "platform") + " threads";
+	}
+}
@@ -0,0 +1,310 @@
+/**
+Versions of the entries inserted through a ConcurrentIndex, which let a
+snapshot see the index as it was when the snapshot was taken while inserts go
+on in the same pages.
+
+Every insert gets a timestamp from a clock right before it writes its leaf,
+and records its key with that timestamp. A snapshot gets the last timestamp
+handed out and waits for the inserts with earlier timestamps which are still
+writing their leaves, so all entries it may see are in the pages already, and
+an insert which has returned is always seen. The snapshot then skips every
+entry recorded here with a later timestamp. Entries which aren't recorded here
+at all are older than any snapshot.
+
+A delete gets a timestamp from the same clock, and records the entry it
+removes from its leaf together with the timestamp of its insert, so that the
+snapshots taken after the insert and before the delete still see the entry.
+
+An entry is dropped from the table once no open snapshot, nor any snapshot
+which may still be taken, is older than its insert or its delete. Without open
+snapshots the table only holds the inserts and deletes in progress.
+
+The clock, the inserts in progress and the open snapshots are guarded by a
+ReentrantLock rather than the monitor, so that a virtual thread waiting in
+openSnapshot doesn't pin its carrier.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class VersionTable {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition ended = lock.newCondition(); // An insert ended.
+	private long clock; // Timestamp of the last insert started.
+	// Timestamps of the inserts in progress.
+	private final TreeSet<Long> inserting = new TreeSet<Long>();
+	// No. of open snapshots by timestamp.
+	private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+	// Timestamps of the recorded keys, and the keys by timestamp.
+	private final ConcurrentHashMap<String, Long> inserted = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentSkipListMap<Long, Queue<String>> byTimestamp = new ConcurrentSkipListMap<Long, Queue<String>>();
+	// Deleted entries by key, and the same entries by delete timestamp.
+	private final ConcurrentSkipListMap<byte[], Queue<Deleted>> deleted = new ConcurrentSkipListMap<byte[], Queue<Deleted>>(
+			IndexEntry.KEY_ORDER);
+	private final ConcurrentSkipListMap<Long, Queue<Deleted>> deletedByTimestamp = new ConcurrentSkipListMap<Long, Queue<Deleted>>();
+
+	// Entry removed by a delete.
+	private static class Deleted {
+		final IndexEntry entry;
+		final long inserted; // Timestamp of the insert, 0 if it is older.
+		final long deleted; // Timestamp of the delete.
+
+		Deleted(IndexEntry entry, long inserted, long deleted) {
+			this.entry = entry;
+			this.inserted = inserted;
+			this.deleted = deleted;
+		}
+
+		// Checks if a snapshot sees the entry.
+		boolean visible(long timestamp) {
+			return inserted <= timestamp && timestamp < deleted;
+		}
+	}
+
+	/**
+	 * Starts writing an insert, or a delete, to its leaf.
+	 *
+	 * @return the timestamp of the insert.
+	 */
+	long beginInsert() {
+		lock.lock();
+		try {
+			clock++;
+			inserting.add(clock);
+			return clock;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records the key of an insert. Must be called before the key is
+	 * written to its leaf.
+	 *
+	 * @param key
+	 *            is the key, padded to the key length.
+	 * @param timestamp
+	 *            is the timestamp of the insert.
+	 */
+	void record(byte[] key, long timestamp) {
+		String keyString = new String(key, StandardCharsets.ISO_8859_1);
+		inserted.put(keyString, timestamp);
+		Queue<String> keys = byTimestamp.get(timestamp);
+		if (keys == null) {
+			Queue<String> created = new ConcurrentLinkedQueue<String>();
+			keys = byTimestamp.putIfAbsent(timestamp, created);
+			if (keys == null)
+				keys = created;
+		}
+		keys.add(keyString);
+	}
+
+	/**
+	 * Returns the timestamp of the insert of a key which is still recorded,
+	 * or 0 if every snapshot sees the key.
+	 *
+	 * @param key
+	 *            is the key, padded to the key length.
+	 */
+	long insertedAt(byte[] key) {
+		Long inserted = this.inserted.get(new String(key,
+				StandardCharsets.ISO_8859_1));
+		return inserted == null ? 0 : inserted;
+	}
+
+	/**
+	 * Records an entry which is being deleted. Must be called before the
+	 * entry is removed from its leaf.
+	 *
+	 * @param entry
+	 *            is the entry, with the key padded to the key length.
+	 * @param inserted
+	 *            is the timestamp of its insert, or 0 if it is older than
+	 *            every snapshot.
+	 * @param timestamp
+	 *            is the timestamp of the delete, from beginInsert.
+	 */
+	void recordDelete(IndexEntry entry, long inserted, long timestamp) {
+		Deleted version = new Deleted(entry, inserted, timestamp);
+		add(deleted, entry.key, version);
+		add(deletedByTimestamp, timestamp, version);
+	}
+
+	// Adds a value to the queue of a key of a map, creating the queue.
+	private static <K> void add(ConcurrentSkipListMap<K, Queue<Deleted>> map,
+			K key, Deleted value) {
+		Queue<Deleted> values = map.get(key);
+		if (values == null) {
+			Queue<Deleted> created = new ConcurrentLinkedQueue<Deleted>();
+			values = map.putIfAbsent(key, created);
+			if (values == null)
+				values = created;
+		}
+		values.add(value);
+	}
+
+	/**
+	 * Ends an insert once its leaf is written, or has failed to be.
+	 *
+	 * @param timestamp
+	 *            is the timestamp of the insert.
+	 */
+	void endInsert(long timestamp) {
+		lock.lock();
+		try {
+			inserting.remove(timestamp);
+			prune();
+			ended.signalAll(); // Wake up the snapshots waiting for it.
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Opens a snapshot.
+	 *
+	 * @return the timestamp of the snapshot.
+	 */
+	long openSnapshot() {
+		lock.lock();
+		try {
+			long timestamp = clock;
+			while (stableTimestamp() < timestamp)
+				ended.awaitUninterruptibly();
+			Integer count = snapshots.get(timestamp);
+			snapshots.put(timestamp, count == null ? 1 : count + 1);
+			return timestamp;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes a snapshot returned by openSnapshot.
+	 */
+	void closeSnapshot(long timestamp) {
+		lock.lock();
+		try {
+			Integer count = snapshots.get(timestamp);
+			if (count == null)
+				return;
+			if (count == 1)
+				snapshots.remove(timestamp);
+			else
+				snapshots.put(timestamp, count - 1);
+			prune();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks if an entry found in a leaf is part of a snapshot.
+	 *
+	 * @param key
+	 *            is the key of the entry, padded to the key length.
+	 * @param timestamp
+	 *            is the timestamp of the snapshot.
+	 */
+	boolean visible(byte[] key, long timestamp) {
+		Long inserted = this.inserted.get(new String(key,
+				StandardCharsets.ISO_8859_1));
+		return inserted == null || inserted <= timestamp;
+	}
+
+	/**
+	 * Returns the deleted entry of a key which a snapshot still sees, if
+	 * any.
+	 *
+	 * @param key
+	 *            is the key, padded to the key length.
+	 * @param timestamp
+	 *            is the timestamp of the snapshot.
+	 */
+	IndexEntry deletedEntry(byte[] key, long timestamp) {
+		Queue<Deleted> versions = deleted.get(key);
+		if (versions != null) {
+			for (Deleted version : versions) {
+				if (version.visible(timestamp))
+					return version.entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Lists the deleted entries a snapshot still sees from a key on, in key
+	 * order.
+	 *
+	 * @param key
+	 *            is the first key to be listed, padded to the key length.
+	 * @param timestamp
+	 *            is the timestamp of the snapshot.
+	 * @param count
+	 *            is the maximum no. of entries to be listed.
+	 */
+	List<IndexEntry> deletedEntries(byte[] key, long timestamp, int count) {
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		for (Queue<Deleted> versions : deleted.tailMap(key).values()) {
+			if (entries.size() == count)
+				break;
+			for (Deleted version : versions) {
+				if (version.visible(timestamp)) {
+					entries.add(version.entry);
+					break;
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the no. of entries in the table.
+	 */
+	int size() {
+		return inserted.size() + deletedByTimestamp.size();
+	}
+
+	// Returns the last timestamp up to which every insert has finished.
+	private long stableTimestamp() {
+		return inserting.isEmpty() ? clock : inserting.first() - 1;
+	}
+
+	// Drops the entries which every snapshot, open or still to come, sees.
+	private void prune() {
+		long oldest = stableTimestamp();
+		if (!snapshots.isEmpty())
+			oldest = Math.min(oldest, snapshots.firstKey());
+		Iterator<Map.Entry<Long, Queue<String>>> entries = byTimestamp
+				.headMap(oldest, true).entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Long, Queue<String>> entry = entries.next();
+			for (String key : entry.getValue())
+				inserted.remove(key, entry.getKey());
+			entries.remove();
+		}
+		Iterator<Queue<Deleted>> deletes = deletedByTimestamp.headMap(oldest,
+				true).values().iterator();
+		while (deletes.hasNext()) {
+			for (Deleted version : deletes.next()) {
+				Queue<Deleted> versions = deleted.get(version.entry.key);
+				versions.remove(version);
+				if (versions.isEmpty())
+					deleted.remove(version.entry.key, versions);
+			}
+			deletes.remove();
+		}
+	}
+}
@@ -0,0 +1,641 @@
+/**
+Write-ahead log of the inserts into an index, kept next to the index file as
+<index file>.wal. Every insert is appended to the log as a logical record, the
+key with the byte offset and length of its data, before its leaf is changed,
+and the log is replayed when the index is opened again. An insert which has
+returned therefore survives a crash even if the pages it changed were still in
+the buffer pool, or the data file was appended to but the index not yet
+written. Replaying an insert which already reached the tree does nothing, as
+the tree takes no duplicates. A delete is logged the same way with the entry
+it removes, and is only replayed if the key still has that entry, so inserts
+and deletes are replayed in the order they were appended.
+
+Replaying inserts needs a consistent tree, so while the log is in use the
+buffer pool keeps every changed page until the next checkpoint instead of
+writing it back (see BufferPool.keepDirtyPages), and the pages in the index
+file are those of the last checkpoint. A checkpoint first appends an image of
+every changed page and of the metadata page to the log, followed by a
+checkpoint record, and syncs the log; only then are the pages written in
+place, synced, and the log emptied. A checkpoint which was cut off while it
+wrote the pages is done again from the images when the index is opened, and
+one which was cut off before its checkpoint record is ignored, leaving the
+inserts to be replayed. An empty log is removed when it is closed.
+
+The log starts with the creation id of its index file (see IndexFile), and a
+log whose id isn't the one of the index file is left over from another file of
+the same name. Its records are thrown away instead of being replayed. Creating
+an index file removes the log too.
+
+Log layout:
+	0 - 7     : creation id of the index file.
+	8 - ...   : records.
+
+Record layout:
+	0 - 3     : CRC32 of the rest of the record.
+	4         : type: insert, delete, page image or checkpoint.
+	5 - 8     : length of the contents.
+	9 - ...   : contents. An insert or a delete holds the key, the byte offset
+				(8 bytes) and the data length (4 bytes); a page image holds the
+				page number (4 bytes) and the page; a checkpoint is empty.
+
+A record which is cut short or doesn't match its CRC ends the log. It was
+being written when the process stopped, so its insert never returned.
+
+When an appended insert reaches the disk is set with bptree.walSync:
+	always : every insert syncs the log before it returns, without waiting
+	         for others.
+	group  : inserts wait for a sync of the log which commits all records
+	         appended so far. The first insert to wait does the sync once the
+	         inserts being appended at the same time have joined it, or
+	         bptree.walGroupOps records are waiting, or at the latest after
+	         bptree.walGroupMillis ms; inserts which arrive during the sync
+	         form the next group. A single writer thus syncs at once, and at
+	         high insert rates one sync commits many inserts.
+	async  : inserts don't wait; the log is synced every bptree.walGroupMillis
+	         ms, so a crash loses the inserts of the last interval at most.
+
+The state of the log is guarded by a ReentrantLock which is never held during
+file I/O, so that inserts waiting for a group commit don't pin the carriers of
+virtual threads. Appends and syncs each take a lock of their own for the I/O.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+class WriteAheadLog {
+
+	static enum SyncPolicy {
+		ALWAYS, GROUP, ASYNC
+	}
+
+	private static final byte INSERT = 1;
+	private static final byte PAGE = 2;
+	private static final byte CHECKPOINT = 3;
+	private static final byte DELETE = 4;
+	private static final int HEADER_SIZE = 9; // CRC, type and length.
+	private static final int LOG_START = 8; // Creation id of the index file.
+
+	private final String indexFile;
+	private final long creationId; // Creation id of the index file.
+	private final File path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final SyncPolicy policy;
+	private final long groupMillis;
+	private final int groupOps;
+	private final ReentrantLock lock = new ReentrantLock(); // Guards the state.
+	private final Condition changed = lock.newCondition();
+	private final ReentrantLock appendLock = new ReentrantLock(); // One write.
+	private final ReentrantLock syncLock = new ReentrantLock(); // One sync.
+	private final Thread syncer; // Syncs an async log in the background.
+	private long written; // End of the records appended.
+	private long synced; // End of the records known to be on the disk.
+	private int waiting; // No. of records appended since the last sync.
+	private int appending; // No. of inserts being appended.
+	private int joined; // No. of inserts waiting for a group commit.
+	private boolean syncing; // An insert is syncing for its group.
+	private long records; // No. of records appended, for the statistics.
+	private long syncs; // No. of syncs, for the statistics.
+	private int restoredCount; // No. of pages restored by recover.
+	private IOException failure; // Failure of the last async sync.
+	private boolean closed;
+
+	/**
+	 * Insert or delete read back from the log.
+	 */
+	static class Change {
+		final IndexEntry entry; // Entry inserted or deleted.
+		final boolean delete; // True for a delete.
+
+		Change(IndexEntry entry, boolean delete) {
+			this.entry = entry;
+			this.delete = delete;
+		}
+	}
+
+	private WriteAheadLog(String indexFile, long creationId,
+			SyncPolicy policy, long groupMillis, int groupOps)
+			throws IOException {
+		this.indexFile = indexFile;
+		this.creationId = creationId;
+		this.path = pathOf(indexFile);
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+		this.policy = policy;
+		this.groupMillis = Math.max(1, groupMillis);
+		this.groupOps = Math.max(1, groupOps);
+		if (policy != SyncPolicy.ASYNC) {
+			this.syncer = null;
+		} else {
+			this.syncer = new Thread("bptree-wal-sync") {
+				public void run() {
+					runSyncer();
+				}
+			};
+			this.syncer.setDaemon(true);
+		}
+	}
+
+	/**
+	 * Opens the log of an index file, creating it if there is none. It must
+	 * be recovered before the index file is opened and new records are
+	 * appended.
+	 *
+	 * @param indexFile
+	 *            is the name of the index file.
+	 * @param creationId
+	 *            is the creation id of the index file.
+	 * @return the opened log.
+	 */
+	static WriteAheadLog open(String indexFile, long creationId)
+			throws IOException {
+		WriteAheadLog log = new WriteAheadLog(indexFile, creationId,
+				IndexConfig.walSync(), IndexConfig.walGroupMillis(),
+				IndexConfig.walGroupOps());
+		if (log.syncer != null)
+			log.syncer.start();
+		return log;
+	}
+
+	/**
+	 * Removes the log of an index file, if there is one.
+	 *
+	 * @param indexFile
+	 *            is the name of the index file.
+	 */
+	static void remove(String indexFile) throws IOException {
+		File path = pathOf(indexFile);
+		if (path.exists() && !path.delete())
+			throw new IOException("Could not remove " + path);
+	}
+
+	/**
+	 * Checks if the log of an index file holds records, which a run that
+	 * didn't finish left behind and which the index file doesn't have yet.
+	 *
+	 * @param indexFile
+	 *            is the name of the index file.
+	 */
+	static boolean hasRecords(String indexFile) {
+		return pathOf(indexFile).length() > LOG_START;
+	}
+
+	private static File pathOf(String indexFile) {
+		return new File(indexFile + ".wal");
+	}
+
+	/**
+	 * Reads the log after a run which may not have finished. If the log ends
+	 * with a complete checkpoint, its page images are written to the index
+	 * file again and the log is emptied. Otherwise the page images of a
+	 * checkpoint which didn't finish and the damaged record at the end, if
+	 * any, are cut off. A log of another index file is emptied.
+	 *
+	 * @return the inserts and deletes to be replayed, in the order they were
+	 *         appended.
+	 */
+	List<Change> recover() throws IOException {
+		List<Change> changes = new ArrayList<Change>();
+		List<Long> images = new ArrayList<Long>(); // Positions of the images.
+		long end = LOG_START; // End of the records to keep.
+		long position = LOG_START;
+		ByteBuffer start = ByteBuffer.allocate(LOG_START);
+		boolean ours = readFully(start, 0) && start.getLong(0) == creationId;
+		ByteBuffer record;
+		while (ours && (record = readRecord(position)) != null) {
+			byte type = record.get(4);
+			record.position(HEADER_SIZE);
+			if (type == INSERT || type == DELETE) {
+				byte[] key = new byte[record.remaining() - 12];
+				record.get(key);
+				changes.add(new Change(new IndexEntry(key, record.getLong(),
+						record.getInt()), type == DELETE));
+			} else if (type == PAGE) {
+				images.add(position);
+			} else if (type == CHECKPOINT) {
+				restorePages(images);
+				changes.clear();
+				images.clear();
+				end = LOG_START;
+				break;
+			}
+			position += record.limit();
+			if (images.isEmpty())
+				end = position;
+		}
+		channel.truncate(end);
+		if (!ours) {
+			start.clear();
+			start.putLong(0, creationId);
+			while (start.hasRemaining())
+				channel.write(start, start.position());
+		}
+		channel.force(true);
+		lock.lock();
+		try {
+			written = end;
+			synced = end;
+		} finally {
+			lock.unlock();
+		}
+		return changes;
+	}
+
+	/**
+	 * Appends the inserts of entries and, depending on the sync policy,
+	 * waits until they are on the disk. May be called by several threads at
+	 * once.
+	 *
+	 * @param entries
+	 *            are the entries, with keys padded to the key length.
+	 */
+	void append(List<IndexEntry> entries) throws IOException {
+		append(entries, INSERT);
+	}
+
+	/**
+	 * Appends the delete of an entry and, depending on the sync policy, waits
+	 * until it is on the disk. May be called by several threads at once.
+	 *
+	 * @param entry
+	 *            is the entry being deleted, with the key padded to the key
+	 *            length.
+	 */
+	void appendDelete(IndexEntry entry) throws IOException {
+		append(Collections.singletonList(entry), DELETE);
+	}
+
+	private void append(List<IndexEntry> entries, byte type) throws IOException {
+		lock.lock();
+		try {
+			appending++;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			appendRecords(entries, type);
+		} finally {
+			lock.lock();
+			try {
+				appending--;
+				changed.signalAll(); // A group may no longer wait for this.
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void appendRecords(List<IndexEntry> entries, byte type)
+			throws IOException {
+		int size = 0;
+		for (IndexEntry entry : entries)
+			size += HEADER_SIZE + entry.key.length + 12;
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (IndexEntry entry : entries) {
+			int start = startRecord(buffer, type, entry.key.length + 12);
+			buffer.put(entry.key);
+			buffer.putLong(entry.byteOffset);
+			buffer.putInt(entry.dataLength);
+			endRecord(buffer, start);
+		}
+		long end = write(buffer, entries.size());
+		if (policy == SyncPolicy.ALWAYS)
+			sync(Long.MAX_VALUE);
+		else if (policy == SyncPolicy.GROUP)
+			groupCommit(end);
+	}
+
+	/**
+	 * Appends the images of the pages a checkpoint is going to write and a
+	 * checkpoint record, and syncs the log. No insert may be appended
+	 * meanwhile.
+	 *
+	 * @param pages
+	 *            are the pages by page number, the metadata page included.
+	 */
+	void appendCheckpoint(Map<Integer, ByteBuffer> pages) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(pages.size()
+				* (HEADER_SIZE + 4 + IndexFile.PAGE_SIZE) + HEADER_SIZE);
+		for (Map.Entry<Integer, ByteBuffer> page : pages.entrySet()) {
+			int start = startRecord(buffer, PAGE, 4 + IndexFile.PAGE_SIZE);
+			buffer.putInt(page.getKey());
+			buffer.put(page.getValue().duplicate());
+			endRecord(buffer, start);
+		}
+		endRecord(buffer, startRecord(buffer, CHECKPOINT, 0));
+		sync(write(buffer, 0));
+	}
+
+	/**
+	 * Returns the size of the records in the log in bytes.
+	 */
+	long size() {
+		lock.lock();
+		try {
+			return written - LOG_START;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Empties the log once the index pages are on the disk. No record may be
+	 * appended meanwhile.
+	 */
+	void clear() throws IOException {
+		syncLock.lock();
+		appendLock.lock();
+		try {
+			channel.truncate(LOG_START);
+			channel.force(true);
+			lock.lock();
+			try {
+				written = LOG_START;
+				synced = LOG_START;
+				waiting = 0;
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			appendLock.unlock();
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Syncs the records still waiting, stops the background syncs and
+	 * closes the file, removing it if it is empty.
+	 */
+	void close() throws IOException {
+		try {
+			sync(Long.MAX_VALUE);
+		} finally {
+			lock.lock();
+			try {
+				closed = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (syncer != null) {
+				try {
+					syncer.join();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			file.close();
+			if (written <= LOG_START)
+				path.delete();
+		}
+	}
+
+	/**
+	 * Returns the no. of pages of an interrupted checkpoint which recover
+	 * wrote to the index file.
+	 */
+	int restoredPages() {
+		lock.lock();
+		try {
+			return restoredCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a one line summary of the records and syncs.
+	 */
+	String statistics() {
+		lock.lock();
+		try {
+			return "Write-ahead log: " + records + " records, " + syncs
+					+ " syncs (" + policy.name().toLowerCase() + ")";
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Writes the header of a record and returns where the record starts.
+	private static int startRecord(ByteBuffer buffer, byte type, int length) {
+		int start = buffer.position();
+		buffer.position(start + 4);
+		buffer.put(type);
+		buffer.putInt(length);
+		return start;
+	}
+
+	// Puts the CRC of the record from start to the position of the buffer.
+	private static void endRecord(ByteBuffer buffer, int start) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), start + 4, buffer.position() - start - 4);
+		buffer.putInt(start, (int) crc.getValue());
+	}
+
+	// Appends the records in the buffer and returns the end of the log.
+	private long write(ByteBuffer buffer, int inserts) throws IOException {
+		appendLock.lock();
+		try {
+			long end;
+			lock.lock();
+			try {
+				if (closed)
+					throw new IOException("The write-ahead log is closed");
+				if (failure != null)
+					throw new IOException(
+							"The write-ahead log could not be synced", failure);
+				end = written;
+			} finally {
+				lock.unlock();
+			}
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer, end + buffer.position());
+			lock.lock();
+			try {
+				written = end + buffer.limit();
+				waiting += inserts;
+				records += inserts;
+				changed.signalAll(); // The group may be complete now.
+				return written;
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	// Reads the record at the position, or returns null if it is cut short
+	// or damaged. The buffer returned holds the whole record.
+	private ByteBuffer readRecord(long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (!readFully(header, position))
+			return null;
+		int length = header.getInt(5);
+		if (length < 0 || length > channel.size() - position - HEADER_SIZE)
+			return null;
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+		if (!readFully(record, position))
+			return null;
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, record.limit() - 4);
+		return record.getInt(0) == (int) crc.getValue() ? record : null;
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	// Writes the page images at the positions in the log to the index file
+	// and syncs it.
+	private void restorePages(List<Long> images) throws IOException {
+		RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+		try {
+			FileChannel indexChannel = index.getChannel();
+			for (long position : images) {
+				ByteBuffer record = readRecord(position);
+				long page = record.getInt(HEADER_SIZE);
+				record.position(HEADER_SIZE + 4);
+				while (record.hasRemaining())
+					indexChannel.write(record, page * IndexFile.PAGE_SIZE
+							+ record.position() - HEADER_SIZE - 4);
+			}
+			indexChannel.force(true);
+		} finally {
+			index.close();
+		}
+		restoredCount = images.size();
+	}
+
+	// Syncs the log at least up to end, along with every record appended
+	// before the sync started.
+	private void sync(long end) throws IOException {
+		syncLock.lock();
+		try {
+			long target;
+			lock.lock();
+			try {
+				if (synced >= Math.min(end, written))
+					return;
+				target = written;
+				waiting = 0;
+			} finally {
+				lock.unlock();
+			}
+			channel.force(false);
+			lock.lock();
+			try {
+				synced = Math.max(synced, target);
+				syncs++;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	// Waits until the log is synced up to end, doing the sync for the group
+	// if no other insert is doing one.
+	private void groupCommit(long end) throws IOException {
+		boolean interrupted = false;
+		boolean leader = false;
+		lock.lock();
+		try {
+			long deadline = System.currentTimeMillis() + groupMillis;
+			joined++;
+			try {
+				while (synced < end) {
+					long now = System.currentTimeMillis();
+					if (!syncing
+							&& (joined >= appending || waiting >= groupOps || now >= deadline)) {
+						syncing = true;
+						leader = true;
+						break;
+					}
+					try {
+						if (syncing)
+							changed.await();
+						else
+							changed.await(deadline - now, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException ex) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				joined--;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (!leader)
+			return;
+		try {
+			sync(end);
+		} finally {
+			lock.lock();
+			try {
+				syncing = false;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// Syncs the log every groupMillis ms until the log is closed.
+	private void runSyncer() {
+		while (true) {
+			lock.lock();
+			try {
+				long deadline = System.currentTimeMillis() + groupMillis;
+				long now;
+				while (!closed
+						&& (now = System.currentTimeMillis()) < deadline) {
+					try {
+						changed.await(deadline - now, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException ex) {
+						// Only close stops the syncer.
+					}
+				}
+				if (closed)
+					return;
+				if (synced >= written)
+					continue;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				sync(Long.MAX_VALUE);
+			} catch (IOException ex) {
+				lock.lock();
+				try {
+					failure = ex;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+}